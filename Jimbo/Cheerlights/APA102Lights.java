@@ -23,77 +23,216 @@ import java.util.logging.Level;
 import java.io.IOException;
 import java.net.UnknownHostException;
 
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
 import Jimbo.Devices.APA102;
 
 /**
- *
+ * This class handles Cheerlights on a strip of APA102 LEDs. By default it
+ * drives eight LEDs through the APA102 device class. With an SPI device it
+ * can drive strips of hundreds of LEDs using an APA102Strip.
+ * 
  * @author Jim Darby
  */
 public class APA102Lights implements CheerListener
 {
     private static final Logger LOG = Logger.getLogger ("APA102Lights");
     
+    /**
+     * Create the lights. The LEDs are set up when the command line is
+     * handled or, failing that, on the first update.
+     */
     public APA102Lights ()
     {
         LOG.log (Level.INFO, "APA102 cheer lights started");
         
-        a = new APA102 (data.length);
-       
-        for (int i = 0; i < data.length; ++i)
-            data[i] = 0;
+        telemetry = new FrameTelemetry ("APA102", this::show);
+        pipeline = new ColourPipeline (telemetry, GAMMA);
     }
     
+    /**
+     * Add our options.
+     * 
+     * @param opts The options to add to.
+     */
     @Override
-    public void update (int colour) throws IOException
+    public void add_options (Options opts)
     {
-        LOG.log (Level.INFO, "Update new colour {0}", Integer.toHexString(colour));
+        opts.addOption (null, LENGTH_KEY, true, "Number of LEDs (default " + DEFAULT_LENGTH + ")")
+                .addOption (null, SPI_KEY, true, "SPI device for long strips, e.g. /dev/spidev0.0");
         
-        int[] next = new int [data.length];
+        pipeline.add_options (opts);
+        telemetry.add_options (opts);
+        Animator.add_options (opts);
+        Compositor.add_options (opts);
+    }
+    
+    /**
+     * Read our options and set up the LEDs.
+     * 
+     * @param command The command line.
+     */
+    @Override
+    public synchronized void handle_args (CommandLine command)
+    {
+        pipeline.handle_args (command);
+        telemetry.handle_args (command);
         
-        for (int i = 1; i < data.length; ++i)
-            next[i] = data[i-1];
+        int length = DEFAULT_LENGTH;
         
-        next[0] = colour;
+        try
+        {
+            if (command.hasOption (LENGTH_KEY))
+                length = Integer.parseInt (command.getOptionValue (LENGTH_KEY));
+        }
         
-        for (int step = 1; step <= 100; ++step)
+        catch (NumberFormatException e)
         {
-            final int left = 100 - step;
-            
-            for (int i = 0; i < data.length; ++i)
-            {
-                final int r = (step * ((next[i] >> 16) & 0xff) + left * ((data[i] >> 16) & 0xff)) / 100;
-                final int g = (step * ((next[i] >>  8) & 0xff) + left * ((data[i] >>  8) & 0xff)) / 100;
-                final int b = (step * ((next[i]      ) & 0xff) + left * ((data[i]      ) & 0xff)) / 100;
-                
-                a.set (i, r, g, b, 8);
-            }
-            
-            a.show();
-            
-            try
-            {
-                Thread.sleep (10);
-            }
+            LOG.log (Level.WARNING, "Invalid length, using {0}", DEFAULT_LENGTH);
+        }
+        
+        try
+        {
+            start (length, command.getOptionValue (SPI_KEY));
+            animator.handle_args (command);
             
-            catch (InterruptedException e)
+            if (command.hasOption (Compositor.ZONE_KEY))
             {
-                LOG.log (Level.WARNING, "Interrupted sleep?");
+                compositor = new Compositor (animator, length);
+                compositor.handle_args (command, DURATION);
             }
         }
         
+        catch (IOException | IllegalArgumentException | ParseException e)
+        {
+            LOG.log (Level.WARNING, "Failed to set up LEDs: {0}", e.getLocalizedMessage ());
+        }
+    }
+    
+    @Override
+    public void update (int colour) throws IOException
+    {
+        update (new CheerEvent (colour, null));
+    }
+    
+    /**
+     * Update the lights with several new colours in a single fade.
+     * 
+     * @param event The colours to update with
+     * @throws IOException In case of problems
+     */
+    @Override
+    public synchronized void update (CheerEvent event) throws IOException
+    {
+        LOG.log (Level.INFO, "Update new colours {0}", event);
+        
+        if (animator == null)
+            start (DEFAULT_LENGTH, null);
+        
+        if (compositor != null)
+        {
+            compositor.update (event);
+            return;
+        }
+        
+        // Shift along, recycling the old frame as the animator takes a copy,
+        // and put the newest first
+        final int n = Math.min (event.getCount (), data.length);
+        
+        System.arraycopy (data, 0, next, n, data.length - n);
+        
+        for (int i = 0; i < n; ++i)
+            next[i] = event.getColour (event.getCount () - 1 - i);
+        
+        animator.fade (next, SyncClock.toNanoTime (event.getApplyAt ()));
+        
+        final int[] t = data;
+        
         data = next;
+        next = t;
+    }
+    
+    /**
+     * Set up the LEDs.
+     * 
+     * @param length The number of LEDs.
+     * @param device The SPI device or null to use the APA102 class.
+     * 
+     * @throws IOException In case of error.
+     */
+    private void start (int length, String device) throws IOException
+    {
+        if (animator != null)
+            return;
+        
+        if (device != null)
+            strip = new APA102Strip (device, length, BRIGHTNESS);
+        else
+            a = new APA102 (length);
+        
+        data = new int[length];
+        next = new int[length];
+        
+        animator = new Animator ("APA102", length, pipeline, DURATION, Easing.SMOOTH);
+        pipeline.setOnChange (animator::refresh);
+        animator.go ();
+        
+        LOG.log (Level.INFO, "APA102 using {0} LEDs", length);
+    }
+    
+    /**
+     * Show a frame on the APA102s.
+     * 
+     * @param frame The frame to show.
+     * @throws IOException In case of problems
+     */
+    private void show (int[] frame) throws IOException
+    {
+        if (strip != null)
+        {
+            strip.show (frame);
+            return;
+        }
+        
+        for (int i = 0; i < frame.length; ++i)
+            a.set (i, (frame[i] >> 16) & 0xff, (frame[i] >> 8) & 0xff, frame[i] & 0xff, BRIGHTNESS);
+        
+        a.show ();
     }
     
     public static void main (String args[]) throws IOException, UnknownHostException, InterruptedException
     {
         // Set up simpler logging to stdout
         Jimbo.Logging.Logging.useStdout ();
+        AsyncHandler.install ();
         
         final CheerListener target = new APA102Lights ();
         
-        MessageListener.run (target);
+        Listener.setup (args, target);
     }
     
-    final APA102 a;
-    int[] data = new int[8];
+    /** Command line long name for the number of LEDs. */
+    public static final String LENGTH_KEY = "length";
+    /** Command line long name for the SPI device. */
+    public static final String SPI_KEY = "spi-device";
+    
+    /** The default number of LEDs. */
+    private static final int DEFAULT_LENGTH = 8;
+    /** How long a fade takes in milliseconds. */
+    private static final long DURATION = 1000;
+    /** The global brightness of the LEDs. */
+    private static final int BRIGHTNESS = 8;
+    /** The default gamma for the LEDs. */
+    private static final double GAMMA = 2.2;
+    
+    final ColourPipeline pipeline;
+    final FrameTelemetry telemetry;
+    APA102 a = null;
+    APA102Strip strip = null;
+    Animator animator = null;
+    Compositor compositor = null;
+    int[] data;
+    int[] next;
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A strip of APA102 LEDs of any length driven through a Linux spidev
+ * device. Each frame is laid out in the APA102 wire format in a direct
+ * buffer and sent with a single write, which spidev turns into a single
+ * SPI transfer. There are two buffers so the next frame can be built while
+ * the last is still going out on the bus.
+ * 
+ * Note that spidev limits the size of a transfer to its bufsiz parameter,
+ * 4096 bytes by default, which is about 1000 LEDs. For longer strips set
+ * spidev.bufsiz on the kernel command line.
+ * 
+ * @author Jim Darby
+ */
+public class APA102Strip implements Display
+{
+    private static final Logger LOG = Logger.getLogger ("APA102Strip");
+    
+    /**
+     * Open a strip.
+     * 
+     * @param device The spidev device, for example /dev/spidev0.0.
+     * @param length The number of LEDs.
+     * @param brightness The global brightness of every LED, from 0 to 31.
+     * 
+     * @throws IOException In case of error.
+     */
+    public APA102Strip (String device, int length, int brightness) throws IOException
+    {
+        if (length <= 0)
+            throw new IllegalArgumentException ("Invalid APA102 strip length " + length);
+        
+        if (brightness < 0 || brightness > 31)
+            throw new IllegalArgumentException ("Invalid APA102 brightness " + brightness);
+        
+        this.length = length;
+        this.brightness = brightness;
+        
+        // Start frame, four bytes per LED and then at least half a clock
+        // per LED to push the data all the way down the strip.
+        end = START_SIZE + 4 * length;
+        size = end + Math.max (4, (length + 15) / 16);
+        
+        buffers = new ByteBuffer[] {init (), init ()};
+        channel = FileChannel.open (Paths.get (device), StandardOpenOption.WRITE);
+        
+        final Thread t = new Thread (this::send, "APA102 writer");
+        
+        t.setDaemon (true);
+        t.start ();
+    }
+    
+    /**
+     * Get the number of LEDs.
+     * 
+     * @return The length of the strip.
+     */
+    public int getLength ()
+    {
+        return length;
+    }
+    
+    /**
+     * Show a frame. This builds the frame in a free buffer and hands it over
+     * to be sent, it only waits if both buffers are busy.
+     * 
+     * @param frame The pixels as 0xrrggbb.
+     * @throws IOException In case of error, possibly on an earlier frame.
+     */
+    @Override
+    public void show (int[] frame) throws IOException
+    {
+        if (frame.length != length)
+            throw new IllegalArgumentException ("Frame size " + frame.length + " for strip of " + length);
+        
+        final ByteBuffer b;
+        
+        synchronized (this)
+        {
+            try
+            {
+                while (pending != null && failure == null)
+                    wait ();
+            }
+            
+            catch (InterruptedException e)
+            {
+                Thread.currentThread ().interrupt ();
+                throw new IOException ("Interrupted waiting for APA102 buffer");
+            }
+            
+            if (failure != null)
+                throw failure;
+            
+            b = (buffers[0] == sending) ? buffers[1] : buffers[0];
+        }
+        
+        // Each LED is 111bbbbb, blue, green then red
+        final int top = (0xe0 | brightness) << 24;
+        
+        for (int i = 0, at = START_SIZE; i < length; ++i, at += 4)
+        {
+            final int c = frame[i];
+            
+            b.putInt (at, top | ((c & 0xff) << 16) | (c & 0xff00) | ((c >> 16) & 0xff));
+        }
+        
+        synchronized (this)
+        {
+            pending = b;
+            notifyAll ();
+        }
+    }
+    
+    /**
+     * Send frames as they become ready.
+     */
+    private void send ()
+    {
+        try
+        {
+            while (true)
+            {
+                final ByteBuffer b;
+                
+                synchronized (this)
+                {
+                    while (pending == null)
+                        wait ();
+                    
+                    b = pending;
+                    sending = b;
+                    pending = null;
+                    notifyAll ();
+                }
+                
+                b.clear ();
+                
+                while (b.hasRemaining ())
+                    channel.write (b);
+                
+                synchronized (this)
+                {
+                    sending = null;
+                }
+            }
+        }
+        
+        catch (IOException e)
+        {
+            LOG.log (Level.WARNING, "APA102 write failed: {0}", e.getLocalizedMessage ());
+            
+            synchronized (this)
+            {
+                failure = e;
+                notifyAll ();
+            }
+        }
+        
+        catch (InterruptedException e)
+        {
+            LOG.info ("APA102 writer stopped");
+        }
+    }
+    
+    /**
+     * Create a frame buffer with the fixed parts filled in and all the LEDs
+     * off.
+     * 
+     * @return The buffer.
+     */
+    private ByteBuffer init ()
+    {
+        final ByteBuffer b = ByteBuffer.allocateDirect (size).order (ByteOrder.BIG_ENDIAN);
+        
+        for (int i = 0; i < START_SIZE; ++i)
+            b.put (i, (byte) 0);
+        
+        for (int i = START_SIZE; i < end; i += 4)
+            b.putInt (i, (0xe0 | brightness) << 24);
+        
+        for (int i = end; i < size; ++i)
+            b.put (i, (byte) 0xff);
+        
+        return b;
+    }
+    
+    /** The size of the start frame. */
+    private static final int START_SIZE = 4;
+    
+    /** The number of LEDs. */
+    private final int length;
+    /** The global brightness. */
+    private final int brightness;
+    /** Where the LED data ends and the end frame starts. */
+    private final int end;
+    /** The total size of a frame. */
+    private final int size;
+    /** The two frame buffers. */
+    private final ByteBuffer[] buffers;
+    /** Where we write the frames. */
+    private final FileChannel channel;
+    /** The buffer ready to be sent, if any. */
+    private ByteBuffer pending = null;
+    /** The buffer being sent, if any. */
+    private ByteBuffer sending = null;
+    /** What went wrong with the writer, if anything. */
+    private IOException failure = null;
+}
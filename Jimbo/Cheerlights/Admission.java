@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import java.util.Properties;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Decides which senders' multicast packets are let in. A sender has to be
+ * on the allow list, if there is one, and keep within its rate. Each sender
+ * gets a token bucket so one noisy or broken device can't crowd out the
+ * others. Nothing here allocates so a flood costs very little to turn away.
+ * 
+ * @author Jim Darby
+ */
+public class Admission
+{
+    /**
+     * Create the default settings: anyone allowed at the default rate.
+     */
+    public Admission ()
+    {
+        allow = new byte[0][];
+        prefix = new int[0];
+        interval = 1_000_000_000L / DEFAULT_RATE;
+        burst = DEFAULT_BURST * interval;
+    }
+    
+    /**
+     * Create the settings from the command line, falling back to the
+     * configuration and then the defaults.
+     * 
+     * @param command The command line.
+     * @param config The configuration.
+     * 
+     * @throws ParseException If any of the settings are invalid.
+     */
+    public Admission (CommandLine command, Properties config) throws ParseException
+    {
+        final String list = Listener.getValue (command, config, ALLOW_KEY, null);
+        final String[] entries = (list == null) ? new String[0] : list.split (",");
+        
+        allow = new byte[entries.length][];
+        prefix = new int[entries.length];
+        
+        for (int i = 0; i < entries.length; ++i)
+        {
+            final String entry = entries[i].trim ();
+            final int slash = entry.indexOf ('/');
+            
+            try
+            {
+                allow[i] = InetAddress.getByName ((slash < 0) ? entry : entry.substring (0, slash)).getAddress ();
+                prefix[i] = (slash < 0) ? allow[i].length * 8 : Integer.parseInt (entry.substring (slash + 1));
+            }
+            
+            catch (UnknownHostException | NumberFormatException e)
+            {
+                throw new ParseException ("Invalid allowed sender: " + entry);
+            }
+            
+            if (prefix[i] < 0 || prefix[i] > allow[i].length * 8)
+                throw new ParseException ("Invalid prefix length: " + entry);
+        }
+        
+        interval = 1_000_000_000L / Listener.getInt (command, config, RATE_KEY, DEFAULT_RATE, 1, 1_000_000);
+        burst = Listener.getInt (command, config, BURST_KEY, DEFAULT_BURST, 1, 1_000_000) * interval;
+    }
+    
+    /**
+     * Add the admission options to a set of options.
+     * 
+     * @param opts The options to add to.
+     */
+    public static void add_options (Options opts)
+    {
+        opts.addOption (null, ALLOW_KEY, true, "Comma separated addresses or subnets allowed to send multicast")
+                .addOption (null, RATE_KEY, true, "Messages per second allowed from each sender (default " + DEFAULT_RATE + ")")
+                .addOption (null, BURST_KEY, true, "Messages each sender can send at once (default " + DEFAULT_BURST + ")");
+    }
+    
+    /**
+     * See if a packet from a sender should be let in.
+     * 
+     * @param sender The sender.
+     * @param now The time now in nanoseconds.
+     * 
+     * @return If it's allowed.
+     */
+    public boolean admit (InetAddress sender, long now)
+    {
+        if (allow.length != 0 && !allowed (sender))
+        {
+            refused += 1;
+            return false;
+        }
+        
+        // For IPv4 the hash code is the address itself
+        final int key = sender.hashCode ();
+        final int slot = (key ^ (key >>> 16)) & (TABLE_SIZE - 1);
+        
+        // A sender in an unused slot starts with a full bucket but one that
+        // displaces another starts with an empty one. Otherwise a sender
+        // could dodge its limit by cycling through colliding addresses.
+        if (!used[slot])
+        {
+            used[slot] = true;
+            keys[slot] = key;
+            due[slot] = now;
+        }
+        else if (keys[slot] != key)
+        {
+            keys[slot] = key;
+            due[slot] = Math.max (due[slot], now + burst);
+        }
+        
+        // Each message pushes the sender's next due time on by the interval
+        final long next = Math.max (due[slot], now);
+        
+        if (next - now > burst - interval)
+        {
+            limited += 1;
+            return false;
+        }
+        
+        due[slot] = next + interval;
+        return true;
+    }
+    
+    /**
+     * See if a sender is on the allow list.
+     * 
+     * @param sender The sender.
+     * @return If it's on the list.
+     */
+    private boolean allowed (InetAddress sender)
+    {
+        final int v4 = (sender instanceof Inet4Address) ? sender.hashCode () : 0;
+        byte[] bytes = null;
+        
+        for (int i = 0; i < allow.length; ++i)
+        {
+            final byte[] a = allow[i];
+            final int bits = prefix[i];
+            
+            if (a.length == 4)
+            {
+                if (!(sender instanceof Inet4Address))
+                    continue;
+                
+                final int net = ((a[0] & 0xff) << 24) | ((a[1] & 0xff) << 16) | ((a[2] & 0xff) << 8) | (a[3] & 0xff);
+                final int mask = (bits == 0) ? 0 : -1 << (32 - bits);
+                
+                if (((v4 ^ net) & mask) == 0)
+                    return true;
+            }
+            else
+            {
+                if (sender instanceof Inet4Address)
+                    continue;
+                
+                // IPv6 is rare enough that the copy doesn't matter
+                if (bytes == null)
+                    bytes = sender.getAddress ();
+                
+                if (matches (bytes, a, bits))
+                    return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * See if an address is in a subnet.
+     * 
+     * @param address The address.
+     * @param net The subnet address.
+     * @param bits The length of the subnet prefix.
+     * 
+     * @return If it is.
+     */
+    private static boolean matches (byte[] address, byte[] net, int bits)
+    {
+        int i = 0;
+        
+        for (; bits >= 8; bits -= 8, ++i)
+            if (address[i] != net[i])
+                return false;
+        
+        if (bits == 0)
+            return true;
+        
+        final int mask = (0xff << (8 - bits)) & 0xff;
+        
+        return ((address[i] ^ net[i]) & mask) == 0;
+    }
+    
+    /**
+     * Get the number of packets refused as the sender isn't allowed.
+     * @return The count.
+     */
+    public long getRefused ()
+    {
+        return refused;
+    }
+    
+    /**
+     * Get the number of packets refused for going over the rate.
+     * @return The count.
+     */
+    public long getLimited ()
+    {
+        return limited;
+    }
+    
+    /** Command line long name for the allow list. */
+    public static final String ALLOW_KEY = "multicast-allow";
+    /** Command line long name for the rate. */
+    public static final String RATE_KEY = "multicast-rate";
+    /** Command line long name for the burst size. */
+    public static final String BURST_KEY = "multicast-burst";
+    
+    /** The default messages per second from each sender. */
+    public static final int DEFAULT_RATE = 5;
+    /** The default messages each sender can send at once. */
+    public static final int DEFAULT_BURST = 20;
+    
+    /** The number of senders tracked, a power of two. */
+    private static final int TABLE_SIZE = 256;
+    
+    /** The allowed subnet addresses, none for anyone. */
+    private final byte[][] allow;
+    /** The allowed subnet prefix lengths. */
+    private final int[] prefix;
+    /** The time each message uses up in nanoseconds. */
+    private final long interval;
+    /** The time a full bucket holds in nanoseconds. */
+    private final long burst;
+    /** If each slot has a sender in it. */
+    private final boolean[] used = new boolean[TABLE_SIZE];
+    /** The sender in each slot. */
+    private final int[] keys = new int[TABLE_SIZE];
+    /** When each sender's bucket will next be full. */
+    private final long[] due = new long[TABLE_SIZE];
+    /** The number refused for not being allowed. */
+    private volatile long refused = 0;
+    /** The number refused for going over the rate. */
+    private volatile long limited = 0;
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * Drives a Display through transitions, or any other Scene, on its own
+ * thread. Each frame is worked out from the monotonic clock so a fade takes
+ * the same time however slow the display is. The frame rate adapts to how
+ * long the display takes to show a frame, if we fall behind frames are
+ * simply skipped and when nothing is changing the thread waits without using
+ * any CPU at all.
+ * 
+ * In realtime mode, rather than trusting the scheduler to wake it on time,
+ * the thread wakes a little early, parks for most of the rest of the wait
+ * and spins for the last moment. This costs some CPU while animating but
+ * keeps the frames evenly spaced on a busy machine. Either way the time
+ * between frames and how late each frame was are kept in histograms and
+ * logged every so often.
+ * 
+ * Realtime mode also asks for the thread's priority to be raised, but on
+ * Linux the JVM ignores Java thread priorities unless it's run as root
+ * with -XX:ThreadPriorityPolicy=1. Without that the thread runs at the
+ * same priority as everything else; to favour it anyway start the whole
+ * JVM with, say, nice -n -10 or chrt.
+ * 
+ * @author Jim Darby
+ */
+public class Animator implements Runnable
+{
+    private static final Logger LOG = Logger.getLogger ("Animator");
+    
+    /**
+     * Create an animator. It doesn't start running until the go method is
+     * called.
+     * 
+     * @param name The name of the animator, used for the thread.
+     * @param size The number of pixels in the display.
+     * @param display The display to drive.
+     * @param duration How long a fade takes in milliseconds.
+     * @param easing The easing curve for fades.
+     */
+    public Animator (String name, int size, Display display, long duration, Easing easing)
+    {
+        this.name = name;
+        this.display = display;
+        this.duration = duration * 1_000_000;
+        this.easing = easing;
+        
+        frame = new int[size];
+    }
+    
+    /**
+     * Start running the animator. This is a non-blocking call that starts a
+     * background thread to update the display.
+     */
+    public synchronized void go ()
+    {
+        thread = new Thread (this, name + " Animator");
+        
+        thread.setDaemon (true);
+        thread.setPriority (realtime ? Thread.MAX_PRIORITY : Thread.NORM_PRIORITY);
+        thread.start ();
+    }
+    
+    /**
+     * Add the animation options to a set of options.
+     * 
+     * @param opts The options to add to.
+     */
+    public static void add_options (Options opts)
+    {
+        opts.addOption (null, REALTIME_KEY, false, "Spin for evenly spaced frames at the cost of some CPU. Raising the thread priority also needs root and -XX:ThreadPriorityPolicy=1 on Linux")
+                .addOption (null, MIN_INTERVAL_KEY, true, "Shortest time between frames in milliseconds (default " + DEFAULT_MIN_INTERVAL / 1_000_000 + ")");
+        
+        Governor.add_options (opts);
+    }
+    
+    /**
+     * Read the animation options.
+     * 
+     * @param command The command line.
+     */
+    public void handle_args (CommandLine command)
+    {
+        setRealtime (command.hasOption (REALTIME_KEY));
+        
+        try
+        {
+            if (command.hasOption (MIN_INTERVAL_KEY))
+                setMinInterval (Long.parseLong (command.getOptionValue (MIN_INTERVAL_KEY)));
+        }
+        
+        catch (NumberFormatException e)
+        {
+            LOG.log (Level.WARNING, "Invalid frame interval: {0}", command.getOptionValue (MIN_INTERVAL_KEY));
+        }
+        
+        Governor.handle_args (command, this);
+    }
+    
+    /**
+     * Leave longer between frames than asked for, for example to save CPU
+     * when the machine is busy.
+     * 
+     * @param scale How many times longer, at least one.
+     */
+    public synchronized void setIntervalScale (int scale)
+    {
+        interval_scale = Math.max (1, scale);
+    }
+    
+    /**
+     * Make fades shorter than asked for. This applies from the next fade.
+     * 
+     * @param scale How much of the fade to keep, zero to change straight
+     * away.
+     */
+    public synchronized void setFadeScale (double scale)
+    {
+        fade_scale = Math.max (0, Math.min (1, scale));
+    }
+    
+    /**
+     * Turn realtime mode on or off.
+     * 
+     * @param realtime If we should be in realtime mode.
+     */
+    public synchronized void setRealtime (boolean realtime)
+    {
+        this.realtime = realtime;
+        
+        if (thread != null)
+            thread.setPriority (realtime ? Thread.MAX_PRIORITY : Thread.NORM_PRIORITY);
+    }
+    
+    /**
+     * Get the times between frames while animating.
+     * 
+     * @return The histogram, in nanoseconds, since the last report.
+     */
+    public FrameHistogram getFrameTimes ()
+    {
+        return frame_times;
+    }
+    
+    /**
+     * Get how late frames were compared to when they were due.
+     * 
+     * @return The histogram, in nanoseconds, since the last report.
+     */
+    public FrameHistogram getJitter ()
+    {
+        return jitter;
+    }
+    
+    /**
+     * Fade from what's on the display to a new frame. This returns straight
+     * away. If a fade is already in progress the new one starts from
+     * whatever is being shown at the moment so rapid updates blend smoothly
+     * into each other rather than queueing up.
+     * 
+     * @param target The new frame. This is copied.
+     */
+    public synchronized void fade (int[] target)
+    {
+        fade (target, System.nanoTime ());
+    }
+    
+    /**
+     * Fade to a new frame starting at a given time. Whatever is on the
+     * display carries on until then, so displays told to start at the same
+     * time change together.
+     * 
+     * @param target The new frame. This is copied.
+     * @param at When to start, from System.nanoTime.
+     */
+    public synchronized void fade (int[] target, long at)
+    {
+        final long now = System.nanoTime ();
+        final long begin = Math.max (now, at);
+        final Scene before = Handover.prune ((scene != null) ? scene : previous, now, begin);
+        final int[] from = new int[frame.length];
+        
+        if (before != null)
+            before.render (begin, from);
+        
+        final Transition fade = new Transition (from, target, begin, (long) (duration * fade_scale), easing);
+        
+        play ((before == null || begin == now) ? fade : new Handover (before, fade, begin));
+    }
+    
+    /**
+     * Start playing a scene. It carries on until its render method says it's
+     * finished. Playing the scene that's already running just makes sure it's
+     * awake, which is how a scene that has changed asks to be redrawn.
+     * 
+     * @param scene The scene.
+     */
+    public synchronized void play (Scene scene)
+    {
+        this.scene = scene;
+        previous = scene;
+        plays += 1;
+        notifyAll ();
+    }
+    
+    /**
+     * Show the last scene again, for example after the colour correction
+     * has changed. This does nothing if a scene is playing as that will
+     * redraw anyway.
+     */
+    public synchronized void refresh ()
+    {
+        if (scene == null && previous != null)
+        {
+            scene = previous;
+            plays += 1;
+            notifyAll ();
+        }
+    }
+    
+    /**
+     * Set the shortest time between frames. The actual time will be longer
+     * if the display takes a while to show a frame.
+     * 
+     * @param interval The interval in milliseconds.
+     */
+    public synchronized void setMinInterval (long interval)
+    {
+        min_interval = interval * 1_000_000;
+    }
+    
+    /**
+     * Run the animation. This never returns.
+     */
+    @Override
+    public void run ()
+    {
+        // When the frame is due, zero if it's not been planned
+        long due = 0;
+        long last = 0;
+        long reported = System.nanoTime ();
+        
+        try
+        {
+            while (true)
+            {
+                final Scene t;
+                final long played;
+                
+                // Park until there's something to do
+                synchronized (this)
+                {
+                    while (scene == null)
+                        wait ();
+                    
+                    t = scene;
+                    played = plays;
+                }
+                
+                final long start = System.nanoTime ();
+                
+                // Only frames in a run count, not the first after a rest
+                if (due != 0)
+                {
+                    frame_times.record (start - last);
+                    jitter.record (start - due);
+                }
+                
+                last = start;
+                
+                if (start - reported >= REPORT_INTERVAL)
+                {
+                    report ();
+                    reported = start;
+                }
+                
+                final boolean more = t.render (start, frame);
+                
+                try
+                {
+                    display.show (frame);
+                }
+                
+                catch (IOException e)
+                {
+                    LOG.log (Level.WARNING, "{0} failed to show frame: {1}",
+                            new Object[] {name, e.getLocalizedMessage ()});
+                }
+                
+                final long end = System.nanoTime ();
+                
+                due = 0;
+                
+                synchronized (this)
+                {
+                    // Keep a running average of how long a frame takes
+                    // to get onto the display.
+                    cost += ((end - start) - cost) / 8;
+                    
+                    // Finished, unless we've been given something new
+                    if (!more && plays == played)
+                    {
+                        scene = null;
+                        continue;
+                    }
+                    
+                    // Give the bus some breathing space if it's slow. If
+                    // we're already late we go straight on and the next
+                    // frame skips ahead.
+                    final long interval = Math.min (Math.max (min_interval * interval_scale, 2 * cost), MAX_INTERVAL);
+                    final long change = t.nextChange (start);
+                    
+                    // If nothing happens for a while wake up just as it does
+                    final long next = (change - start > 0) ? change : start + interval;
+                    
+                    // In realtime mode leave the end of the wait to the spin
+                    final long early = realtime ? SPIN : 0;
+                    long remaining;
+                    
+                    while ((remaining = next - System.nanoTime () - early) > 0 && plays == played)
+                        wait (remaining / 1_000_000, (int) (remaining % 1_000_000));
+                    
+                    if (plays == played && change - start <= 0)
+                        due = next;
+                }
+                
+                // Park for most of what's left, which is far more precise
+                // than wait, and spin for the very end
+                long left;
+                
+                while (due != 0 && (left = due - System.nanoTime ()) > 0)
+                {
+                    if (left > PARK_MARGIN)
+                        LockSupport.parkNanos (left - PARK_MARGIN);
+                    else
+                        Thread.yield ();
+                }
+            }
+        }
+        
+        catch (InterruptedException e)
+        {
+            LOG.log (Level.INFO, "{0} animator stopped", name);
+        }
+    }
+    
+    /**
+     * Log how smoothly we've been running and start again.
+     */
+    private void report ()
+    {
+        if (frame_times.getCount () > 0)
+            LOG.log (Level.INFO, "{0} frame times {1}, late by {2}",
+                    new Object[] {name, frame_times, jitter});
+        
+        frame_times.reset ();
+        jitter.reset ();
+    }
+    
+    /**
+     * Plays one scene until a given time and then another.
+     */
+    private static class Handover implements Scene
+    {
+        /**
+         * Create a handover.
+         * 
+         * @param before The scene until the handover.
+         * @param after The scene after.
+         * @param at When to hand over, from System.nanoTime.
+         */
+        Handover (Scene before, Scene after, long at)
+        {
+            this.before = before;
+            this.after = after;
+            this.at = at;
+        }
+        
+        @Override
+        public boolean render (long now, int[] frame)
+        {
+            if (now - at < 0)
+            {
+                before.render (now, frame);
+                return true;
+            }
+            
+            return after.render (now, frame);
+        }
+        
+        @Override
+        public long nextChange (long now)
+        {
+            if (now - at < 0)
+                return Math.min (before.nextChange (now), at);
+            
+            return after.nextChange (now);
+        }
+        
+        /**
+         * Drop the parts of a scene that can no longer be shown, so
+         * scheduled fades don't build up an endless chain of handovers.
+         * Handovers that have already happened are replaced by the scene
+         * after them and ones at or after the time the scene stops being
+         * used by the scene before them.
+         * 
+         * @param scene The scene, which may be null.
+         * @param now The time now, from System.nanoTime.
+         * @param until When the scene stops being used.
+         * 
+         * @return The pruned scene.
+         */
+        static Scene prune (Scene scene, long now, long until)
+        {
+            if (!(scene instanceof Handover))
+                return scene;
+            
+            final Handover h = (Handover) scene;
+            
+            if (h.at - now <= 0)
+                return prune (h.after, now, until);
+            
+            if (h.at - until >= 0)
+                return prune (h.before, now, until);
+            
+            final Scene before = prune (h.before, now, h.at);
+            
+            return (before == h.before) ? h : new Handover (before, h.after, h.at);
+        }
+        
+        /** The scene until the handover. */
+        private final Scene before;
+        /** The scene after. */
+        private final Scene after;
+        /** When to hand over. */
+        private final long at;
+    }
+    
+    /** Command line long name for realtime mode. */
+    public static final String REALTIME_KEY = "realtime";
+    /** Command line long name for the shortest time between frames. */
+    public static final String MIN_INTERVAL_KEY = "min-frame-interval";
+    
+    /** The default shortest time between frames in nanoseconds. */
+    private static final long DEFAULT_MIN_INTERVAL = 20_000_000;
+    /** The longest time between frames in nanoseconds, however slow the display is. */
+    private static final long MAX_INTERVAL = 200_000_000;
+    /** How long before a frame to start spinning in realtime mode in nanoseconds. */
+    private static final long SPIN = 2_000_000;
+    /** How long before a frame to stop parking and spin in nanoseconds. */
+    private static final long PARK_MARGIN = 200_000;
+    /** How often to log the histograms in nanoseconds. */
+    private static final long REPORT_INTERVAL = 60_000_000_000L;
+    
+    /** Our name. */
+    private final String name;
+    /** The display we drive. */
+    private final Display display;
+    /** How long a fade takes in nanoseconds. */
+    private final long duration;
+    /** The easing curve for fades. */
+    private final Easing easing;
+    /** The frame being shown. */
+    private final int[] frame;
+    /** The scene being played, null if the display is static. */
+    private Scene scene = null;
+    /** The most recent scene, finished or not. */
+    private Scene previous = null;
+    /** Counts calls to play so we know if we've been asked to carry on. */
+    private long plays = 0;
+    /** The shortest time between frames in nanoseconds. */
+    private long min_interval = DEFAULT_MIN_INTERVAL;
+    /** The average time to show a frame in nanoseconds. */
+    private long cost = 0;
+    /** How many times longer to leave between frames. */
+    private int interval_scale = 1;
+    /** How much of each fade to keep. */
+    private double fade_scale = 1;
+    /** If we're in realtime mode. */
+    private boolean realtime = false;
+    /** Our thread, null until we've started. */
+    private Thread thread = null;
+    /** The times between frames. */
+    private final FrameHistogram frame_times = new FrameHistogram ();
+    /** How late frames were. */
+    private final FrameHistogram jitter = new FrameHistogram ();
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * A logging handler that hands records to a background thread so logging
+ * never holds up the caller with console or SD card writes. The queue is
+ * bounded and records beyond it are counted and dropped. The background
+ * thread writes records in batches and limits how many it writes from
+ * each logger per second, reporting how many it left out.
+ * 
+ * @author Jim Darby
+ */
+public class AsyncHandler extends Handler
+{
+    /**
+     * Create a handler.
+     * 
+     * @param targets The handlers that do the actual writing.
+     * @param capacity The maximum number of records waiting.
+     * @param limit The maximum number of records per logger per second.
+     */
+    public AsyncHandler (Handler[] targets, int capacity, int limit)
+    {
+        this.targets = targets.clone ();
+        this.capacity = capacity;
+        this.limit = limit;
+        
+        writer = new Thread (this::run, "Log writer");
+        writer.setDaemon (true);
+        writer.start ();
+    }
+    
+    /**
+     * Move all the handlers of the root logger behind an asynchronous
+     * handler. Call this after the handlers have been set up.
+     */
+    public static void install ()
+    {
+        final Logger root = Logger.getLogger ("");
+        final Handler[] handlers = root.getHandlers ();
+        
+        if (handlers.length == 0)
+            return;
+        
+        // Don't wrap twice
+        for (Handler h : handlers)
+            if (h instanceof AsyncHandler)
+                return;
+        
+        for (Handler h : handlers)
+            root.removeHandler (h);
+        
+        root.addHandler (new AsyncHandler (handlers, DEFAULT_CAPACITY, DEFAULT_LIMIT));
+    }
+    
+    /**
+     * Queue a record to be written.
+     * 
+     * @param record The record.
+     */
+    @Override
+    public void publish (LogRecord record)
+    {
+        if (!isLoggable (record))
+            return;
+        
+        if (size.incrementAndGet () > capacity)
+        {
+            size.decrementAndGet ();
+            overflow.incrementAndGet ();
+            return;
+        }
+        
+        // The caller can only be worked out from the calling thread
+        record.getSourceClassName ();
+        queue.offer (record);
+        
+        if (idle)
+            LockSupport.unpark (writer);
+    }
+    
+    /**
+     * Wait briefly for the queue to drain and flush the targets.
+     */
+    @Override
+    public void flush ()
+    {
+        final long end = System.nanoTime () + FLUSH_WAIT;
+        
+        while (size.get () > 0 && System.nanoTime () < end)
+        {
+            LockSupport.unpark (writer);
+            Thread.yield ();
+        }
+        
+        for (Handler h : targets)
+            h.flush ();
+    }
+    
+    /**
+     * Flush and close the targets.
+     */
+    @Override
+    public void close ()
+    {
+        flush ();
+        
+        for (Handler h : targets)
+            h.close ();
+    }
+    
+    /**
+     * The background thread. Writes out records in batches.
+     */
+    private void run ()
+    {
+        while (true)
+        {
+            LogRecord r = queue.poll ();
+            
+            if (r == null)
+            {
+                idle = true;
+                
+                // Check again in case a record arrived before we said we were idle
+                if (queue.isEmpty ())
+                    LockSupport.parkNanos (IDLE_WAIT);
+                
+                idle = false;
+                summarise (System.currentTimeMillis ());
+                continue;
+            }
+            
+            int batch = 0;
+            
+            while (r != null)
+            {
+                size.decrementAndGet ();
+                
+                if (allowed (r))
+                    write (r);
+                
+                if (++batch == BATCH)
+                    break;
+                
+                r = queue.poll ();
+            }
+            
+            for (Handler h : targets)
+                h.flush ();
+        }
+    }
+    
+    /**
+     * See if a record is within its logger's limit.
+     * 
+     * @param r The record.
+     * @return If it should be written.
+     */
+    private boolean allowed (LogRecord r)
+    {
+        if (r.getLevel ().intValue () >= Level.SEVERE.intValue ())
+            return true;
+        
+        final long now = r.getMillis ();
+        
+        summarise (now);
+        
+        final String name = (r.getLoggerName () == null) ? "" : r.getLoggerName ();
+        Window w = windows.get (name);
+        
+        if (w == null)
+        {
+            w = new Window (now);
+            windows.put (name, w);
+        }
+        
+        if (w.written < limit)
+        {
+            w.written += 1;
+            return true;
+        }
+        
+        w.suppressed += 1;
+        return false;
+    }
+    
+    /**
+     * Close any windows that have finished, reporting what they left out.
+     * 
+     * @param now The current time in milliseconds.
+     */
+    private void summarise (long now)
+    {
+        for (Iterator<Map.Entry<String,Window>> i = windows.entrySet ().iterator (); i.hasNext ();)
+        {
+            final Map.Entry<String,Window> e = i.next ();
+            final Window w = e.getValue ();
+            
+            if (now - w.start < WINDOW)
+                continue;
+            
+            if (w.suppressed > 0)
+            {
+                final LogRecord s = new LogRecord (Level.INFO, "{0} similar messages suppressed");
+                
+                s.setLoggerName (e.getKey ());
+                s.setSourceClassName (e.getKey ());
+                s.setParameters (new Object[] {w.suppressed});
+                write (s);
+            }
+            
+            i.remove ();
+        }
+        
+        final int lost = overflow.getAndSet (0);
+        
+        if (lost > 0)
+        {
+            final LogRecord s = new LogRecord (Level.WARNING, "{0} messages dropped as the log queue was full");
+            
+            s.setLoggerName ("AsyncHandler");
+            s.setSourceClassName ("AsyncHandler");
+            s.setParameters (new Object[] {lost});
+            write (s);
+        }
+    }
+    
+    /**
+     * Pass a record on to all the targets.
+     * 
+     * @param r The record.
+     */
+    private void write (LogRecord r)
+    {
+        for (Handler h : targets)
+        {
+            try
+            {
+                h.publish (r);
+            }
+            
+            catch (RuntimeException e)
+            {
+                reportError (null, e, java.util.logging.ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+    
+    /**
+     * What's been written for a logger in the current second.
+     */
+    private static class Window
+    {
+        /**
+         * Start a window.
+         * 
+         * @param start When it starts.
+         */
+        Window (long start)
+        {
+            this.start = start;
+        }
+        
+        /** When the window started, in milliseconds. */
+        final long start;
+        /** How many records have been written. */
+        int written = 0;
+        /** How many have been left out. */
+        int suppressed = 0;
+    }
+    
+    /** The default number of records waiting. */
+    public static final int DEFAULT_CAPACITY = 1024;
+    /** The default number of records per logger per second. */
+    public static final int DEFAULT_LIMIT = 20;
+    
+    /** The length of a rate limiting window in milliseconds. */
+    private static final long WINDOW = 1000;
+    /** The most records to write between flushes. */
+    private static final int BATCH = 64;
+    /** How long the writer sleeps when there's nothing to do. */
+    private static final long IDLE_WAIT = 250_000_000;
+    /** How long flush waits for the queue to drain. */
+    private static final long FLUSH_WAIT = 500_000_000;
+    
+    /** Where records end up. */
+    private final Handler[] targets;
+    /** The maximum number of records waiting. */
+    private final int capacity;
+    /** The maximum number of records per logger per window. */
+    private final int limit;
+    /** The records waiting. */
+    private final ConcurrentLinkedQueue<LogRecord> queue = new ConcurrentLinkedQueue<> ();
+    /** The number of records waiting. */
+    private final AtomicInteger size = new AtomicInteger ();
+    /** The number of records dropped since the last report. */
+    private final AtomicInteger overflow = new AtomicInteger ();
+    /** The current window of each logger, only used by the writer. */
+    private final Map<String,Window> windows = new HashMap<> ();
+    /** The background writer. */
+    private final Thread writer;
+    /** Set while the writer has nothing to do. */
+    private volatile boolean idle = false;
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Blends two frames of 0xrrggbb pixels. A plain loop is used unless the
+ * JDK Vector API version is asked for with -Dcheerlights.blender=vector,
+ * which needs VectorBlender from the vector source tree on the class path
+ * and the jdk.incubator.vector module.
+ * 
+ * Both work on the packed pixels directly. Red and blue are done together
+ * in one multiply and green in another; each channel times a weight of at
+ * most 256 fits in 16 bits so the channels can't interfere with each other.
+ * 
+ * @author Jim Darby
+ */
+public abstract class Blender
+{
+    private static final Logger LOG = Logger.getLogger ("Blender");
+    
+    /**
+     * Blend two frames.
+     * 
+     * @param from The frame we're blending from.
+     * @param to The frame we're blending to.
+     * @param step How much of to we want out of 256.
+     * @param out Where to put the result.
+     */
+    public abstract void blend (int[] from, int[] to, int step, int[] out);
+    
+    /**
+     * Get the blender to use.
+     * 
+     * @return The blender.
+     */
+    public static Blender get ()
+    {
+        return Holder.BEST;
+    }
+    
+    /**
+     * Blend a range of pixels one at a time.
+     * 
+     * @param from The frame we're blending from.
+     * @param to The frame we're blending to.
+     * @param step How much of to we want out of 256.
+     * @param out Where to put the result.
+     * @param start The first pixel to blend.
+     */
+    protected static void blend (int[] from, int[] to, int step, int[] out, int start)
+    {
+        final int left = 256 - step;
+        
+        for (int i = start; i < out.length; ++i)
+        {
+            final int f = from[i];
+            final int t = to[i];
+            final int rb = (((f & 0xff00ff) * left + (t & 0xff00ff) * step) >>> 8) & 0xff00ff;
+            final int g  = (((f & 0x00ff00) * left + (t & 0x00ff00) * step) >>> 8) & 0x00ff00;
+            
+            out[i] = rb | g;
+        }
+    }
+    
+    /**
+     * Load the vector blender, if it's there.
+     * 
+     * @return The blender or null if it can't be loaded.
+     */
+    private static Blender vector ()
+    {
+        try
+        {
+            return (Blender) Class.forName ("Jimbo.Cheerlights.VectorBlender").getDeclaredConstructor ().newInstance ();
+        }
+        
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Holds the blender, only worked out when it's first needed.
+     */
+    private static class Holder
+    {
+        private static final Blender BEST = select ();
+        
+        /**
+         * Pick the blender, the vector one only if it's asked for and we
+         * can load it.
+         * 
+         * @return The blender.
+         */
+        private static Blender select ()
+        {
+            if ("vector".equals (System.getProperty (BLENDER_PROPERTY)))
+            {
+                final Blender b = vector ();
+                
+                if (b != null)
+                {
+                    LOG.log (Level.INFO, "Using vector blender");
+                    return b;
+                }
+                
+                LOG.log (Level.WARNING, "Vector blender asked for but not available");
+            }
+            
+            return new ScalarBlender ();
+        }
+    }
+    
+    /**
+     * Compare the speed of the blenders.
+     * 
+     * @param args The number of pixels, defaults to 100000.
+     */
+    public static void main (String args[])
+    {
+        final int size = (args.length > 0) ? Integer.parseInt (args[0]) : 100000;
+        final Random random = new Random (42);
+        final int[] from = new int[size];
+        final int[] to = new int[size];
+        final int[] out = new int[size];
+        final int[] check = new int[size];
+        
+        for (int i = 0; i < size; ++i)
+        {
+            from[i] = random.nextInt () & 0xffffff;
+            to[i] = random.nextInt () & 0xffffff;
+        }
+        
+        final Blender v = vector ();
+        
+        if (v == null)
+        {
+            System.out.println ("No vector blender to compare with");
+            return;
+        }
+        
+        final Blender[] blenders = {new ScalarBlender (), v};
+        
+        for (Blender b : blenders)
+        {
+            // Warm up
+            for (int i = 0; i < 2000; ++i)
+                b.blend (from, to, i & 0xff, out);
+            
+            final int rounds = 5000;
+            final long start = System.nanoTime ();
+            
+            for (int i = 0; i < rounds; ++i)
+                b.blend (from, to, i & 0xff, out);
+            
+            final long time = System.nanoTime () - start;
+            
+            System.out.printf ("%s: %.3f ns/pixel, %.1f us/frame%n", b.getClass ().getSimpleName (),
+                    (double) time / rounds / size, time / 1000.0 / rounds);
+        }
+        
+        // Make sure they agree
+        for (int step = 0; step <= 256; ++step)
+        {
+            blenders[0].blend (from, to, step, check);
+            blenders[1].blend (from, to, step, out);
+            
+            for (int i = 0; i < size; ++i)
+                if (check[i] != out[i])
+                    throw new java.lang.AssertionError ("Blenders disagree at step " + step + " pixel " + i);
+        }
+        
+        System.out.println ("Results agree");
+    }
+    
+    /** The system property that picks the blender. */
+    private static final String BLENDER_PROPERTY = "cheerlights.blender";
+}
@@ -25,8 +25,9 @@ import java.net.UnknownHostException;
 
 import Jimbo.Boards.com.pimoroni.Blinkt;
 
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.ParseException;
-import org.eclipse.paho.client.mqttv3.MqttException;
 
 /**
  * This class handles Cheerlights on the Pimoroni Blinkt.
@@ -45,6 +46,38 @@ public class BlinktLights implements CheerListener
        
         for (int i = 0; i < data.length; ++i)
             data[i] = 0;
+        
+        telemetry = new FrameTelemetry ("Blinkt", this::show);
+        pipeline = new ColourPipeline (telemetry, GAMMA);
+        animator = new Animator ("Blinkt", data.length, pipeline, 10000, Easing.SMOOTH);
+        pipeline.setOnChange (animator::refresh);
+        animator.go ();
+    }
+    
+    /**
+     * Add our colour, telemetry and animation options.
+     * 
+     * @param opts The options to add to.
+     */
+    @Override
+    public void add_options (Options opts)
+    {
+        pipeline.add_options (opts);
+        telemetry.add_options (opts);
+        Animator.add_options (opts);
+    }
+    
+    /**
+     * Read our colour, telemetry and animation options.
+     * 
+     * @param command The command line.
+     */
+    @Override
+    public void handle_args (CommandLine command)
+    {
+        pipeline.handle_args (command);
+        telemetry.handle_args (command);
+        animator.handle_args (command);
     }
     
     /**
@@ -54,56 +87,68 @@ public class BlinktLights implements CheerListener
      * @throws IOException In case of problems
      */
     @Override
-    public synchronized void update (int colour) throws IOException
+    public void update (int colour) throws IOException
     {
-        LOG.log (Level.INFO, "Update new colour {0}", Integer.toHexString(colour));
+        update (new CheerEvent (colour, null));
+    }
+    
+    /**
+     * Update the lights with several new colours in a single fade.
+     * 
+     * @param event The colours to update with
+     * @throws IOException In case of problems
+     */
+    @Override
+    public synchronized void update (CheerEvent event) throws IOException
+    {
+        LOG.log (Level.INFO, "Update new colours {0}", event);
         
+        final int n = Math.min (event.getCount (), data.length);
         int[] next = new int [data.length];
         
-        for (int i = 1; i < data.length; ++i)
-            next[i] = data[i-1];
+        // Shift along to make room and put the newest first
+        System.arraycopy (data, 0, next, n, data.length - n);
         
-        next[0] = colour;
+        for (int i = 0; i < n; ++i)
+            next[i] = event.getColour (event.getCount () - 1 - i);
         
-        for (int step = 1; step <= 100; ++step)
-        {
-            final int left = 100 - step;
-            
-            for (int i = 0; i < data.length; ++i)
-            {
-                final int r = (step * ((next[i] >> 16) & 0xff) + left * ((data[i] >> 16) & 0xff)) / 100;
-                final int g = (step * ((next[i] >>  8) & 0xff) + left * ((data[i] >>  8) & 0xff)) / 100;
-                final int b = (step * ((next[i]      ) & 0xff) + left * ((data[i]      ) & 0xff)) / 100;
-                
-                blinkt.set (i, r, g, b, 8);
-            }
-            
-            blinkt.show();
-            
-            try
-            {
-                Thread.sleep (100);
-            }
-            
-            catch (InterruptedException e)
-            {
-                LOG.log (Level.WARNING, "Interrupted sleep?");
-            }
-        }
+        animator.fade (next, SyncClock.toNanoTime (event.getApplyAt ()));
         
         data = next;
     }
     
-    public static void main (String args[]) throws IOException, UnknownHostException, InterruptedException, ParseException, MqttException
+    /**
+     * Show a frame on the Blinkt.
+     * 
+     * @param frame The frame to show.
+     * @throws IOException In case of problems
+     */
+    private void show (int[] frame) throws IOException
+    {
+        for (int i = 0; i < frame.length; ++i)
+            blinkt.set (i, (frame[i] >> 16) & 0xff, (frame[i] >> 8) & 0xff, frame[i] & 0xff, 8);
+        
+        blinkt.show ();
+    }
+    
+    public static void main (String args[]) throws IOException, UnknownHostException, InterruptedException, ParseException
     {
         // Set up simpler logging to stdout
         Jimbo.Logging.Logging.useStdout ();
+        AsyncHandler.install ();
         
         final CheerListener target = new BlinktLights ();
         
         Listener.setup (args, target);
     }
     
+    /** The default gamma for the LEDs. */
+    private static final double GAMMA = 2.2;
+    
     final Blinkt blinkt;
+    final Animator animator;
+    final ColourPipeline pipeline;
+    final FrameTelemetry telemetry;
+
     int[] data = new int[Blinkt.WIDTH];
 }
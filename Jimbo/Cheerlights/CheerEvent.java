@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+/**
+ * One or more colours that arrived together, typically from a single tweet,
+ * along with the text they came from.
+ * 
+ * @author Jim Darby
+ */
+public class CheerEvent
+{
+    /**
+     * Create an event with a single colour.
+     * 
+     * @param colour The colour as 0xrrggbb.
+     * @param text The associated text, may be null.
+     */
+    public CheerEvent (int colour, String text)
+    {
+        this (new int[] {colour}, text);
+    }
+    
+    /**
+     * Create an event with several colours, oldest first.
+     * 
+     * @param colours The colours as 0xrrggbb. This is copied.
+     * @param text The associated text, may be null.
+     */
+    public CheerEvent (int[] colours, String text)
+    {
+        this (colours, text, 0);
+    }
+    
+    /**
+     * Create an event with several colours that should be shown at a
+     * given time, so that several displays change together.
+     * 
+     * @param colours The colours as 0xrrggbb. This is copied.
+     * @param text The associated text, may be null.
+     * @param apply_at When to show them, in milliseconds since the epoch
+     * on the SyncClock, or zero for straight away.
+     */
+    public CheerEvent (int[] colours, String text, long apply_at)
+    {
+        if (colours.length == 0)
+            throw new IllegalArgumentException ("CheerEvent without a colour");
+        
+        this.colours = colours.clone ();
+        this.count = colours.length;
+        this.text = text;
+        this.apply_at = apply_at;
+    }
+    
+    /**
+     * Create an empty event to be filled in later. Used for preallocated
+     * slots that are reused over and over.
+     * 
+     * @param capacity The number of colours to allow room for.
+     */
+    CheerEvent (int capacity)
+    {
+        colours = new int[capacity];
+        count = 0;
+        text = null;
+        apply_at = 0;
+    }
+    
+    /**
+     * Overwrite this event with a copy of another. This only allocates if
+     * the other has more colours than we have room for. The other may be
+     * being rewritten while we copy, in which case the copy is rubbish and
+     * the caller has to spot that, but it's always safe to make.
+     * 
+     * @param from The event to copy.
+     */
+    void copy (CheerEvent from)
+    {
+        // Read each field once so they can't change under us
+        final int[] c = from.colours;
+        final int n = Math.min (from.count, c.length);
+        
+        if (colours.length < n)
+            colours = new int[n];
+        
+        System.arraycopy (c, 0, colours, 0, n);
+        count = n;
+        text = from.text;
+        apply_at = from.apply_at;
+    }
+    
+    /**
+     * Get the number of colours.
+     * 
+     * @return The number of colours.
+     */
+    public int getCount ()
+    {
+        return count;
+    }
+    
+    /**
+     * Get one of the colours.
+     * 
+     * @param i Which colour, 0 is the oldest.
+     * @return The colour as 0xrrggbb.
+     */
+    public int getColour (int i)
+    {
+        if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException ("Colour " + i + " of " + count);
+        
+        return colours[i];
+    }
+    
+    /**
+     * Get the newest colour.
+     * 
+     * @return The colour as 0xrrggbb.
+     */
+    public int getLatest ()
+    {
+        return colours[count - 1];
+    }
+    
+    /**
+     * Get the associated text.
+     * 
+     * @return The text or null if there isn't any.
+     */
+    public String getText ()
+    {
+        return text;
+    }
+    
+    /**
+     * Get when the colours should be shown.
+     * 
+     * @return The time in milliseconds since the epoch on the SyncClock,
+     * or zero for straight away.
+     */
+    public long getApplyAt ()
+    {
+        return apply_at;
+    }
+    
+    /**
+     * Convert the event to a string.
+     * 
+     * @return The colours in hex.
+     */
+    @Override
+    public String toString ()
+    {
+        final StringBuilder result = new StringBuilder ();
+        
+        for (int i = 0; i < count; ++i)
+        {
+            if (i > 0)
+                result.append (' ');
+            
+            result.append (Integer.toHexString (colours[i]));
+        }
+        
+        return result.toString ();
+    }
+    
+    /** The colours, oldest first. */
+    private int[] colours;
+    /** The number of colours. */
+    private int count;
+    /** The associated text. */
+    private String text;
+    /** When to show the colours, zero for straight away. */
+    private long apply_at;
+}
@@ -33,6 +33,20 @@ public interface CheerListener
      */
     public void update (int colour) throws IOException;
     
+    /**
+     * Update a CheerListener with several colours at once. By default each
+     * colour is handled in turn but a CheerListener can do better, for
+     * example by fading all the new colours in together.
+     * 
+     * @param event The colours.
+     * @throws IOException In case of error.
+     */
+    default public void update (CheerEvent event) throws IOException
+    {
+        for (int i = 0; i < event.getCount (); ++i)
+            update (event.getColour (i));
+    }
+    
     /**
      * Allow a CheerListen to add command line options.
      * 
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.time.LocalTime;
+
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * Colour correction between an Animator and a device. Each channel goes
+ * through a precomputed table that applies gamma correction and the
+ * brightness so a frame costs three lookups per pixel. The table has
+ * eight bits of fraction which can be used to dither over time, making
+ * slow fades at low levels smoother than the device could otherwise show.
+ * The brightness can follow a schedule, for example to dim at night.
+ * 
+ * @author Jim Darby
+ */
+public class ColourPipeline implements Display
+{
+    private static final Logger LOG = Logger.getLogger ("ColourPipeline");
+    
+    /**
+     * Create a colour pipeline.
+     * 
+     * @param display The device to send corrected frames to.
+     * @param gamma The default gamma for the device.
+     */
+    public ColourPipeline (Display display, double gamma)
+    {
+        this.display = display;
+        this.gamma = gamma;
+        
+        build ();
+    }
+    
+    /**
+     * Add the colour options to a set of options.
+     * 
+     * @param opts The options to add to.
+     */
+    public void add_options (Options opts)
+    {
+        opts.addOption (null, GAMMA_KEY, true, "Gamma correction (default " + gamma + ")")
+                .addOption (null, BRIGHTNESS_KEY, true, "Brightness from 0 to 1 (default 1)")
+                .addOption (null, SCHEDULE_KEY, true, "Brightness schedule, e.g. 07:00=1,22:30=0.2")
+                .addOption (null, DITHER_KEY, false, "Dither to smooth low level fades");
+    }
+    
+    /**
+     * Read the colour options.
+     * 
+     * @param command The command line.
+     */
+    public void handle_args (CommandLine command)
+    {
+        try
+        {
+            if (command.hasOption (GAMMA_KEY))
+                setGamma (Double.parseDouble (command.getOptionValue (GAMMA_KEY)));
+            
+            if (command.hasOption (BRIGHTNESS_KEY))
+                setBrightness (Double.parseDouble (command.getOptionValue (BRIGHTNESS_KEY)));
+            
+            if (command.hasOption (SCHEDULE_KEY))
+                setSchedule (command.getOptionValue (SCHEDULE_KEY));
+        }
+        
+        catch (IllegalArgumentException e)
+        {
+            LOG.log (Level.WARNING, "Ignoring invalid colour setting: {0}", e.getLocalizedMessage ());
+        }
+        
+        setDither (command.hasOption (DITHER_KEY));
+    }
+    
+    /**
+     * Set the gamma.
+     * 
+     * @param gamma The new gamma, must be positive.
+     */
+    public synchronized void setGamma (double gamma)
+    {
+        if (!(gamma > 0))
+            throw new IllegalArgumentException ("Invalid gamma " + gamma);
+        
+        this.gamma = gamma;
+        build ();
+    }
+    
+    /**
+     * Set the brightness. If there is a schedule it will override this at
+     * the next change.
+     * 
+     * @param brightness The brightness in the range [0,1].
+     */
+    public synchronized void setBrightness (double brightness)
+    {
+        if (!(brightness >= 0 && brightness <= 1))
+            throw new IllegalArgumentException ("Invalid brightness " + brightness);
+        
+        this.brightness = brightness;
+        build ();
+    }
+    
+    /**
+     * Turn dithering on or off.
+     * 
+     * @param dither If we should dither.
+     */
+    public synchronized void setDither (boolean dither)
+    {
+        this.dither = dither;
+    }
+    
+    /**
+     * Set something to be told when the brightness changes on its own. This
+     * is typically used to redraw a static display.
+     * 
+     * @param on_change What to run.
+     */
+    public synchronized void setOnChange (Runnable on_change)
+    {
+        this.on_change = on_change;
+    }
+    
+    /**
+     * Set a brightness schedule. This is a comma separated list of times and
+     * brightnesses, for example "07:00=1,22:30=0.2". The brightness at any
+     * time is that of the most recent entry.
+     * 
+     * @param spec The schedule.
+     */
+    public synchronized void setSchedule (String spec)
+    {
+        final TreeMap<LocalTime,Double> s = new TreeMap<> ();
+        
+        for (String entry : spec.split (","))
+        {
+            final String[] parts = entry.trim ().split ("=");
+            
+            if (parts.length != 2)
+                throw new IllegalArgumentException ("Invalid schedule entry " + entry);
+            
+            final double level = Double.parseDouble (parts[1]);
+            
+            if (!(level >= 0 && level <= 1))
+                throw new IllegalArgumentException ("Invalid brightness " + parts[1]);
+            
+            s.put (LocalTime.parse (parts[0].trim ()), level);
+        }
+        
+        schedule = s;
+        
+        if (timer == null)
+        {
+            timer = new Timer ("Brightness schedule", true);
+            timer.scheduleAtFixedRate (new TimerTask ()
+            {
+                @Override
+                public void run ()
+                {
+                    checkSchedule ();
+                }
+            }, 0, 60000);
+        }
+    }
+    
+    /**
+     * Show a frame, correcting it on the way through.
+     * 
+     * @param frame The frame to show.
+     * @throws IOException In case of error.
+     */
+    @Override
+    public void show (int[] frame) throws IOException
+    {
+        synchronized (this)
+        {
+            if (out.length != frame.length)
+            {
+                out = new int[frame.length];
+                error = new int[frame.length * 3];
+            }
+            
+            final int[] t = table;
+            
+            if (dither)
+            {
+                // Carry the fraction of each channel over to the next frame
+                for (int i = 0, e = 0; i < frame.length; ++i, e += 3)
+                {
+                    final int r = t[(frame[i] >> 16) & 0xff] + error[e];
+                    final int g = t[(frame[i] >>  8) & 0xff] + error[e + 1];
+                    final int b = t[(frame[i]      ) & 0xff] + error[e + 2];
+                    
+                    error[e]     = r & 0xff;
+                    error[e + 1] = g & 0xff;
+                    error[e + 2] = b & 0xff;
+                    
+                    out[i] = ((r >> 8) << 16) | ((g >> 8) << 8) | (b >> 8);
+                }
+            }
+            else
+            {
+                final int[] t8 = table8;
+                
+                for (int i = 0; i < frame.length; ++i)
+                    out[i] = (t8[(frame[i] >> 16) & 0xff] << 16) |
+                             (t8[(frame[i] >>  8) & 0xff] <<  8) |
+                              t8[(frame[i]      ) & 0xff];
+            }
+        }
+        
+        display.show (out);
+    }
+    
+    /**
+     * See if the schedule has changed the brightness.
+     */
+    private void checkSchedule ()
+    {
+        final Runnable r;
+        
+        synchronized (this)
+        {
+            Map.Entry<LocalTime,Double> e = schedule.floorEntry (LocalTime.now ());
+            
+            // Before the first entry of the day we're still on the last
+            if (e == null)
+                e = schedule.lastEntry ();
+            
+            if (e.getValue () == brightness)
+                return;
+            
+            LOG.log (Level.INFO, "Scheduled brightness {0}", e.getValue ());
+            brightness = e.getValue ();
+            build ();
+            r = on_change;
+        }
+        
+        if (r != null)
+            r.run ();
+    }
+    
+    /**
+     * Build the lookup tables.
+     */
+    private void build ()
+    {
+        final int[] t = new int[256];
+        final int[] t8 = new int[256];
+        
+        for (int i = 0; i < 256; ++i)
+        {
+            // Output in 8.8 fixed point, but never above 255
+            final double v = brightness * Math.pow (i / 255.0, gamma) * 255 * 256;
+            
+            t[i] = (int) Math.min (Math.round (v), 255 * 256);
+            t8[i] = (t[i] + 128) >> 8;
+        }
+        
+        table = t;
+        table8 = t8;
+    }
+    
+    /** Command line long name for gamma. */
+    public static final String GAMMA_KEY = "gamma";
+    /** Command line long name for brightness. */
+    public static final String BRIGHTNESS_KEY = "brightness";
+    /** Command line long name for the brightness schedule. */
+    public static final String SCHEDULE_KEY = "brightness-schedule";
+    /** Command line long name for dithering. */
+    public static final String DITHER_KEY = "dither";
+    
+    /** Where we send the corrected frames. */
+    private final Display display;
+    /** The corrected frame. */
+    private int[] out = new int[0];
+    /** The fractions carried over by dithering. */
+    private int[] error = new int[0];
+    /** The gamma. */
+    private double gamma;
+    /** The brightness. */
+    private double brightness = 1;
+    /** If we're dithering. */
+    private boolean dither = false;
+    /** The lookup table with 8 bits of fraction. */
+    private int[] table;
+    /** The lookup table rounded to whole values. */
+    private int[] table8;
+    /** The brightness schedule. */
+    private TreeMap<LocalTime,Double> schedule;
+    /** The timer that checks the schedule, if there is one. */
+    private Timer timer = null;
+    /** What to tell when the brightness changes. */
+    private Runnable on_change = null;
+}
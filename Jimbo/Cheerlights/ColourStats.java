@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import Jimbo.MQTT.MQTTClient;
+
+/**
+ * Keeps count of the colours seen over the last minute, hour and day so
+ * we can say what's popular. Each period is a ring of buckets holding a
+ * count per palette colour, plus one for anything else, with a running
+ * total so a count is a single array lookup. Summaries can be published
+ * to MQTT and the most popular colours can be fed to a display in place of
+ * every individual colour.
+ * 
+ * @author Jim Darby
+ */
+public class ColourStats implements CheerListener
+{
+    private static final Logger LOG = Logger.getLogger ("ColourStats");
+    
+    /** The periods counted over. */
+    public enum Period
+    {
+        /** The last minute, in seconds. */
+        MINUTE (60, 1_000_000_000L),
+        /** The last hour, in minutes. */
+        HOUR (60, 60_000_000_000L),
+        /** The last day, in ten minute steps. */
+        DAY (144, 600_000_000_000L);
+        
+        /**
+         * Create a period.
+         * 
+         * @param buckets The number of buckets.
+         * @param length The length of each bucket in nanoseconds.
+         */
+        Period (int buckets, long length)
+        {
+            this.buckets = buckets;
+            this.length = length;
+        }
+        
+        /** The number of buckets. */
+        final int buckets;
+        /** The length of each bucket in nanoseconds. */
+        final long length;
+    }
+    
+    /**
+     * Create an empty set of statistics.
+     */
+    public ColourStats ()
+    {
+        final long now = System.nanoTime ();
+        
+        windows = new Window[Period.values ().length];
+        
+        for (Period p : Period.values ())
+            windows[p.ordinal ()] = new Window (p, now);
+    }
+    
+    /**
+     * Count a single colour.
+     * 
+     * @param colour The colour.
+     */
+    @Override
+    public synchronized void update (int colour)
+    {
+        final long now = System.nanoTime ();
+        final int slot = slot (colour);
+        
+        for (Window w : windows)
+            w.add (slot, now);
+    }
+    
+    /**
+     * Count several colours.
+     * 
+     * @param event The colours.
+     */
+    @Override
+    public synchronized void update (CheerEvent event)
+    {
+        final long now = System.nanoTime ();
+        
+        for (int i = 0; i < event.getCount (); ++i)
+        {
+            final int slot = slot (event.getColour (i));
+            
+            for (Window w : windows)
+                w.add (slot, now);
+        }
+    }
+    
+    /**
+     * Get the count of a palette colour over a period.
+     * 
+     * @param period The period.
+     * @param index The colour's index in the palette.
+     * 
+     * @return The count.
+     */
+    public synchronized int getCount (Period period, int index)
+    {
+        final Window w = windows[period.ordinal ()];
+        
+        w.advance (System.nanoTime ());
+        return w.totals[index];
+    }
+    
+    /**
+     * Get the most popular palette colours over a period. Colours that
+     * haven't been seen at all aren't included.
+     * 
+     * @param period The period.
+     * @param k The most colours to return.
+     * 
+     * @return The palette indexes, most popular first.
+     */
+    public synchronized int[] top (Period period, int k)
+    {
+        final Window w = windows[period.ordinal ()];
+        final int[] result = new int[Math.min (k, Colours.size ())];
+        int n = 0;
+        
+        w.advance (System.nanoTime ());
+        
+        // The palette is tiny so a selection is as good as anything
+        for (; n < result.length; ++n)
+        {
+            int best = -1;
+            
+            for (int i = 0; i < Colours.size (); ++i)
+                if (w.totals[i] > 0 && (best < 0 || w.totals[i] > w.totals[best]) && !contains (result, n, i))
+                    best = i;
+            
+            if (best < 0)
+                break;
+            
+            result[n] = best;
+        }
+        
+        return Arrays.copyOf (result, n);
+    }
+    
+    /**
+     * Summarise all the periods as JSON. Each period gives the counts of
+     * the colours seen, by name, with "other" for colours not in the
+     * palette, and the top three colours.
+     * 
+     * @return The summary.
+     */
+    public synchronized String toJSON ()
+    {
+        final JSONObject j = new JSONObject ();
+        
+        for (Period p : Period.values ())
+        {
+            final Window w = windows[p.ordinal ()];
+            final JSONObject counts = new JSONObject ();
+            final JSONArray best = new JSONArray ();
+            
+            w.advance (System.nanoTime ());
+            
+            for (int i = 0; i < Colours.size (); ++i)
+                if (w.totals[i] > 0)
+                    counts.put (Colours.name (i), w.totals[i]);
+            
+            if (w.totals[Colours.size ()] > 0)
+                counts.put ("other", w.totals[Colours.size ()]);
+            
+            for (int i : top (p, TOP))
+                best.put (Colours.name (i));
+            
+            j.put (p.name ().toLowerCase (), new JSONObject ().put ("counts", counts).put ("top", best));
+        }
+        
+        return j.toString ();
+    }
+    
+    /**
+     * Publish a summary to MQTT every so often.
+     * 
+     * @param mqtt The MQTT client.
+     * @param topic The topic to publish on.
+     * @param interval How often in seconds.
+     */
+    public void publish (MQTTClient mqtt, String topic, int interval)
+    {
+        publish (mqtt, topic, interval, () -> true);
+    }
+    
+    /**
+     * Publish a summary to MQTT every so often, but only while a condition
+     * holds. For example only the leader of several listeners sees the
+     * colours so only it should publish.
+     * 
+     * @param mqtt The MQTT client.
+     * @param topic The topic to publish on.
+     * @param interval How often in seconds.
+     * @param when If we should publish right now.
+     */
+    public void publish (MQTTClient mqtt, String topic, int interval, BooleanSupplier when)
+    {
+        timer ().scheduleAtFixedRate (new TimerTask ()
+        {
+            @Override
+            public void run ()
+            {
+                if (!when.getAsBoolean ())
+                    return;
+                
+                try
+                {
+                    mqtt.publish (topic, toJSON ());
+                }
+                
+                catch (MqttException e)
+                {
+                    LOG.log (Level.WARNING, "Failed to publish statistics: {0}", e.toString ());
+                }
+            }
+        }, interval * 1000L, interval * 1000L);
+    }
+    
+    /**
+     * Feed the most popular colours over a period to a display instead of
+     * every colour as it arrives. The display is only updated when the
+     * popular colours change, most popular last so it's treated as the
+     * newest.
+     * 
+     * @param target The display.
+     * @param period The period to look at.
+     * @param k How many colours to show.
+     * @param interval How often to check in seconds.
+     */
+    public void trend (CheerListener target, Period period, int k, int interval)
+    {
+        timer ().scheduleAtFixedRate (new TimerTask ()
+        {
+            @Override
+            public void run ()
+            {
+                final int[] best = top (period, k);
+                
+                if (best.length == 0 || Arrays.equals (best, shown))
+                    return;
+                
+                shown = best;
+                
+                final int[] colours = new int[best.length];
+                
+                for (int i = 0; i < best.length; ++i)
+                    colours[i] = Colours.colour (best[best.length - 1 - i]);
+                
+                try
+                {
+                    target.update (new CheerEvent (colours, "trend"));
+                }
+                
+                catch (IOException e)
+                {
+                    LOG.log (Level.WARNING, "Failed to show trend: {0}", e.getLocalizedMessage ());
+                }
+            }
+            
+            /** What was shown last. */
+            private int[] shown = new int[0];
+        }, 0, interval * 1000L);
+    }
+    
+    /**
+     * Get the timer, creating it if needed.
+     * 
+     * @return The timer.
+     */
+    private synchronized Timer timer ()
+    {
+        if (timer == null)
+            timer = new Timer ("Colour statistics", true);
+        
+        return timer;
+    }
+    
+    /**
+     * Find the slot a colour is counted in.
+     * 
+     * @param colour The colour.
+     * @return Its palette index or the slot after the palette if it's not there.
+     */
+    private static int slot (int colour)
+    {
+        final int i = Colours.index (colour);
+        
+        return (i < 0) ? Colours.size () : i;
+    }
+    
+    /**
+     * See if a value is in the start of an array.
+     * 
+     * @param a The array.
+     * @param n How much of it to look at.
+     * @param v The value.
+     * 
+     * @return If it's there.
+     */
+    private static boolean contains (int[] a, int n, int v)
+    {
+        for (int i = 0; i < n; ++i)
+            if (a[i] == v)
+                return true;
+        
+        return false;
+    }
+    
+    /**
+     * The counts over one period.
+     */
+    private static class Window
+    {
+        /**
+         * Create an empty window.
+         * 
+         * @param period The period it covers.
+         * @param now The time now.
+         */
+        Window (Period period, long now)
+        {
+            buckets = period.buckets;
+            length = period.length;
+            counts = new int[buckets * SLOTS];
+            current = Math.floorDiv (now, length);
+        }
+        
+        /**
+         * Count a colour.
+         * 
+         * @param slot The slot to count it in.
+         * @param now The time now.
+         */
+        void add (int slot, long now)
+        {
+            advance (now);
+            counts[(int) Math.floorMod (current, (long) buckets) * SLOTS + slot] += 1;
+            totals[slot] += 1;
+        }
+        
+        /**
+         * Move on to the bucket for the current time, emptying any buckets
+         * that have dropped out of the window on the way.
+         * 
+         * @param now The time now.
+         */
+        void advance (long now)
+        {
+            final long bucket = Math.floorDiv (now, length);
+            final long steps = Math.min (bucket - current, buckets);
+            
+            for (long s = 1; s <= steps; ++s)
+            {
+                final int base = (int) Math.floorMod (current + s, (long) buckets) * SLOTS;
+                
+                for (int i = 0; i < SLOTS; ++i)
+                {
+                    totals[i] -= counts[base + i];
+                    counts[base + i] = 0;
+                }
+            }
+            
+            if (bucket > current)
+                current = bucket;
+        }
+        
+        /** The number of buckets. */
+        final int buckets;
+        /** The length of a bucket in nanoseconds. */
+        final long length;
+        /** The counts in each bucket, one row of slots per bucket. */
+        final int[] counts;
+        /** The totals over all the buckets. */
+        final int[] totals = new int[SLOTS];
+        /** The number of the current bucket. */
+        long current;
+    }
+    
+    /** Command line long name for the statistics topic. */
+    public static final String STATS_TOPIC_KEY = "stats-topic";
+    /** Command line long name for the statistics interval. */
+    public static final String STATS_INTERVAL_KEY = "stats-interval";
+    /** Command line long name for trend mode. */
+    public static final String TREND_KEY = "trend";
+    
+    /** The default seconds between summaries. */
+    public static final int DEFAULT_STATS_INTERVAL = 60;
+    /** The number of colours shown in trend mode. */
+    public static final int TREND_COLOURS = 3;
+    /** The seconds between trend checks. */
+    public static final int TREND_INTERVAL = 10;
+    
+    /** The number of top colours in a summary. */
+    private static final int TOP = 3;
+    /** The number of counts per bucket: the palette and everything else. */
+    private static final int SLOTS = Colours.size () + 1;
+    
+    /** The windows, one per period. */
+    private final Window[] windows;
+    /** The timer for summaries and trends, if needed. */
+    private Timer timer = null;
+}
@@ -41,6 +41,62 @@ class Colours
 	return (result == null) ? -1 : result;
     }
     
+    /**
+     * Find a colour in the palette. Oldlace and warmwhite are the same
+     * colour so share an entry.
+     * 
+     * @param rgb The colour as 0xrrggbb.
+     * @return Its index in the palette or -1 if it isn't there.
+     */
+    public static int index (int rgb)
+    {
+        for (int i = 0; i < PALETTE.length; ++i)
+            if (PALETTE[i] == rgb)
+                return i;
+        
+        return -1;
+    }
+    
+    /**
+     * Get the number of colours in the palette.
+     * 
+     * @return The number of colours.
+     */
+    public static int size ()
+    {
+        return PALETTE.length;
+    }
+    
+    /**
+     * Get a colour from the palette.
+     * 
+     * @param index Its index.
+     * @return The colour as 0xrrggbb.
+     */
+    public static int colour (int index)
+    {
+        return PALETTE[index];
+    }
+    
+    /**
+     * Get the name of a colour in the palette.
+     * 
+     * @param index Its index.
+     * @return The name.
+     */
+    public static String name (int index)
+    {
+        return NAMES[index];
+    }
+    
+    /** The names of the distinct colours. */
+    private static final String[] NAMES = {"red", "green", "blue", "cyan", "white", "warmwhite",
+        "purple", "magenta", "yellow", "orange", "pink"};
+    
+    /** The distinct colours, in the same order as their names. */
+    private static final int[] PALETTE = {0xFF0000, 0x008000, 0x0000FF, 0x00FFFF, 0xFFFFFF, 0xFDF5E6,
+        0x800080, 0xFF00FF, 0xFFFF00, 0xFFA500, 0xFFC0CB};
+    
     /** Where we hold the colour mappings. */
     private static final HashMap <String, Integer> MAP;
     
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Combines the same colours arriving by more than one route, say MQTT and
+ * multicast, so they're only displayed once. Each route feeds its own path
+ * and whichever path delivers a colour first gets it passed on; later
+ * copies from the other paths are recognised by their colour and text
+ * within a time window and dropped. Each path keeps count of how often it
+ * won, how late it was when it didn't and what it never delivered at all.
+ * 
+ * @author Jim Darby
+ */
+public class Combiner
+{
+    private static final Logger LOG = Logger.getLogger ("Combiner");
+    
+    /**
+     * Create a combiner.
+     * 
+     * @param target Where to send the colours.
+     * @param window How long to remember colours for, in milliseconds.
+     */
+    public Combiner (CheerListener target, long window)
+    {
+        this.target = target;
+        this.window = window * 1_000_000;
+    }
+    
+    /**
+     * Add a path to the combiner.
+     * 
+     * @param name The name of the path.
+     * 
+     * @return The path, to be used as the target of an input.
+     */
+    public synchronized Path path (String name)
+    {
+        if (paths.size () == MAX_PATHS)
+            throw new IllegalStateException ("Combiner only supports " + MAX_PATHS + " paths");
+        
+        final Path p = new Path (name, paths.size ());
+        
+        paths.add (p);
+        
+        return p;
+    }
+    
+    /**
+     * Get the paths.
+     * 
+     * @return The paths.
+     */
+    public synchronized List<Path> getPaths ()
+    {
+        return new ArrayList<> (paths);
+    }
+    
+    /**
+     * Handle colours arriving on a path. Each colour is looked at on its own
+     * as one route may batch colours up that another sends separately.
+     * 
+     * @param path The path they came on.
+     * @param event The colours.
+     * 
+     * @throws IOException If the target fails.
+     */
+    private synchronized void arrive (Path path, CheerEvent event) throws IOException
+    {
+        final long now = System.nanoTime ();
+        final int count = event.getCount ();
+        
+        if (fresh.length < count)
+            fresh = new int[count];
+        
+        int n = 0;
+        
+        for (int i = 0; i < count; ++i)
+            if (first (path, now, event.getColour (i), event.getText ()))
+                fresh[n++] = event.getColour (i);
+        
+        if (now - last_report >= REPORT_INTERVAL)
+        {
+            last_report = now;
+            
+            if (LOG.isLoggable (Level.INFO))
+                for (Path p : paths)
+                    LOG.log (Level.INFO, "{0}", p);
+        }
+        
+        if (n == 0)
+            return;
+        
+        target.update ((n == count) ? event : new CheerEvent (Arrays.copyOf (fresh, n), event.getText (), event.getApplyAt ()));
+    }
+    
+    /**
+     * Note a colour arriving and see if it's the first time. The same
+     * colour and text can legitimately turn up more than once, so each
+     * path counts its copies and it's new when a path has seen it more often
+     * than any other.
+     * 
+     * @param path The path it came on.
+     * @param now The time now.
+     * @param colour The colour.
+     * @param text The text with it, if any.
+     * 
+     * @return If it's new.
+     */
+    private boolean first (Path path, long now, int colour, String text)
+    {
+        // FNV-1a over the colour and then the text
+        long hash = 0xcbf29ce484222325L;
+        
+        for (int shift = 0; shift < 32; shift += 8)
+            hash = (hash ^ ((colour >>> shift) & 0xff)) * 0x100000001b3L;
+        
+        if (text != null)
+            for (int i = 0; i < text.length (); ++i)
+                hash = (hash ^ text.charAt (i)) * 0x100000001b3L;
+        
+        final int slot = (int) (hash ^ (hash >>> 32)) & (TABLE_SIZE - 1);
+        final int base = slot * MAX_PATHS;
+        
+        path.arrivals += 1;
+        
+        if (used[slot] && (hashes[slot] != hash || now - times[slot] >= window))
+            retire (slot);
+        
+        if (!used[slot])
+        {
+            used[slot] = true;
+            hashes[slot] = hash;
+        }
+        
+        int most = 0;
+        
+        for (int i = 0; i < MAX_PATHS; ++i)
+            if (i != path.index && counts[base + i] > most)
+                most = counts[base + i];
+        
+        counts[base + path.index] += 1;
+        
+        if (counts[base + path.index] > most)
+        {
+            times[slot] = now;
+            path.firsts += 1;
+            return true;
+        }
+        
+        path.late += 1;
+        path.latency += now - times[slot];
+        return false;
+    }
+    
+    /**
+     * Forget a colour, charging any path that didn't deliver every copy of
+     * it with the losses. Paths that have never delivered anything aren't
+     * charged as they're probably not connected yet.
+     * 
+     * @param slot The slot it's in.
+     */
+    private void retire (int slot)
+    {
+        final int base = slot * MAX_PATHS;
+        int most = 0;
+        
+        for (int i = 0; i < MAX_PATHS; ++i)
+            most = Math.max (most, counts[base + i]);
+        
+        for (Path p : paths)
+        {
+            if (p.arrivals > 0)
+                p.losses += most - counts[base + p.index];
+            
+            counts[base + p.index] = 0;
+        }
+        
+        used[slot] = false;
+    }
+    
+    /**
+     * A route colours arrive by.
+     */
+    public class Path implements CheerListener
+    {
+        /**
+         * Create a path.
+         * 
+         * @param name Its name.
+         * @param index Its index in the counts.
+         */
+        private Path (String name, int index)
+        {
+            this.name = name;
+            this.index = index;
+        }
+        
+        /**
+         * Handle a single colour.
+         * 
+         * @param colour The colour.
+         * @throws IOException If the target fails.
+         */
+        @Override
+        public void update (int colour) throws IOException
+        {
+            arrive (this, new CheerEvent (colour, null));
+        }
+        
+        /**
+         * Handle several colours.
+         * 
+         * @param event The colours.
+         * @throws IOException If the target fails.
+         */
+        @Override
+        public void update (CheerEvent event) throws IOException
+        {
+            arrive (this, event);
+        }
+        
+        /**
+         * Get the name.
+         * @return The name.
+         */
+        public String getName ()
+        {
+            return name;
+        }
+        
+        /**
+         * Get the number of colours that arrived.
+         * @return The count.
+         */
+        public long getArrivals ()
+        {
+            synchronized (Combiner.this)
+            {
+                return arrivals;
+            }
+        }
+        
+        /**
+         * Get the number of colours this path delivered first.
+         * @return The count.
+         */
+        public long getFirsts ()
+        {
+            synchronized (Combiner.this)
+            {
+                return firsts;
+            }
+        }
+        
+        /**
+         * Get the number of colours another path delivered first.
+         * @return The count.
+         */
+        public long getLate ()
+        {
+            synchronized (Combiner.this)
+            {
+                return late;
+            }
+        }
+        
+        /**
+         * Get how late this path is on average when it isn't first.
+         * @return The time in nanoseconds.
+         */
+        public long getMeanLatency ()
+        {
+            synchronized (Combiner.this)
+            {
+                return (late == 0) ? 0 : latency / late;
+            }
+        }
+        
+        /**
+         * Get the number of colours this path never delivered.
+         * @return The count.
+         */
+        public long getLosses ()
+        {
+            synchronized (Combiner.this)
+            {
+                return losses;
+            }
+        }
+        
+        @Override
+        public String toString ()
+        {
+            synchronized (Combiner.this)
+            {
+                return name + ": " + arrivals + " arrived, " + firsts + " first, " + late + " late by "
+                        + ((late == 0) ? 0 : latency / late / 1_000_000) + "ms on average, " + losses + " lost";
+            }
+        }
+        
+        /** The name of the path. */
+        private final String name;
+        /** Its index in the counts. */
+        private final int index;
+        /** The number of colours that arrived. */
+        private long arrivals = 0;
+        /** The number delivered first. */
+        private long firsts = 0;
+        /** The number delivered after another path. */
+        private long late = 0;
+        /** The total time by which they were late. */
+        private long latency = 0;
+        /** The number never delivered. */
+        private long losses = 0;
+    }
+    
+    /** The default time to remember colours, in milliseconds. */
+    public static final long DEFAULT_WINDOW = 5000;
+    /** The most paths we handle. */
+    public static final int MAX_PATHS = 4;
+    
+    /** The number of colours remembered, a power of two. */
+    private static final int TABLE_SIZE = 256;
+    /** How often to log the statistics. */
+    private static final long REPORT_INTERVAL = 3_600_000_000_000L;
+    
+    /** Where the colours go. */
+    private final CheerListener target;
+    /** How long to remember colours for in nanoseconds. */
+    private final long window;
+    /** The paths. */
+    private final List<Path> paths = new ArrayList<> ();
+    /** If each slot is in use. */
+    private final boolean[] used = new boolean[TABLE_SIZE];
+    /** The hash of the colour in each slot. */
+    private final long[] hashes = new long[TABLE_SIZE];
+    /** When each slot's colour was last passed on. */
+    private final long[] times = new long[TABLE_SIZE];
+    /** How many copies of each colour arrived on each path. */
+    private final int[] counts = new int[TABLE_SIZE * MAX_PATHS];
+    /** Somewhere to gather the new colours from a batch. */
+    private int[] fresh = new int[4];
+    /** When the statistics were last logged. */
+    private long last_report = System.nanoTime ();
+}
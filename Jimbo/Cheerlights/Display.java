@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+/**
+ * Something that can display a frame of pixels. Each pixel is encoded as
+ * 0x00rrggbb, devices with single colour LEDs use just the bottom byte.
+ * 
+ * @author Jim Darby
+ */
+public interface Display
+{
+    /**
+     * Show a frame. The frame belongs to the caller and may be reused as soon
+     * as this returns.
+     * 
+     * @param frame The pixels to show.
+     * @throws IOException In case of error.
+     */
+    public void show (int[] frame) throws IOException;
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+/**
+ * Easing curves used to shape a transition. Each maps the fraction of the
+ * time that has passed, in the range [0,1], to how far along the
+ * transition we should be, also in the range [0,1].
+ * 
+ * @author Jim Darby
+ */
+public enum Easing
+{
+    /** Constant speed all the way. */
+    LINEAR
+    {
+        @Override
+        public double apply (double t)
+        {
+            return t;
+        }
+    },
+    
+    /** Start and finish gently (smoothstep). */
+    SMOOTH
+    {
+        @Override
+        public double apply (double t)
+        {
+            return t * t * (3 - 2 * t);
+        }
+    },
+    
+    /** Start slowly and speed up. */
+    EASE_IN
+    {
+        @Override
+        public double apply (double t)
+        {
+            return t * t;
+        }
+    },
+    
+    /** Start quickly and slow down. */
+    EASE_OUT
+    {
+        @Override
+        public double apply (double t)
+        {
+            return t * (2 - t);
+        }
+    };
+    
+    /**
+     * Apply the curve.
+     * 
+     * @param t The fraction of the time passed, in the range [0,1].
+     * @return How far along the transition we are, in the range [0,1].
+     */
+    public abstract double apply (double t);
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.lang.invoke.VarHandle;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads colour events from the inputs to any number of consumers. Events
+ * go into a preallocated ring of reusable slots and each consumer follows
+ * the ring on its own thread at its own pace, so adding a consumer costs
+ * no allocation per event and a slow consumer only delays itself. If a
+ * consumer falls a whole ring behind it skips the events it missed rather
+ * than holding everybody else up.
+ * 
+ * @author Jim Darby
+ */
+public class EventBus implements CheerListener
+{
+    private static final Logger LOG = Logger.getLogger ("EventBus");
+    
+    /** How a consumer waits for the next event. */
+    public enum WaitStrategy
+    {
+        /** Spin on the CPU, lowest latency but uses a whole core. */
+        BUSY_SPIN,
+        /** Spin for a while then yield the CPU. */
+        YIELDING,
+        /** Poll every tenth of a millisecond. */
+        SLEEPING,
+        /** Wait to be woken up, cheapest on the CPU. */
+        BLOCKING
+    }
+    
+    /**
+     * Create a bus.
+     * 
+     * @param size The number of slots in the ring, a power of two.
+     */
+    public EventBus (int size)
+    {
+        if (size <= 0 || (size & (size - 1)) != 0)
+            throw new IllegalArgumentException ("EventBus size must be a power of two");
+        
+        ring = new Slot[size];
+        mask = size - 1;
+        
+        for (int i = 0; i < size; ++i)
+            ring[i] = new Slot ();
+    }
+    
+    /**
+     * Publish a single colour.
+     * 
+     * @param colour The colour.
+     */
+    @Override
+    public void update (int colour)
+    {
+        update (new CheerEvent (colour, null));
+    }
+    
+    /**
+     * Publish an event. The event is copied into the ring so the caller can
+     * reuse it. Several inputs may publish at once, they take turns.
+     * 
+     * @param event The event.
+     */
+    @Override
+    public void update (CheerEvent event)
+    {
+        synchronized (this)
+        {
+            final long seq = cursor + 1;
+            final Slot slot = ring[(int) seq & mask];
+            
+            // Mark the slot as being written so readers know to skip it. The
+            // fence stops the event's plain stores being seen before the mark.
+            slot.sequence = -1;
+            VarHandle.storeStoreFence ();
+            slot.event.copy (event);
+            slot.sequence = seq;
+            cursor = seq;
+        }
+        
+        if (blocked.get () > 0)
+            synchronized (lock)
+            {
+                lock.notifyAll ();
+            }
+    }
+    
+    /**
+     * Add a consumer. It sees events published from now on.
+     * 
+     * @param name The name of the consumer, used for its thread.
+     * @param target Where to send the events. The event passed to it is only
+     * valid during the call.
+     * @param strategy How to wait for events.
+     * 
+     * @return The subscription.
+     */
+    public Subscription subscribe (String name, CheerListener target, WaitStrategy strategy)
+    {
+        final Subscription s = new Subscription (name, target, strategy, cursor + 1);
+        final Thread t = new Thread (s, name + " Consumer");
+        
+        s.thread = t;
+        t.setDaemon (true);
+        t.start ();
+        
+        return s;
+    }
+    
+    /**
+     * A consumer following the ring.
+     */
+    public class Subscription implements Runnable
+    {
+        /**
+         * Create a subscription.
+         * 
+         * @param name Our name.
+         * @param target Where to send the events.
+         * @param strategy How to wait.
+         * @param next The first event to read.
+         */
+        private Subscription (String name, CheerListener target, WaitStrategy strategy, long next)
+        {
+            this.name = name;
+            this.target = target;
+            this.strategy = strategy;
+            this.next = next;
+        }
+        
+        /**
+         * Follow the ring, passing events on to the target.
+         */
+        @Override
+        public void run ()
+        {
+            final CheerEvent event = new CheerEvent (4);
+            
+            try
+            {
+                while (!closed)
+                {
+                    final long available = waitFor (next);
+                    
+                    if (closed)
+                        break;
+                    
+                    // If we've been lapped jump to the oldest event still there
+                    if (available - next >= ring.length)
+                    {
+                        skip (available - ring.length + 1 - next);
+                        next = available - ring.length + 1;
+                    }
+                    
+                    final Slot slot = ring[(int) next & mask];
+                    
+                    if (slot.sequence != next)
+                    {
+                        skip (1);
+                        next += 1;
+                        continue;
+                    }
+                    
+                    event.copy (slot.event);
+                    
+                    // Make sure it didn't change while we were copying it.
+                    // The fence keeps the copy's plain loads before the check.
+                    VarHandle.acquireFence ();
+                    
+                    if (slot.sequence != next)
+                    {
+                        skip (1);
+                        next += 1;
+                        continue;
+                    }
+                    
+                    next += 1;
+                    
+                    try
+                    {
+                        target.update (event);
+                        delivered += 1;
+                    }
+                    
+                    catch (IOException | RuntimeException e)
+                    {
+                        LOG.log (Level.WARNING, "{0} failed to handle event: {1}",
+                                new Object[] {name, e.toString ()});
+                    }
+                }
+            }
+            
+            catch (InterruptedException e)
+            {
+                LOG.log (Level.INFO, "{0} consumer stopped", name);
+            }
+        }
+        
+        /**
+         * Stop following the ring. A consumer that's waiting stops straight
+         * away, one that's busy once it's finished its event.
+         */
+        public void close ()
+        {
+            closed = true;
+            
+            synchronized (lock)
+            {
+                lock.notifyAll ();
+            }
+            
+            if (thread != null)
+                LockSupport.unpark (thread);
+        }
+        
+        /**
+         * Get the number of events delivered.
+         * 
+         * @return The count.
+         */
+        public long getDelivered ()
+        {
+            return delivered;
+        }
+        
+        /**
+         * Get the number of events missed by falling behind.
+         * 
+         * @return The count.
+         */
+        public long getDropped ()
+        {
+            return dropped;
+        }
+        
+        /**
+         * Wait for an event to be published.
+         * 
+         * @param seq The event we want.
+         * @return The newest event published, at least seq.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        private long waitFor (long seq) throws InterruptedException
+        {
+            long available;
+            int spins = 0;
+            
+            while ((available = cursor) < seq && !closed)
+            {
+                switch (strategy)
+                {
+                    case BUSY_SPIN:
+                        Thread.onSpinWait ();
+                        break;
+                        
+                    case YIELDING:
+                        if (++spins < 100)
+                            Thread.onSpinWait ();
+                        else
+                            Thread.yield ();
+                        break;
+                        
+                    case SLEEPING:
+                        LockSupport.parkNanos (100_000);
+                        break;
+                        
+                    case BLOCKING:
+                        blocked.incrementAndGet ();
+                        
+                        try
+                        {
+                            synchronized (lock)
+                            {
+                                while (cursor < seq && !closed)
+                                    lock.wait ();
+                            }
+                        }
+                        
+                        finally
+                        {
+                            blocked.decrementAndGet ();
+                        }
+                        break;
+                }
+                
+                if (Thread.interrupted ())
+                    throw new InterruptedException ();
+            }
+            
+            return available;
+        }
+        
+        /**
+         * Note that we've missed some events.
+         * 
+         * @param n How many.
+         */
+        private void skip (long n)
+        {
+            dropped += n;
+            LOG.log (Level.WARNING, "{0} fell behind and missed {1} events", new Object[] {name, n});
+        }
+        
+        /** Our name. */
+        private final String name;
+        /** Where we send events. */
+        private final CheerListener target;
+        /** How we wait. */
+        private final WaitStrategy strategy;
+        /** The next event we want. */
+        private long next;
+        /** How many events we've delivered. */
+        private volatile long delivered = 0;
+        /** How many we've missed. */
+        private volatile long dropped = 0;
+        /** If we've been asked to stop. */
+        private volatile boolean closed = false;
+        /** The thread following the ring. */
+        private volatile Thread thread = null;
+    }
+    
+    /**
+     * A slot in the ring.
+     */
+    private static class Slot
+    {
+        /** The event in the slot, reused. */
+        final CheerEvent event = new CheerEvent (4);
+        /** The sequence number of the event or -1 while it's being written. */
+        volatile long sequence = -1;
+    }
+    
+    /** The default number of slots. */
+    public static final int DEFAULT_SIZE = 256;
+    
+    /** The ring of slots. */
+    private final Slot[] ring;
+    /** Turns a sequence number into a slot number. */
+    private final int mask;
+    /** The most recently published event. */
+    private volatile long cursor = -1;
+    /** The number of consumers waiting to be woken. */
+    private final AtomicInteger blocked = new AtomicInteger ();
+    /** What blocking consumers wait on. */
+    private final Object lock = new Object ();
+}
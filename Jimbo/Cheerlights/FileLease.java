@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A lease held as a lock on a file, for processes on the same machine. The
+ * operating system drops the lock when the holder exits, however it exits,
+ * so another process can take over at its next renewal.
+ * 
+ * @author Jim Darby
+ */
+public class FileLease implements Lease
+{
+    /**
+     * Create a lease on a file, creating the file if needed.
+     * 
+     * @param name The name of the file.
+     * @param period How often to try for the lock in milliseconds.
+     * 
+     * @throws IOException If the file can't be opened.
+     */
+    public FileLease (String name, int period) throws IOException
+    {
+        channel = FileChannel.open (Paths.get (name), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.period = period;
+    }
+    
+    @Override
+    public synchronized boolean renew () throws IOException
+    {
+        if (lock != null && lock.isValid ())
+            return true;
+        
+        try
+        {
+            lock = channel.tryLock ();
+        }
+        
+        catch (OverlappingFileLockException e)
+        {
+            // Another lease in this process has it
+            lock = null;
+        }
+        
+        return lock != null;
+    }
+    
+    @Override
+    public synchronized void release ()
+    {
+        try
+        {
+            if (lock != null)
+                lock.release ();
+        }
+        
+        catch (IOException e)
+        {
+            // It goes when we exit anyway
+        }
+        
+        lock = null;
+    }
+    
+    @Override
+    public int getPeriod ()
+    {
+        return period;
+    }
+    
+    /** The file. */
+    private final FileChannel channel;
+    /** How often to try for the lock in milliseconds. */
+    private final int period;
+    /** The lock, if we hold it. */
+    private FileLock lock = null;
+}
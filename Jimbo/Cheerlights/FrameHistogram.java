@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+/**
+ * A histogram of times, good to about six percent, that records without
+ * allocating anything. Times are put in buckets of sixteen per power of two
+ * so it covers nanoseconds to hours in a thousand buckets.
+ * 
+ * @author Jim Darby
+ */
+public class FrameHistogram
+{
+    /**
+     * Record a time.
+     * 
+     * @param time The time in nanoseconds. Negative times count as zero.
+     */
+    public synchronized void record (long time)
+    {
+        if (time < 0)
+            time = 0;
+        
+        counts[bucket (time)] += 1;
+        count += 1;
+        
+        if (time > max)
+            max = time;
+    }
+    
+    /**
+     * Get a percentile. This is the top of the bucket it falls in, so it
+     * errs on the high side, but never above the largest time recorded.
+     * 
+     * @param p The percentile, from 0 to 100.
+     * @return The time in nanoseconds or zero if nothing's been recorded.
+     */
+    public synchronized long percentile (double p)
+    {
+        if (count == 0)
+            return 0;
+        
+        final long rank = Math.max (1, (long) Math.ceil (p / 100 * count));
+        long seen = 0;
+        
+        for (int i = 0; i < counts.length; ++i)
+        {
+            seen += counts[i];
+            
+            if (seen >= rank)
+                return Math.min (top (i), max);
+        }
+        
+        return max;
+    }
+    
+    /**
+     * Get the largest time recorded.
+     * 
+     * @return The time in nanoseconds.
+     */
+    public synchronized long getMax ()
+    {
+        return max;
+    }
+    
+    /**
+     * Get the number of times recorded.
+     * 
+     * @return The count.
+     */
+    public synchronized long getCount ()
+    {
+        return count;
+    }
+    
+    /**
+     * Forget everything.
+     */
+    public synchronized void reset ()
+    {
+        java.util.Arrays.fill (counts, 0);
+        count = 0;
+        max = 0;
+    }
+    
+    /**
+     * Summarise the histogram in milliseconds.
+     * 
+     * @return The summary.
+     */
+    @Override
+    public synchronized String toString ()
+    {
+        return String.format ("p50 %.2f p99 %.2f max %.2f ms",
+                percentile (50) / 1e6, percentile (99) / 1e6, max / 1e6);
+    }
+    
+    /**
+     * Find the bucket for a time.
+     * 
+     * @param time The time, not negative.
+     * @return The bucket.
+     */
+    private static int bucket (long time)
+    {
+        if (time < SUB_BUCKETS)
+            return (int) time;
+        
+        // The power of two picks the group, the next bits the bucket in it
+        final int shift = 63 - Long.numberOfLeadingZeros (time) - SUB_BITS;
+        
+        return (shift + 1) * SUB_BUCKETS + (int) ((time >>> shift) & (SUB_BUCKETS - 1));
+    }
+    
+    /**
+     * Find the largest time that goes in a bucket.
+     * 
+     * @param bucket The bucket.
+     * @return The time.
+     */
+    private static long top (int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        
+        return low + (1L << shift) - 1;
+    }
+    
+    /**
+     * Check the buckets fit together.
+     * 
+     * @param args Not used.
+     */
+    public static void main (String args[])
+    {
+        for (long t = 0; t < 10_000_000; t = (t < 100) ? t + 1 : t + t / 37)
+        {
+            final int b = bucket (t);
+            
+            if (top (b) < t || (b > 0 && top (b - 1) >= t) || (t > 0 && top (b) > t + t / 15))
+            {
+                System.out.println ("Bad bucket for " + t);
+                return;
+            }
+        }
+        
+        final FrameHistogram h = new FrameHistogram ();
+        
+        for (int i = 1; i <= 1000; ++i)
+            h.record (i * 1000L);
+        
+        System.out.println (h + " (expect about 0.50, 0.99, 1.00)");
+    }
+    
+    /** The number of bits for the bucket within a power of two. */
+    private static final int SUB_BITS = 4;
+    /** The number of buckets for each power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    
+    /** The count in each bucket. */
+    private final long[] counts = new long[(64 - SUB_BITS) * SUB_BUCKETS];
+    /** The number of times recorded. */
+    private long count = 0;
+    /** The largest time recorded. */
+    private long max = 0;
+}
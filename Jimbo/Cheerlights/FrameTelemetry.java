@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Passes frames on to a display and publishes a copy of them to MQTT, so a
+ * dashboard can show what a display is showing without going to look.
+ * Frames are published at most a few times a second and most of them only
+ * carry the pixels that changed, with the whole frame sent every so often
+ * so a dashboard that's just started, or lost a message, can catch up.
+ * Keyframes are retained by the broker and a display that goes quiet gets a
+ * keyframe of the frame it ended on, so a dashboard that subscribes while
+ * the display is idle still gets the frame it's showing.
+ * 
+ * Each message starts with a type byte, KEYFRAME or DELTA, a sequence
+ * number byte that goes up by one each message and a two byte count, most
+ * significant byte first. A keyframe follows this with three bytes, red,
+ * green and blue, for each pixel. A delta has a two byte pixel index and
+ * three colour bytes for each changed pixel. If a sequence number is
+ * missed deltas should be ignored until the next keyframe.
+ * 
+ * The display's own thread only copies the frame; all the encoding and
+ * sending happens on a thread of our own.
+ * 
+ * @author Jim Darby
+ */
+public class FrameTelemetry implements Display
+{
+    private static final Logger LOG = Logger.getLogger ("FrameTelemetry");
+    
+    /**
+     * Create the telemetry. It passes frames through but doesn't publish
+     * anything until started.
+     * 
+     * @param name The name of the display, for the publisher's thread.
+     * @param display The display to pass frames on to.
+     */
+    public FrameTelemetry (String name, Display display)
+    {
+        this.name = name;
+        this.display = display;
+    }
+    
+    /**
+     * Add the telemetry options to a set of options.
+     * 
+     * @param opts The options to add to.
+     */
+    public void add_options (Options opts)
+    {
+        opts.addOption (null, TOPIC_KEY, true, "MQTT topic to publish the frames shown on")
+                .addOption (null, RATE_KEY, true, "Frames a second to publish at most (default " + DEFAULT_RATE + ")");
+    }
+    
+    /**
+     * Read the telemetry options and start publishing if there's a topic.
+     * This uses the MQTT broker and client name given to the Listener.
+     * 
+     * @param command The command line.
+     */
+    public void handle_args (CommandLine command)
+    {
+        try
+        {
+            final Properties config = Listener.getConfig (command);
+            final String topic = Listener.getValue (command, config, TOPIC_KEY, null);
+            
+            if (topic == null)
+                return;
+            
+            final String broker = Listener.getValue (command, config, Listener.MQTT_BROKER_KEY, null);
+            final String client = Listener.getValue (command, config, Listener.MQTT_CLIENT_KEY, null);
+            
+            if (broker == null || client == null)
+                throw new ParseException ("Frame topic without MQTT broker and client name");
+            
+            start (broker, client + "-frames", topic, Listener.getInt (command, config, RATE_KEY, DEFAULT_RATE, 1, 100));
+        }
+        
+        catch (ParseException e)
+        {
+            LOG.log (Level.WARNING, "Not publishing frames: {0}", e.getLocalizedMessage ());
+        }
+    }
+    
+    /**
+     * Start publishing frames.
+     * 
+     * @param broker The URL of the broker.
+     * @param client The client name to use.
+     * @param topic The topic to publish on.
+     * @param rate The most frames a second to publish.
+     */
+    public synchronized void start (String broker, String client, String topic, int rate)
+    {
+        if (supervisor != null)
+            return;
+        
+        interval = 1_000_000_000L / rate;
+        keyframe_every = KEYFRAME_SECONDS * rate;
+        supervisor = MQTTInputs.frames (name + " frames", broker, client, topic, this);
+        supervisor.go ();
+    }
+    
+    /**
+     * Show a frame, keeping a copy for the publisher.
+     * 
+     * @param frame The frame to show.
+     * @throws IOException In case of error.
+     */
+    @Override
+    public void show (int[] frame) throws IOException
+    {
+        display.show (frame);
+        
+        if (supervisor == null)
+            return;
+        
+        synchronized (this)
+        {
+            if (latest.length != frame.length)
+                latest = new int[frame.length];
+            
+            System.arraycopy (frame, 0, latest, 0, frame.length);
+            fresh = true;
+            notifyAll ();
+        }
+    }
+    
+    /**
+     * Publish frames as they arrive, until something fails. Frames are sent
+     * no faster than the rate but whichever is the latest when one is due
+     * goes out, so the last frame of a fade isn't lost.
+     * Once the display goes quiet after a delta the frame it ended on is
+     * sent again as a keyframe, so the retained keyframe is what's showing.
+     * 
+     * @param sink Where to send them.
+     * 
+     * @throws IOException If they can't be sent.
+     * @throws InterruptedException If we're interrupted.
+     */
+    void publish (Sink sink) throws IOException, InterruptedException
+    {
+        int[] previous = new int[0];
+        int[] current = new int[0];
+        byte[] buffer = new byte[0];
+        long due = System.nanoTime ();
+        
+        // Start with a keyframe, we don't know what anyone's seen
+        int since_keyframe = Integer.MAX_VALUE;
+        boolean settled = true;
+        
+        while (true)
+        {
+            final boolean idle;
+            
+            synchronized (this)
+            {
+                for (long left = due - System.nanoTime (); left > 0; left = due - System.nanoTime ())
+                    TimeUnit.NANOSECONDS.timedWait (this, left);
+                
+                // After a delta wait an interval for more before calling
+                // the display idle; after a keyframe just wait
+                final long quiet = System.nanoTime () + interval;
+                
+                for (long left = interval; !fresh && (settled || left > 0); left = quiet - System.nanoTime ())
+                {
+                    if (settled)
+                        wait ();
+                    else
+                        TimeUnit.NANOSECONDS.timedWait (this, left);
+                }
+                
+                idle = !fresh;
+                
+                if (fresh)
+                {
+                    if (current.length != latest.length)
+                        current = new int[latest.length];
+                    
+                    System.arraycopy (latest, 0, current, 0, latest.length);
+                    fresh = false;
+                }
+            }
+            
+            if (buffer.length < 4 + 5 * Math.max (current.length, previous.length))
+                buffer = new byte[4 + 5 * Math.max (current.length, previous.length)];
+            
+            final int length;
+            
+            if (idle)
+                length = keyframe (previous, buffer);
+            else if (previous.length != current.length || since_keyframe >= keyframe_every)
+                length = keyframe (current, buffer);
+            else
+                length = delta (previous, current, buffer);
+            
+            // Nothing changed so nothing to say
+            if (length == 4 && buffer[0] == DELTA)
+                continue;
+            
+            if (buffer[0] == KEYFRAME)
+                since_keyframe = 0;
+            else
+                since_keyframe += 1;
+            
+            settled = buffer[0] == KEYFRAME;
+            
+            // Keyframes are retained so late subscribers start with one
+            buffer[1] = (byte) sequence++;
+            sink.send (Arrays.copyOf (buffer, length), buffer[0] == KEYFRAME);
+            due = System.nanoTime () + interval;
+            
+            if (!idle)
+            {
+                final int[] t = previous;
+                
+                previous = current;
+                current = t;
+            }
+        }
+    }
+    
+    /**
+     * Somewhere to send the messages. The MQTT side of this lives in
+     * MQTTInputs so a display that isn't publishing never loads it.
+     */
+    interface Sink
+    {
+        /**
+         * Send a message.
+         * 
+         * @param message The message.
+         * @param retain If the broker should keep it for new subscribers.
+         * 
+         * @throws IOException If it can't be sent.
+         */
+        void send (byte[] message, boolean retain) throws IOException;
+    }
+    
+    /**
+     * Encode a keyframe.
+     * 
+     * @param frame The frame.
+     * @param buffer Where to put it.
+     * 
+     * @return The length of the message.
+     */
+    static int keyframe (int[] frame, byte[] buffer)
+    {
+        int upto = header (KEYFRAME, frame.length, buffer);
+        
+        for (int pixel : frame)
+            upto = rgb (pixel, buffer, upto);
+        
+        return upto;
+    }
+    
+    /**
+     * Encode the changes between two frames. If that comes out no smaller
+     * than a keyframe a keyframe is encoded instead.
+     * 
+     * @param previous The frame before.
+     * @param frame The frame now.
+     * @param buffer Where to put it.
+     * 
+     * @return The length of the message.
+     */
+    static int delta (int[] previous, int[] frame, byte[] buffer)
+    {
+        int upto = 4;
+        int changed = 0;
+        
+        for (int i = 0; i < frame.length; ++i)
+        {
+            if (frame[i] == previous[i])
+                continue;
+            
+            // Five bytes a pixel against three for a keyframe
+            if (5 * (changed + 1) >= 3 * frame.length)
+                return keyframe (frame, buffer);
+            
+            buffer[upto++] = (byte) (i >> 8);
+            buffer[upto++] = (byte) i;
+            upto = rgb (frame[i], buffer, upto);
+            changed += 1;
+        }
+        
+        header (DELTA, changed, buffer);
+        
+        return upto;
+    }
+    
+    /**
+     * Fill in a message header, apart from the sequence number.
+     * 
+     * @param type The message type.
+     * @param count The count.
+     * @param buffer Where to put it.
+     * 
+     * @return Where the body starts.
+     */
+    private static int header (byte type, int count, byte[] buffer)
+    {
+        buffer[0] = type;
+        buffer[2] = (byte) (count >> 8);
+        buffer[3] = (byte) count;
+        
+        return 4;
+    }
+    
+    /**
+     * Put a pixel's colour into a message.
+     * 
+     * @param pixel The pixel as 0xrrggbb.
+     * @param buffer Where to put it.
+     * @param upto Where in the buffer.
+     * 
+     * @return Where the next thing goes.
+     */
+    private static int rgb (int pixel, byte[] buffer, int upto)
+    {
+        buffer[upto]     = (byte) (pixel >> 16);
+        buffer[upto + 1] = (byte) (pixel >> 8);
+        buffer[upto + 2] = (byte) pixel;
+        
+        return upto + 3;
+    }
+    
+    /**
+     * Check the encoding round trips.
+     * 
+     * @param args Not used.
+     */
+    public static void main (String args[])
+    {
+        final java.util.Random r = new java.util.Random (1);
+        final int[] shown = new int[300];
+        final int[] mirror = new int[300];
+        final byte[] buffer = new byte[4 + 5 * shown.length];
+        int[] previous = shown.clone ();
+        
+        for (int round = 0; round < 1000; ++round)
+        {
+            // Change a random number of pixels
+            final int changes = r.nextInt (round % 10 == 0 ? 300 : 20);
+            
+            for (int i = 0; i < changes; ++i)
+                shown[r.nextInt (shown.length)] = r.nextInt (0x1000000);
+            
+            final int length = delta (previous, shown, buffer);
+            final int count = ((buffer[2] & 0xff) << 8) | (buffer[3] & 0xff);
+            
+            // Decode as a dashboard would
+            for (int i = 0, upto = 4; i < count; ++i)
+            {
+                final int index = (buffer[0] == KEYFRAME) ? i : ((buffer[upto++] & 0xff) << 8) | (buffer[upto++] & 0xff);
+                
+                mirror[index] = ((buffer[upto] & 0xff) << 16) | ((buffer[upto + 1] & 0xff) << 8) | (buffer[upto + 2] & 0xff);
+                upto += 3;
+            }
+            
+            if (!Arrays.equals (shown, mirror) || length > 4 + 3 * shown.length)
+            {
+                System.out.println ("Mismatch in round " + round);
+                return;
+            }
+            
+            previous = shown.clone ();
+        }
+        
+        System.out.println ("All good");
+    }
+    
+    /** Command line long name for the frame topic. */
+    public static final String TOPIC_KEY = "frame-topic";
+    /** Command line long name for the frame rate. */
+    public static final String RATE_KEY = "frame-rate";
+    /** The default most frames a second. */
+    public static final int DEFAULT_RATE = 2;
+    /** The type of a message with the whole frame. */
+    public static final byte KEYFRAME = 1;
+    /** The type of a message with just the changes. */
+    public static final byte DELTA = 2;
+    
+    /** How often to send a keyframe in seconds, at the full rate. */
+    private static final int KEYFRAME_SECONDS = 10;
+    
+    /** The name of the display. */
+    private final String name;
+    /** The display we pass frames on to. */
+    private final Display display;
+    /** What keeps the publisher running, null until started. */
+    private volatile Supervisor supervisor = null;
+    /** The time between published frames in nanoseconds. */
+    private long interval;
+    /** The number of messages between keyframes. */
+    private int keyframe_every;
+    /** The latest frame to publish. */
+    private int[] latest = new int[0];
+    /** If the latest frame hasn't been published. */
+    private boolean fresh = false;
+    /** The sequence number of the next message. */
+    private int sequence = 0;
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * Turns down the animation when the machine is struggling, so a hot or
+ * busy board keeps up with the colours rather than falling behind with
+ * beautiful fades. It watches the load average and the CPU temperature
+ * and steps the quality down a level at a time while either is too high,
+ * and back up once both have been comfortably low for a while. The gap
+ * between the two thresholds stops it flapping.
+ * 
+ * There's one governor for the whole process, as the load and temperature
+ * are the machine's, which all the animators share.
+ * 
+ * @author Jim Darby
+ */
+public class Governor
+{
+    private static final Logger LOG = Logger.getLogger ("Governor");
+    
+    /** How good the animation is. */
+    public enum Quality
+    {
+        /** Full frame rate and fades. */
+        FULL (1, 1),
+        /** Frames half as often and fades half as long. */
+        REDUCED (2, 0.5),
+        /** Frames a quarter as often and short fades. */
+        LOW (4, 0.25),
+        /** No fades, colours just change. */
+        INSTANT (4, 0);
+        
+        /**
+         * Set up a level.
+         * 
+         * @param interval_scale How much longer to leave between frames.
+         * @param fade_scale How much of the fade to keep.
+         */
+        Quality (int interval_scale, double fade_scale)
+        {
+            this.interval_scale = interval_scale;
+            this.fade_scale = fade_scale;
+        }
+        
+        /** How much longer to leave between frames. */
+        final int interval_scale;
+        /** How much of the fade to keep. */
+        final double fade_scale;
+    }
+    
+    /**
+     * Create a governor. It doesn't do anything until started.
+     * 
+     * @param load_file Where to read the load average, in the format of
+     * /proc/loadavg.
+     * @param thermal_file Where to read the temperature, in thousandths of
+     * a degree as in /sys/class/thermal.
+     */
+    public Governor (String load_file, String thermal_file)
+    {
+        this.load_file = load_file;
+        this.thermal_file = thermal_file;
+    }
+    
+    /**
+     * Add the governor options to a set of options.
+     * 
+     * @param opts The options to add to.
+     */
+    public static void add_options (Options opts)
+    {
+        opts.addOption (null, GOVERNOR_KEY, false, "Turn the animation down when the machine is hot or busy")
+                .addOption (null, LOAD_FILE_KEY, true, "Where to read the load average (default " + DEFAULT_LOAD_FILE + ")")
+                .addOption (null, THERMAL_FILE_KEY, true, "Where to read the temperature (default " + DEFAULT_THERMAL_FILE + ")");
+    }
+    
+    /**
+     * Put an animator under the governor, if the command line asks for
+     * one. The governor is created and started the first time.
+     * 
+     * @param command The command line.
+     * @param animator The animator.
+     */
+    public static synchronized void handle_args (CommandLine command, Animator animator)
+    {
+        if (!command.hasOption (GOVERNOR_KEY))
+            return;
+        
+        if (instance == null)
+        {
+            instance = new Governor (command.getOptionValue (LOAD_FILE_KEY, DEFAULT_LOAD_FILE),
+                    command.getOptionValue (THERMAL_FILE_KEY, DEFAULT_THERMAL_FILE));
+            instance.go ();
+        }
+        
+        instance.add (animator);
+    }
+    
+    /**
+     * Put an animator under this governor.
+     * 
+     * @param animator The animator.
+     */
+    public synchronized void add (Animator animator)
+    {
+        animators.add (animator);
+        apply (animator, quality);
+    }
+    
+    /**
+     * Start checking the machine regularly. This starts a background
+     * thread.
+     */
+    public void go ()
+    {
+        final Timer timer = new Timer ("Governor", true);
+        
+        timer.scheduleAtFixedRate (new TimerTask ()
+        {
+            @Override
+            public void run ()
+            {
+                check ();
+            }
+        }, 0, CHECK_INTERVAL);
+    }
+    
+    /**
+     * Check the machine and change the quality if needed.
+     */
+    public synchronized void check ()
+    {
+        final double load = readLoad ();
+        final double temperature = readTemperature ();
+        final Quality[] levels = Quality.values ();
+        Quality next = quality;
+        
+        if (load > HIGH_LOAD || temperature > HIGH_TEMPERATURE)
+        {
+            calm = 0;
+            
+            if (quality.ordinal () < levels.length - 1)
+                next = levels[quality.ordinal () + 1];
+        }
+        else if (load < LOW_LOAD && temperature < LOW_TEMPERATURE)
+        {
+            // Only step back up once it's been calm for a while
+            if (++calm >= CALM_CHECKS && quality.ordinal () > 0)
+            {
+                next = levels[quality.ordinal () - 1];
+                calm = 0;
+            }
+        }
+        else
+            calm = 0;
+        
+        if (next == quality)
+            return;
+        
+        LOG.log (Level.INFO, "Load {0}, temperature {1}, quality now {2}",
+                new Object[] {String.format ("%.2f", load), String.format ("%.1f", temperature), next});
+        quality = next;
+        
+        for (Animator a : animators)
+            apply (a, next);
+    }
+    
+    /**
+     * Get the current quality.
+     * 
+     * @return The quality.
+     */
+    public synchronized Quality getQuality ()
+    {
+        return quality;
+    }
+    
+    /**
+     * Set an animator to a quality.
+     * 
+     * @param animator The animator.
+     * @param q The quality.
+     */
+    private static void apply (Animator animator, Quality q)
+    {
+        animator.setIntervalScale (q.interval_scale);
+        animator.setFadeScale (q.fade_scale);
+    }
+    
+    /**
+     * Read the one minute load average for each processor.
+     * 
+     * @return The load, or zero if it can't be read.
+     */
+    private double readLoad ()
+    {
+        try
+        {
+            final String line = firstLine (load_file);
+            
+            return Double.parseDouble (line.trim ().split ("\\s+")[0]) / Runtime.getRuntime ().availableProcessors ();
+        }
+        
+        catch (IOException | NumberFormatException e)
+        {
+            LOG.log (Level.FINE, "Unable to read load: {0}", e.getLocalizedMessage ());
+            return 0;
+        }
+    }
+    
+    /**
+     * Read the temperature.
+     * 
+     * @return The temperature in degrees, or zero if it can't be read.
+     */
+    private double readTemperature ()
+    {
+        try
+        {
+            return Long.parseLong (firstLine (thermal_file).trim ()) / 1000.0;
+        }
+        
+        catch (IOException | NumberFormatException e)
+        {
+            LOG.log (Level.FINE, "Unable to read temperature: {0}", e.getLocalizedMessage ());
+            return 0;
+        }
+    }
+    
+    /**
+     * Read the first line of a file.
+     * 
+     * @param name The file.
+     * @return The line.
+     * 
+     * @throws IOException If it can't be read or is empty.
+     */
+    private static String firstLine (String name) throws IOException
+    {
+        final List<String> lines = Files.readAllLines (Paths.get (name), StandardCharsets.US_ASCII);
+        
+        if (lines.isEmpty ())
+            throw new IOException (name + " is empty");
+        
+        return lines.get (0);
+    }
+    
+    /**
+     * Walk a governor through a hot spell using files in place of the
+     * real ones.
+     * 
+     * @param args Not used.
+     * 
+     * @throws IOException If the files can't be written.
+     */
+    public static void main (String args[]) throws IOException
+    {
+        final java.nio.file.Path load = Files.createTempFile ("loadavg", null);
+        final java.nio.file.Path thermal = Files.createTempFile ("temp", null);
+        final Governor g = new Governor (load.toString (), thermal.toString ());
+        final int cpus = Runtime.getRuntime ().availableProcessors ();
+        
+        // Temperature in thousandths, expected quality after each check
+        final int[] temps = {50_000, 78_000, 78_000, 78_000, 78_000, 72_000, 60_000, 60_000, 60_000, 60_000, 60_000, 60_000};
+        final Quality[] expect = {Quality.FULL, Quality.REDUCED, Quality.LOW, Quality.INSTANT, Quality.INSTANT,
+            Quality.INSTANT, Quality.INSTANT, Quality.INSTANT, Quality.INSTANT, Quality.INSTANT, Quality.INSTANT, Quality.LOW};
+        
+        Files.write (load, (0.1 * cpus + " 0.1 0.1 1/100 1234\n").getBytes (StandardCharsets.US_ASCII));
+        
+        for (int i = 0; i < temps.length; ++i)
+        {
+            Files.write (thermal, (temps[i] + "\n").getBytes (StandardCharsets.US_ASCII));
+            g.check ();
+            
+            if (g.getQuality () != expect[i])
+            {
+                System.out.println ("Step " + i + " got " + g.getQuality () + " expected " + expect[i]);
+                return;
+            }
+        }
+        
+        // Load alone should turn it down too
+        Files.write (load, (2.0 * cpus + " 1 1 1/100 1234\n").getBytes (StandardCharsets.US_ASCII));
+        g.check ();
+        
+        Files.delete (load);
+        Files.delete (thermal);
+        
+        System.out.println (g.getQuality () == Quality.INSTANT ? "All good" : "Load ignored");
+    }
+    
+    /** Command line long name for turning the governor on. */
+    public static final String GOVERNOR_KEY = "governor";
+    /** Command line long name for the load file. */
+    public static final String LOAD_FILE_KEY = "load-file";
+    /** Command line long name for the temperature file. */
+    public static final String THERMAL_FILE_KEY = "thermal-file";
+    /** Where the load is normally found. */
+    public static final String DEFAULT_LOAD_FILE = "/proc/loadavg";
+    /** Where the temperature is normally found. */
+    public static final String DEFAULT_THERMAL_FILE = "/sys/class/thermal/thermal_zone0/temp";
+    
+    /** The load for each processor above which we turn down. */
+    private static final double HIGH_LOAD = 1.0;
+    /** The load for each processor below which we can turn up. */
+    private static final double LOW_LOAD = 0.6;
+    /** The temperature above which we turn down. The Pi throttles at 80. */
+    private static final double HIGH_TEMPERATURE = 75;
+    /** The temperature below which we can turn up. */
+    private static final double LOW_TEMPERATURE = 68;
+    /** How many calm checks before turning up. */
+    private static final int CALM_CHECKS = 6;
+    /** How often to check in milliseconds. */
+    private static final long CHECK_INTERVAL = 10_000;
+    
+    /** The governor for the process, null if there isn't one. */
+    private static Governor instance = null;
+    
+    /** Where to read the load. */
+    private final String load_file;
+    /** Where to read the temperature. */
+    private final String thermal_file;
+    /** The animators we govern. */
+    private final List<Animator> animators = new CopyOnWriteArrayList<> ();
+    /** The current quality. */
+    private Quality quality = Quality.FULL;
+    /** The number of calm checks in a row. */
+    private int calm = 0;
+}
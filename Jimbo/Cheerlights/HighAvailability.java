@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import twitter4j.Status;
+
+/**
+ * Lets several TweetListeners run at once with only one of them, the
+ * leader, sending. Which one leads is decided by a Lease, held either as a
+ * file lock for listeners on one machine or through the MQTT broker for
+ * listeners on several.
+ * 
+ * The others are hot standbys: they follow the stream and filter it like
+ * the leader but hold on to the last few tweets instead of sending them.
+ * Each tweet the leader sends over MQTT carries its ID so the standbys can
+ * tick it off. When a standby takes over it sends the tweets it's holding
+ * that the old leader didn't get to, so nothing is lost or sent twice.
+ * Without MQTT the standbys can't tell what was sent so they don't catch
+ * up; a tweet may be missed but is never sent twice.
+ * 
+ * @author Jim Darby
+ */
+public class HighAvailability
+{
+    private static final Logger LOG = Logger.getLogger ("HighAvailability");
+    
+    /**
+     * Something that sends tweets on.
+     */
+    public interface Sender
+    {
+        /**
+         * Send a tweet.
+         * 
+         * @param status The tweet.
+         */
+        public void send (Status status);
+    }
+    
+    /**
+     * Create a coordinator. It doesn't try for the lease until go is
+     * called.
+     * 
+     * @param lease The lease that decides who leads.
+     * @param sender What sends the tweets.
+     * @param shared If what the leader sends is fed to seen.
+     */
+    public HighAvailability (Lease lease, Sender sender, boolean shared)
+    {
+        this.lease = lease;
+        this.sender = sender;
+        this.shared = shared;
+        replay = 2 * (4 * lease.getPeriod () * 1_000_000L);
+    }
+    
+    /**
+     * Add the high availability options to a set of options.
+     * 
+     * @param opts The options to add to.
+     */
+    public static void add_options (Options opts)
+    {
+        opts.addOption (null, LEASE_FILE_KEY, true, "File to lock to decide which listener sends")
+                .addOption (null, LEASE_TOPIC_KEY, true, "MQTT topic to hold a lease on to decide which listener sends")
+                .addOption (null, LEASE_PERIOD_KEY, true, "Milliseconds between lease renewals (default " + DEFAULT_LEASE_PERIOD + ")");
+    }
+    
+    /**
+     * Create a coordinator from the command line, if one is asked for.
+     * 
+     * @param command The command line.
+     * @param config The configuration.
+     * @param broker The MQTT broker, or null if there isn't one.
+     * @param client The MQTT client name.
+     * @param sender What sends the tweets.
+     * 
+     * @return The coordinator, or null if we're on our own.
+     * 
+     * @throws ParseException If the settings are invalid.
+     * @throws IOException If the lease can't be set up.
+     */
+    public static HighAvailability create (CommandLine command, Properties config, String broker, String client, Sender sender)
+            throws ParseException, IOException
+    {
+        final String file = Listener.getValue (command, config, LEASE_FILE_KEY, null);
+        final String topic = Listener.getValue (command, config, LEASE_TOPIC_KEY, null);
+        final int period = Listener.getInt (command, config, LEASE_PERIOD_KEY, DEFAULT_LEASE_PERIOD, 10, 60_000);
+        final Lease lease;
+        
+        if (file != null && topic != null)
+            throw new ParseException ("Only one of a lease file and lease topic please");
+        
+        if (file != null)
+            lease = new FileLease (file, period);
+        else if (topic != null)
+        {
+            if (broker == null || client == null)
+                throw new ParseException ("Lease topic without MQTT broker and client name");
+            
+            lease = new MqttLease (broker, client + "-lease", topic, period);
+        }
+        else
+            return null;
+        
+        return new HighAvailability (lease, sender, broker != null);
+    }
+    
+    /**
+     * Start trying for the lease. This starts a background thread.
+     */
+    public void go ()
+    {
+        final Timer timer = new Timer ("High availability", true);
+        
+        timer.scheduleAtFixedRate (new TimerTask ()
+        {
+            @Override
+            public void run ()
+            {
+                tick ();
+            }
+        }, 0, lease.getPeriod ());
+        
+        // Let someone else take over straight away if we're stopped
+        Runtime.getRuntime ().addShutdownHook (new Thread (lease::release));
+    }
+    
+    /**
+     * Handle a tweet that's got through the filters. The leader sends it,
+     * anyone else holds on to it in case the leader fails.
+     * 
+     * @param status The tweet.
+     */
+    public synchronized void offer (Status status)
+    {
+        final long id = status.getId ();
+        
+        if (!leader)
+        {
+            if (!seen (id, false))
+            {
+                pending[next] = status;
+                arrived[next] = System.nanoTime ();
+                next = (next + 1) & (PENDING - 1);
+            }
+            
+            return;
+        }
+        
+        if (!seen (id, true))
+            sender.send (status);
+    }
+    
+    /**
+     * Note that the leader has sent a tweet.
+     * 
+     * @param id The tweet's ID.
+     */
+    public synchronized void seen (long id)
+    {
+        seen (id, true);
+    }
+    
+    /**
+     * Note that the leader has sent a tweet, given the MQTT message it
+     * sent. Messages without an ID are ignored.
+     * 
+     * @param message The message.
+     */
+    public void seen (String message)
+    {
+        try
+        {
+            final long id = new JSONObject (message).optLong ("id", 0);
+            
+            if (id != 0)
+                seen (id);
+        }
+        
+        catch (JSONException e)
+        {
+            LOG.log (Level.FINE, "Unable to parse: {0}", message);
+        }
+    }
+    
+    /**
+     * Find out if we're the leader.
+     * 
+     * @return If we are.
+     */
+    public synchronized boolean isLeader ()
+    {
+        return leader;
+    }
+    
+    /**
+     * Renew the lease and catch up if we've just become the leader.
+     */
+    private void tick ()
+    {
+        boolean held;
+        
+        try
+        {
+            held = lease.renew ();
+        }
+        
+        catch (IOException e)
+        {
+            // This goes on every period while it's down so only shout once
+            LOG.log (isLeader () ? Level.WARNING : Level.FINE, "Lease renewal failed: {0}", e.getLocalizedMessage ());
+            held = false;
+        }
+        
+        synchronized (this)
+        {
+            if (held == leader)
+                return;
+            
+            leader = held;
+            
+            if (!leader)
+            {
+                LOG.warning ("Lost the lease, now standing by");
+                return;
+            }
+            
+            LOG.info ("Took the lease, now sending");
+            
+            // Send what the old leader might not have, oldest first
+            final long now = System.nanoTime ();
+            int caught_up = 0;
+            
+            for (int i = 0; i < PENDING; ++i)
+            {
+                final int slot = (next + i) & (PENDING - 1);
+                final Status s = pending[slot];
+                
+                pending[slot] = null;
+                
+                if (s != null && shared && now - arrived[slot] <= replay && !seen (s.getId (), true))
+                {
+                    sender.send (s);
+                    caught_up += 1;
+                }
+            }
+            
+            if (caught_up > 0)
+                LOG.log (Level.INFO, "Sent {0} tweets the old leader missed", caught_up);
+        }
+    }
+    
+    /**
+     * See if a tweet ID has been sent.
+     * 
+     * @param id The ID.
+     * @param remember Remember it if it hasn't.
+     * 
+     * @return If it had been.
+     */
+    private boolean seen (long id, boolean remember)
+    {
+        final int slot = (int) ((id * 0x9e3779b97f4a7c15L) >>> 40) & (SEEN_SIZE - 1);
+        
+        if (ids[slot] == id)
+            return true;
+        
+        if (remember)
+            ids[slot] = id;
+        
+        return false;
+    }
+    
+    /** Command line long name for the lease file. */
+    public static final String LEASE_FILE_KEY = "lease-file";
+    /** Command line long name for the lease topic. */
+    public static final String LEASE_TOPIC_KEY = "lease-topic";
+    /** Command line long name for the lease period. */
+    public static final String LEASE_PERIOD_KEY = "lease-period";
+    /** The default lease period in milliseconds. */
+    public static final int DEFAULT_LEASE_PERIOD = 150;
+    
+    /** The number of tweet IDs remembered, a power of two. */
+    private static final int SEEN_SIZE = 8192;
+    /** The number of tweets a standby holds on to, a power of two. */
+    private static final int PENDING = 64;
+    
+    /** The lease. */
+    private final Lease lease;
+    /** What sends the tweets. */
+    private final Sender sender;
+    /** If we hear what the leader sends. */
+    private final boolean shared;
+    /** How far back to catch up on taking over in nanoseconds. */
+    private final long replay;
+    /** If we're the leader. */
+    private boolean leader = false;
+    /** Recently sent tweet IDs. */
+    private final long[] ids = new long[SEEN_SIZE];
+    /** The tweets held while standing by, oldest at next. */
+    private final Status[] pending = new Status[PENDING];
+    /** When each held tweet arrived. */
+    private final long[] arrived = new long[PENDING];
+    /** The next slot to hold a tweet in. */
+    private int next = 0;
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+/**
+ * A lease that at most one of a group of processes holds at a time, used to
+ * pick which of a set of redundant processes does the work. The lease is
+ * kept by renewing it regularly and passes to another process if the
+ * holder stops renewing it.
+ * 
+ * @author Jim Darby
+ */
+public interface Lease
+{
+    /**
+     * Try to take the lease, or keep it if it's already held. This should
+     * be called regularly, at least every getPeriod milliseconds.
+     * 
+     * @return If we hold the lease.
+     * 
+     * @throws IOException If the lease can't be reached.
+     */
+    public boolean renew () throws IOException;
+    
+    /**
+     * Give up the lease, if it's held, so another process can take it
+     * straight away.
+     */
+    public void release ();
+    
+    /**
+     * Get how often the lease should be renewed.
+     * 
+     * @return The period in milliseconds.
+     */
+    public int getPeriod ();
+}
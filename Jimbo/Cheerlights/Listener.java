@@ -18,6 +18,14 @@
 
 package Jimbo.Cheerlights;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,10 +35,10 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.ParseException;
 
-import org.eclipse.paho.client.mqttv3.MqttException;
-
 /**
- * Command line parser and generic controller for CheerLights things.
+ * Command line parser and generic controller for CheerLights things. Inputs
+ * are only loaded when their options are given, so a receiver that just
+ * listens to multicast doesn't pay for MQTT.
  * 
  * @author Jim Darby
  */
@@ -41,6 +49,9 @@ public class Listener
     /**
      * Setup the appropriate inputs to feed into the target. It parses
      * the command line for the available options and creates them as needed.
+     * Any option not given on the command line can also be set in the
+     * configuration file named by the config option. In trend mode the
+     * target is fed the most popular colours rather than every colour.
      * 
      * @param args The command line arguments
      * @param target The CheerListener to feed data into
@@ -48,6 +59,37 @@ public class Listener
      * @return If anything was created.
      */
     public static boolean setup (String args[], CheerListener target)
+    {
+        return setup (args, target, new EventBus (EventBus.DEFAULT_SIZE), true);
+    }
+    
+    /**
+     * Setup the appropriate inputs to feed into an event bus. The target
+     * provides any extra command line options but it's up to the caller to
+     * subscribe it, and anything else that wants the events, to the bus.
+     * 
+     * @param args The command line arguments
+     * @param target The CheerListener whose options to handle
+     * @param bus The bus to publish events on
+     * 
+     * @return If anything was created.
+     */
+    public static boolean setup (String args[], CheerListener target, EventBus bus)
+    {
+        return setup (args, target, bus, false);
+    }
+    
+    /**
+     * Setup the inputs and, optionally, subscribe the target.
+     * 
+     * @param args The command line arguments
+     * @param target The CheerListener whose options to handle
+     * @param bus The bus to publish events on
+     * @param subscribe If the target should be subscribed to the bus
+     * 
+     * @return If anything was created.
+     */
+    private static boolean setup (String args[], CheerListener target, EventBus bus, boolean subscribe)
     {
         // Decode the command line arguments
         Options options = new Options();
@@ -55,8 +97,17 @@ public class Listener
         options.addOption("b", MQTT_BROKER_KEY, true, "URL of the broker")
                 .addOption ("c", MQTT_CLIENT_KEY, true, "Client ID")
                 .addOption ("t", MQTT_TOPIC_KEY, true, "Topic to subscribe to")
-                .addOption ("m", "multicast", false, "enable multicast listener");
+                .addOption ("m", MULTICAST_KEY, false, "enable multicast listener")
+                .addOption (null, COMBINE_WINDOW_KEY, true, "Milliseconds to match MQTT and multicast copies (default " + Combiner.DEFAULT_WINDOW + ")")
+                .addOption (null, ColourStats.STATS_TOPIC_KEY, true, "MQTT topic to publish colour statistics on")
+                .addOption (null, ColourStats.STATS_INTERVAL_KEY, true, "Seconds between colour statistics (default " + ColourStats.DEFAULT_STATS_INTERVAL + ")")
+                .addOption (null, ColourStats.TREND_KEY, true, "Show the most popular colours over the last minute, hour or day")
+                .addOption (null, CONFIG_KEY, true, "Configuration file");
         
+        Multicast.add_options (options);
+        Admission.add_options (options);
+        SyncClock.add_options (options);
+
         target.add_options (options);
 
         CommandLineParser parser = new DefaultParser ();
@@ -71,43 +122,95 @@ public class Listener
 
 	    target.handle_args (command);
 
-            MQTTListener mqtt = null;
-            String mqtt_topic = Listener.DEFAULT_MQTT_TOPIC;
+            final Properties config = getConfig (command);
+            
+            SyncClock.handle_args (command, config);
+            
+            final String mqtt_broker = getValue (command, config, Listener.MQTT_BROKER_KEY, null);
+            final String mqtt_client = getValue (command, config, Listener.MQTT_CLIENT_KEY, null);
+            final String mqtt_topic = getValue (command, config, Listener.MQTT_TOPIC_KEY, Listener.DEFAULT_MQTT_TOPIC);
 
-            if (command.hasOption (Listener.MQTT_BROKER_KEY))
+            final String trend = getValue (command, config, ColourStats.TREND_KEY, null);
+            final String stats_topic = getValue (command, config, ColourStats.STATS_TOPIC_KEY, null);
+            final ColourStats stats = (trend != null || stats_topic != null) ? new ColourStats () : null;
+            
+            if (trend != null)
             {
-                if (!command.hasOption (Listener.MQTT_CLIENT_KEY))
-                    throw new ParseException ("MQTT without client name");
-
-                if (command.hasOption (Listener.MQTT_TOPIC_KEY))
-                    mqtt_topic = command.getOptionValue (Listener.MQTT_TOPIC_KEY);
-
+                // The trend drives the target itself so we have to own it
+                if (!subscribe)
+                    throw new ParseException ("Trend isn't supported by this program");
+                
+                final ColourStats.Period period;
+                
                 try
                 {
-                    mqtt = new MQTTListener (command.getOptionValue (Listener.MQTT_BROKER_KEY),
-                        command.getOptionValue (Listener.MQTT_CLIENT_KEY),
-                        mqtt_topic, target);
-                    
-                    something_worked = true;
+                    period = ColourStats.Period.valueOf (trend.trim ().toUpperCase ());
                 }
-
-                catch (MqttException e)
+                
+                catch (IllegalArgumentException e)
                 {
-                    LOG.log (Level.WARNING, "Failed to create MQTT client: {0}", e.getLocalizedMessage ());
+                    throw new ParseException ("Trend should be minute, hour or day: " + trend);
                 }
+                
+                stats.trend (target, period, ColourStats.TREND_COLOURS, ColourStats.TREND_INTERVAL);
+            }
+            else if (subscribe)
+                bus.subscribe ("Target", target, EventBus.WaitStrategy.BLOCKING);
+            
+            if (stats != null)
+                bus.subscribe ("Statistics", stats, EventBus.WaitStrategy.BLOCKING);
+            
+            if (stats_topic != null)
+            {
+                if (mqtt_broker == null || mqtt_client == null)
+                    throw new ParseException ("Statistics topic without MQTT broker and client name");
+                
+                final int interval = getInt (command, config, ColourStats.STATS_INTERVAL_KEY, ColourStats.DEFAULT_STATS_INTERVAL, 1, 86400);
+                final Supervisor s = MQTTInputs.publish (mqtt_broker, mqtt_client, stats, stats_topic, interval);
+                
+                SUPERVISORS.add (s);
+                s.go ();
+            }
+            
+            final boolean multicast = command.hasOption (MULTICAST_KEY) || Boolean.parseBoolean (config.getProperty (MULTICAST_KEY));
+            
+            // With both inputs they're combined so each colour only shows once
+            CheerListener mqtt_target = bus;
+            CheerListener multicast_target = bus;
+            
+            if (mqtt_broker != null && multicast)
+            {
+                final Combiner combiner = new Combiner (bus,
+                        getInt (command, config, COMBINE_WINDOW_KEY, (int) Combiner.DEFAULT_WINDOW, 0, Integer.MAX_VALUE));
+                
+                mqtt_target = combiner.path ("MQTT");
+                multicast_target = combiner.path ("Multicast");
+            }
+            
+            if (mqtt_broker != null)
+            {
+                if (mqtt_client == null)
+                    throw new ParseException ("MQTT without client name");
+
+                final Supervisor s = MQTTInputs.listen ("MQTT Listener", mqtt_broker, mqtt_client, mqtt_topic, mqtt_target);
+                
+                SUPERVISORS.add (s);
+                s.go ();
+                something_worked = true;
             }
             else
             {
-                if (command.hasOption (Listener.MQTT_TOPIC_KEY))
+                if (getValue (command, config, Listener.MQTT_TOPIC_KEY, null) != null)
                     LOG.warning("MQTT topic supplied but no broker");
 
-                if (command.hasOption (Listener.MQTT_CLIENT_KEY))
+                if (mqtt_client != null)
                     LOG.warning ("MQTT client name but no broker");
             }
             
-            if (command.hasOption ("multicast"))
+            if (multicast)
             {
-                MessageListener l = new MessageListener (target);
+                MessageListener l = new MessageListener (multicast_target, new Multicast (command, config), new Admission (command, config));
+                SUPERVISORS.add (l.getSupervisor ());
                 l.go ();
                 something_worked = true;
             }
@@ -121,12 +224,119 @@ public class Listener
         return something_worked;
     }
     
+    /**
+     * Get the supervisors of the inputs that have been set up, so their
+     * state can be checked.
+     * 
+     * @return The supervisors.
+     */
+    public static List<Supervisor> getSupervisors ()
+    {
+        return Collections.unmodifiableList (SUPERVISORS);
+    }
+    
+    /**
+     * Read the configuration file named on the command line, if any.
+     * 
+     * @param command The command line.
+     * 
+     * @return The configuration, empty if there isn't one.
+     * 
+     * @throws ParseException If the file can't be read.
+     */
+    public static Properties getConfig (CommandLine command) throws ParseException
+    {
+        final Properties config = new Properties ();
+        
+        if (command.hasOption (CONFIG_KEY))
+        {
+            final String name = command.getOptionValue (CONFIG_KEY);
+            
+            try (InputStream in = new FileInputStream (name))
+            {
+                config.load (in);
+            }
+            
+            catch (IOException e)
+            {
+                throw new ParseException ("Unable to read configuration " + name + ": " + e.getLocalizedMessage ());
+            }
+        }
+        
+        return config;
+    }
+    
+    /**
+     * Look up a setting. The command line takes priority over the
+     * configuration which takes priority over the default.
+     * 
+     * @param command The command line.
+     * @param config The configuration.
+     * @param key The long name of the option.
+     * @param def The default value.
+     * 
+     * @return The value.
+     */
+    public static String getValue (CommandLine command, Properties config, String key, String def)
+    {
+        if (command.hasOption (key))
+            return command.getOptionValue (key);
+        
+        return config.getProperty (key, def);
+    }
+    
+    /**
+     * Look up an integer setting and check its range.
+     * 
+     * @param command The command line.
+     * @param config The configuration.
+     * @param key The long name of the option.
+     * @param def The default value.
+     * @param min The minimum value allowed.
+     * @param max The maximum value allowed.
+     * 
+     * @return The value.
+     * 
+     * @throws ParseException If the value isn't a number in range.
+     */
+    public static int getInt (CommandLine command, Properties config, String key, int def, int min, int max) throws ParseException
+    {
+        final String value = getValue (command, config, key, null);
+        
+        if (value == null)
+            return def;
+        
+        try
+        {
+            final int result = Integer.parseInt (value.trim ());
+            
+            if (result < min || result > max)
+                throw new ParseException ("Value for " + key + " out of range: " + value);
+            
+            return result;
+        }
+        
+        catch (NumberFormatException e)
+        {
+            throw new ParseException ("Invalid number for " + key + ": " + value);
+        }
+    }
+    
     /** Command line long name for broker. */
     public static final String MQTT_BROKER_KEY = "mqtt-broker";
     /** Command line long name for client name. */
     public static final String MQTT_CLIENT_KEY = "mqtt-client-name"; 
     /** Command line long name for topic. */
     public static final String MQTT_TOPIC_KEY  = "mqtt-topic";
+    /** Command line long name for enabling multicast. */
+    public static final String MULTICAST_KEY = "multicast";
+    /** Command line long name for the configuration file. */
+    public static final String CONFIG_KEY = "config";
+    /** Command line long name for the MQTT and multicast matching window. */
+    public static final String COMBINE_WINDOW_KEY = "combine-window";
     /** The default name to subscribe to. */
     public static final String DEFAULT_MQTT_TOPIC = "CheerLights";
+    
+    /** The supervisors of the inputs. */
+    private static final List<Supervisor> SUPERVISORS = new CopyOnWriteArrayList<> ();
 }
@@ -0,0 +1,673 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A very small MQTT broker, just enough of MQTT 3.1.1 to check things that
+ * use MQTT, such as the MQTT lease, without a real broker. It handles
+ * connecting with a will, subscribing to exact topics, publishing at QoS 0
+ * and 1, retained messages and keep alives. Everything is passed on at
+ * QoS 0. There's no security at all so it only listens on the loopback
+ * address.
+ * 
+ * So a test can see what happens when things go wrong it can also drop a
+ * client's connection, as if it had died, or silence it, as if the network
+ * had gone, in which case the client times out.
+ * 
+ * @author Jim Darby
+ */
+class LocalBroker
+{
+    private static final Logger LOG = Logger.getLogger ("LocalBroker");
+    
+    /**
+     * Create a broker and start it listening on a free port.
+     * 
+     * @throws IOException If it can't listen.
+     */
+    LocalBroker () throws IOException
+    {
+        server = new ServerSocket (0, 16, InetAddress.getLoopbackAddress ());
+        
+        final Thread t = new Thread (this::accept, "Local broker");
+        
+        t.setDaemon (true);
+        t.start ();
+    }
+    
+    /**
+     * Get the URL to connect to.
+     * 
+     * @return The URL.
+     */
+    String getURL ()
+    {
+        return "tcp://127.0.0.1:" + server.getLocalPort ();
+    }
+    
+    /**
+     * Drop a client's connection without a word, as if it had died. Its
+     * will is published.
+     * 
+     * @param id The client's ID.
+     */
+    void drop (String id)
+    {
+        final Connection c;
+        
+        synchronized (this)
+        {
+            c = clients.get (id);
+        }
+        
+        if (c != null)
+            c.close ();
+    }
+    
+    /**
+     * Stop hearing from a client or sending to it, as if the network had
+     * gone. It's dropped when its keep alive runs out and its will is
+     * published.
+     * 
+     * @param id The client's ID.
+     */
+    void silence (String id)
+    {
+        final Connection c;
+        
+        synchronized (this)
+        {
+            c = clients.get (id);
+        }
+        
+        if (c != null)
+            c.silent = true;
+    }
+    
+    /**
+     * Accept connections until the server socket is closed.
+     */
+    private void accept ()
+    {
+        try
+        {
+            while (true)
+            {
+                final Connection c = new Connection (server.accept ());
+                final Thread t = new Thread (c::run, "Local broker client");
+                
+                t.setDaemon (true);
+                t.start ();
+            }
+        }
+        
+        catch (IOException e)
+        {
+            LOG.log (Level.FINE, "Local broker stopped: {0}", e.getLocalizedMessage ());
+        }
+    }
+    
+    /**
+     * Publish a message to everyone subscribed to its topic, keeping it if
+     * it's retained. An empty retained message clears the topic.
+     * 
+     * @param topic The topic.
+     * @param payload The message.
+     * @param retain If it's retained.
+     */
+    private void publish (String topic, byte[] payload, boolean retain)
+    {
+        final List<Connection> to = new ArrayList<> ();
+        
+        synchronized (this)
+        {
+            if (retain)
+            {
+                if (payload.length == 0)
+                    retained.remove (topic);
+                else
+                    retained.put (topic, payload);
+            }
+            
+            for (Connection c : clients.values ())
+                if (c.topics.contains (topic))
+                    to.add (c);
+        }
+        
+        for (Connection c : to)
+            c.send (topic, payload, false);
+    }
+    
+    /**
+     * One client's connection.
+     */
+    private class Connection
+    {
+        /**
+         * Create the connection.
+         * 
+         * @param socket The socket.
+         * 
+         * @throws IOException If it can't be set up.
+         */
+        Connection (Socket socket) throws IOException
+        {
+            this.socket = socket;
+            in = new DataInputStream (socket.getInputStream ());
+            out = socket.getOutputStream ();
+            socket.setTcpNoDelay (true);
+        }
+        
+        /**
+         * Handle the client's packets until it goes.
+         */
+        void run ()
+        {
+            boolean clean = false;
+            
+            try
+            {
+                if ((in.readUnsignedByte () >> 4) != CONNECT)
+                    throw new IOException ("Didn't start with CONNECT");
+                
+                connect (readPacket ());
+                
+                while (!clean)
+                {
+                    final int type = readType ();
+                    final byte[] body = readPacket ();
+                    
+                    // Anything that was on its way when silenced is lost
+                    if (!silent)
+                        clean = handle (type >> 4, type & 0x0f, body);
+                }
+            }
+            
+            catch (IOException e)
+            {
+                LOG.log (Level.FINE, "Local broker lost {0}: {1}", new Object[] {id, e.getLocalizedMessage ()});
+            }
+            
+            close ();
+            
+            synchronized (LocalBroker.this)
+            {
+                if (clients.get (id) == this)
+                    clients.remove (id);
+            }
+            
+            if (!clean && will_topic != null)
+                publish (will_topic, will, will_retain);
+        }
+        
+        /**
+         * Handle a CONNECT packet, taking over from any connection with the
+         * same ID.
+         * 
+         * @param body The packet.
+         * 
+         * @throws IOException If it's not valid.
+         */
+        private void connect (byte[] body) throws IOException
+        {
+            final Reader r = new Reader (body);
+            
+            r.string ();
+            r.u8 ();
+            
+            final int flags = r.u8 ();
+            final int keep_alive = r.u16 ();
+            
+            id = r.string ();
+            
+            if ((flags & 0x04) != 0)
+            {
+                will_topic = r.string ();
+                will = r.bytes (r.u16 ());
+                will_retain = (flags & 0x20) != 0;
+            }
+            
+            // Drop the client if it's silent for half as long again
+            if (keep_alive > 0)
+            {
+                timeout = keep_alive * 1500;
+                socket.setSoTimeout (timeout);
+            }
+            
+            final Connection old;
+            
+            synchronized (LocalBroker.this)
+            {
+                old = clients.put (id, this);
+            }
+            
+            if (old != null)
+                old.close ();
+            
+            write (new byte[] {0x20, 2, 0, 0});
+        }
+        
+        /**
+         * Handle a packet.
+         * 
+         * @param type The packet type.
+         * @param flags The flags in the fixed header.
+         * @param body The rest of the packet.
+         * 
+         * @return If the client disconnected cleanly.
+         * 
+         * @throws IOException If the packet isn't valid.
+         */
+        private boolean handle (int type, int flags, byte[] body) throws IOException
+        {
+            final Reader r = new Reader (body);
+            
+            switch (type)
+            {
+                case PUBLISH:
+                {
+                    final int qos = (flags >> 1) & 3;
+                    final String topic = r.string ();
+                    
+                    if (qos > 0)
+                    {
+                        final int packet = r.u16 ();
+                        
+                        write (new byte[] {0x40, 2, (byte) (packet >> 8), (byte) packet});
+                    }
+                    
+                    publish (topic, r.rest (), (flags & 1) != 0);
+                    return false;
+                }
+                
+                case SUBSCRIBE:
+                {
+                    final int packet = r.u16 ();
+                    final List<String> topics = new ArrayList<> ();
+                    
+                    while (r.remaining () > 0)
+                    {
+                        topics.add (r.string ());
+                        r.u8 ();
+                    }
+                    
+                    // Everything is granted at QoS 0
+                    final byte[] ack = new byte[4 + topics.size ()];
+                    
+                    ack[0] = (byte) 0x90;
+                    ack[1] = (byte) (2 + topics.size ());
+                    ack[2] = (byte) (packet >> 8);
+                    ack[3] = (byte) packet;
+                    write (ack);
+                    
+                    for (String t : topics)
+                    {
+                        final byte[] kept;
+                        
+                        synchronized (LocalBroker.this)
+                        {
+                            this.topics.add (t);
+                            kept = retained.get (t);
+                        }
+                        
+                        if (kept != null)
+                            send (t, kept, true);
+                    }
+                    
+                    return false;
+                }
+                
+                case UNSUBSCRIBE:
+                {
+                    final int packet = r.u16 ();
+                    
+                    while (r.remaining () > 0)
+                    {
+                        final String t = r.string ();
+                        
+                        synchronized (LocalBroker.this)
+                        {
+                            topics.remove (t);
+                        }
+                    }
+                    
+                    write (new byte[] {(byte) 0xb0, 2, (byte) (packet >> 8), (byte) packet});
+                    return false;
+                }
+                
+                case PINGREQ:
+                    write (new byte[] {(byte) 0xd0, 0});
+                    return false;
+                    
+                case DISCONNECT:
+                    return true;
+                    
+                default:
+                    // Acknowledgements of what we send at QoS 0 never come
+                    return false;
+            }
+        }
+        
+        /**
+         * Read the first byte of a packet. While silenced nothing is read
+         * and the client is dropped once its keep alive runs out.
+         * 
+         * @return The byte.
+         * 
+         * @throws IOException If the connection fails or times out.
+         */
+        private int readType () throws IOException
+        {
+            if (silent)
+            {
+                try
+                {
+                    Thread.sleep ((timeout > 0) ? timeout : Long.MAX_VALUE);
+                }
+                
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread ().interrupt ();
+                }
+                
+                throw new SocketTimeoutException ("Silenced client timed out");
+            }
+            
+            return in.readUnsignedByte ();
+        }
+        
+        /**
+         * Read the length and body of a packet.
+         * 
+         * @return The body.
+         * 
+         * @throws IOException If it can't be read.
+         */
+        private byte[] readPacket () throws IOException
+        {
+            int length = 0;
+            int shift = 0;
+            int b;
+            
+            do
+            {
+                b = in.readUnsignedByte ();
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            }
+            while ((b & 0x80) != 0 && shift < 28);
+            
+            final byte[] body = new byte[length];
+            
+            in.readFully (body);
+            return body;
+        }
+        
+        /**
+         * Send a message to the client at QoS 0.
+         * 
+         * @param topic The topic.
+         * @param payload The message.
+         * @param retain If it's being sent because it was retained.
+         */
+        void send (String topic, byte[] payload, boolean retain)
+        {
+            final byte[] t = topic.getBytes (StandardCharsets.UTF_8);
+            int length = 2 + t.length + payload.length;
+            final byte[] packet = new byte[5 + length];
+            int n = 0;
+            
+            packet[n++] = (byte) (0x30 | (retain ? 1 : 0));
+            
+            do
+            {
+                packet[n++] = (byte) ((length & 0x7f) | ((length > 0x7f) ? 0x80 : 0));
+                length >>>= 7;
+            }
+            while (length != 0);
+            
+            packet[n++] = (byte) (t.length >> 8);
+            packet[n++] = (byte) t.length;
+            System.arraycopy (t, 0, packet, n, t.length);
+            n += t.length;
+            System.arraycopy (payload, 0, packet, n, payload.length);
+            n += payload.length;
+            
+            try
+            {
+                write (packet, n);
+            }
+            
+            catch (IOException e)
+            {
+                close ();
+            }
+        }
+        
+        /**
+         * Write a whole packet.
+         * 
+         * @param packet The packet.
+         * 
+         * @throws IOException If it can't be written.
+         */
+        private void write (byte[] packet) throws IOException
+        {
+            write (packet, packet.length);
+        }
+        
+        /**
+         * Write the start of a buffer.
+         * 
+         * @param packet The buffer.
+         * @param length How much of it to write.
+         * 
+         * @throws IOException If it can't be written.
+         */
+        private synchronized void write (byte[] packet, int length) throws IOException
+        {
+            if (silent)
+                return;
+            
+            out.write (packet, 0, length);
+            out.flush ();
+        }
+        
+        /**
+         * Close the connection.
+         */
+        void close ()
+        {
+            try
+            {
+                socket.close ();
+            }
+            
+            catch (IOException e)
+            {
+                // It's going anyway
+            }
+        }
+        
+        /** The socket. */
+        private final Socket socket;
+        /** Reads from the socket. */
+        private final DataInputStream in;
+        /** Writes to the socket. */
+        private final OutputStream out;
+        /** The topics subscribed to, guarded by the broker. */
+        private final List<String> topics = new ArrayList<> ();
+        /** The client's ID. */
+        private String id;
+        /** The topic of the will, null if there isn't one. */
+        private String will_topic = null;
+        /** The will. */
+        private byte[] will;
+        /** If the will is retained. */
+        private boolean will_retain;
+        /** How long the client can be quiet in milliseconds, zero for ever. */
+        private int timeout = 0;
+        /** If we're pretending the network has gone. */
+        private volatile boolean silent = false;
+    }
+    
+    /**
+     * Reads the fields of a packet body.
+     */
+    private static class Reader
+    {
+        /**
+         * Create a reader.
+         * 
+         * @param data The body.
+         */
+        Reader (byte[] data)
+        {
+            this.data = data;
+        }
+        
+        /**
+         * Read a byte.
+         * 
+         * @return The byte.
+         * 
+         * @throws IOException If there isn't one.
+         */
+        int u8 () throws IOException
+        {
+            if (pos >= data.length)
+                throw new EOFException ("Packet too short");
+            
+            return data[pos++] & 0xff;
+        }
+        
+        /**
+         * Read a two byte number, most significant byte first.
+         * 
+         * @return The number.
+         * 
+         * @throws IOException If there isn't one.
+         */
+        int u16 () throws IOException
+        {
+            return (u8 () << 8) | u8 ();
+        }
+        
+        /**
+         * Read some bytes.
+         * 
+         * @param n How many.
+         * 
+         * @return The bytes.
+         * 
+         * @throws IOException If there aren't enough.
+         */
+        byte[] bytes (int n) throws IOException
+        {
+            if (n > data.length - pos)
+                throw new EOFException ("Packet too short");
+            
+            final byte[] b = new byte[n];
+            
+            System.arraycopy (data, pos, b, 0, n);
+            pos += n;
+            return b;
+        }
+        
+        /**
+         * Read a length prefixed UTF-8 string.
+         * 
+         * @return The string.
+         * 
+         * @throws IOException If there isn't one.
+         */
+        String string () throws IOException
+        {
+            return new String (bytes (u16 ()), StandardCharsets.UTF_8);
+        }
+        
+        /**
+         * Read the rest of the body.
+         * 
+         * @return The bytes.
+         */
+        byte[] rest ()
+        {
+            final byte[] b = new byte[data.length - pos];
+            
+            System.arraycopy (data, pos, b, 0, b.length);
+            pos = data.length;
+            return b;
+        }
+        
+        /**
+         * Find how much is left.
+         * 
+         * @return The number of bytes left.
+         */
+        int remaining ()
+        {
+            return data.length - pos;
+        }
+        
+        /** The body. */
+        private final byte[] data;
+        /** Where we've read up to. */
+        private int pos = 0;
+    }
+    
+    /** Packet type to connect. */
+    private static final int CONNECT = 1;
+    /** Packet type to publish. */
+    private static final int PUBLISH = 3;
+    /** Packet type to subscribe. */
+    private static final int SUBSCRIBE = 8;
+    /** Packet type to unsubscribe. */
+    private static final int UNSUBSCRIBE = 10;
+    /** Packet type to ping. */
+    private static final int PINGREQ = 12;
+    /** Packet type to disconnect. */
+    private static final int DISCONNECT = 14;
+    
+    /** The socket we listen on. */
+    private final ServerSocket server;
+    /** The connected clients by ID. */
+    private final Map<String,Connection> clients = new HashMap<> ();
+    /** Retained messages by topic. */
+    private final Map<String,byte[]> retained = new HashMap<> ();
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import Jimbo.MQTT.MQTTClient;
+
+/**
+ * Sets up the inputs and outputs that need MQTT. These are kept out of the
+ * Listener so that a receiver only using multicast never loads the MQTT or
+ * JSON libraries, which on a small board saves a noticeable amount of time
+ * and memory at startup. Nothing here is touched unless a broker is given.
+ * 
+ * @author Jim Darby
+ */
+class MQTTInputs
+{
+    /**
+     * Create a supervised MQTT listener. It doesn't start until the
+     * supervisor's go method is called. It stays running for as long as
+     * the connection lasts and reconnects when it's lost.
+     * 
+     * @param name The name of the listener.
+     * @param broker The URL of the broker.
+     * @param client The client name.
+     * @param topic The topic to subscribe to.
+     * @param target Where to send the colours.
+     * 
+     * @return The supervisor.
+     */
+    static Supervisor listen (String name, String broker, String client, String topic, CheerListener target)
+    {
+        final MQTTListener listener = new MQTTListener (target);
+        final Supervisor[] supervisor = new Supervisor[1];
+        
+        // Keep trying until the broker is there, and whenever it goes
+        supervisor[0] = new Supervisor (name, () -> listener.listen (broker, client, topic, supervisor[0]));
+        
+        return supervisor[0];
+    }
+    
+    /**
+     * Create a supervised publisher of colour statistics. It doesn't start
+     * until the supervisor's go method is called.
+     * 
+     * @param broker The URL of the broker.
+     * @param client The client name.
+     * @param stats The statistics.
+     * @param topic The topic to publish on.
+     * @param interval The time between publications in seconds.
+     * 
+     * @return The supervisor.
+     */
+    static Supervisor publish (String broker, String client, ColourStats stats, String topic, int interval)
+    {
+        return new Supervisor ("Statistics publisher", () ->
+        {
+            final MQTTClient c = new MQTTClient (broker, client + "-stats");
+            
+            c.run ();
+            stats.publish (c, topic, interval);
+        });
+    }
+    
+    /**
+     * Create a supervised publisher of the frames a display shows. It
+     * doesn't start until the supervisor's go method is called.
+     * 
+     * @param name The name of the publisher.
+     * @param broker The URL of the broker.
+     * @param client The client name.
+     * @param topic The topic to publish on.
+     * @param telemetry Where the frames come from.
+     * 
+     * @return The supervisor.
+     */
+    static Supervisor frames (String name, String broker, String client, String topic, FrameTelemetry telemetry)
+    {
+        final Supervisor[] supervisor = new Supervisor[1];
+        
+        supervisor[0] = new Supervisor (name, () ->
+        {
+            final MqttClient mqtt = new MqttClient (broker, client, new MemoryPersistence ());
+            final MqttConnectOptions options = new MqttConnectOptions ();
+            
+            options.setCleanSession (true);
+            mqtt.connect (options);
+            supervisor[0].running ();
+            
+            try
+            {
+                telemetry.publish ((message, retain) ->
+                {
+                    try
+                    {
+                        mqtt.publish (topic, message, 0, retain);
+                    }
+                    
+                    catch (MqttException e)
+                    {
+                        throw new IOException (e);
+                    }
+                });
+            }
+            
+            finally
+            {
+                try
+                {
+                    if (mqtt.isConnected ())
+                        mqtt.disconnect ();
+                    
+                    mqtt.close ();
+                }
+                
+                catch (MqttException e)
+                {
+                    // We're starting again anyway
+                }
+            }
+        });
+        
+        return supervisor[0];
+    }
+}
@@ -23,6 +23,8 @@ import Jimbo.MQTT.MQTTMessageRecipient;
 
 import java.io.IOException;
 
+import java.nio.charset.StandardCharsets;
+
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -30,13 +32,21 @@ import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.ParseException;
 
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
@@ -72,6 +82,90 @@ public class MQTTListener implements MQTTMessageRecipient
         listener.run ();
     }
     
+    /**
+     * Create a MQTTListener that doesn't connect until listen is called.
+     * 
+     * @param target The CheerListener to feed to results to
+     */
+    MQTTListener (CheerListener target)
+    {
+        this.target = target;
+    }
+    
+    /**
+     * Connect, subscribe and feed messages into the target for as long as
+     * the connection lasts. This is meant to be run by a Supervisor, which
+     * is told when we're connected and reconnects when we fail.
+     * 
+     * @param broker The URI of the MQTT broker
+     * @param client Our client name for the broker
+     * @param topic The topic name to listen to
+     * @param supervisor The supervisor running us
+     * 
+     * @throws MqttException When the connection fails or is lost
+     * @throws InterruptedException If we're interrupted
+     */
+    void listen (String broker, String client, String topic, Supervisor supervisor) throws MqttException, InterruptedException
+    {
+        final MqttClient mqtt = new MqttClient (broker, client, new MemoryPersistence ());
+        final CountDownLatch lost = new CountDownLatch (1);
+        final Throwable[] cause = new Throwable[1];
+        
+        mqtt.setCallback (new MqttCallback ()
+        {
+            @Override
+            public void connectionLost (Throwable t)
+            {
+                cause[0] = t;
+                lost.countDown ();
+            }
+            
+            @Override
+            public void messageArrived (String t, MqttMessage m)
+            {
+                receive (t, new String (m.getPayload (), StandardCharsets.UTF_8));
+            }
+            
+            @Override
+            public void deliveryComplete (IMqttDeliveryToken token)
+            {
+                // We don't send anything
+            }
+        });
+        
+        try
+        {
+            final MqttConnectOptions options = new MqttConnectOptions ();
+            
+            options.setCleanSession (true);
+            mqtt.connect (options);
+            mqtt.subscribe (topic);
+            
+            supervisor.running ();
+            LOG.log (Level.INFO, "Listening to {0} on {1}", new Object[] {topic, broker});
+            
+            // Hold on until the connection goes
+            lost.await ();
+            throw new MqttException (cause[0]);
+        }
+        
+        finally
+        {
+            try
+            {
+                if (mqtt.isConnected ())
+                    mqtt.disconnect ();
+                
+                mqtt.close ();
+            }
+            
+            catch (MqttException e)
+            {
+                // We're starting again anyway
+            }
+        }
+    }
+    
     /**
      * Receive an MQTT message.
      * 
@@ -85,13 +179,37 @@ public class MQTTListener implements MQTTMessageRecipient
         {
             JSONObject j = new JSONObject (message);
             
-            final Instant instant = Instant.ofEpochMilli (j.getLong ("sent")).truncatedTo (ChronoUnit.SECONDS);
-            final LocalDateTime stamp = LocalDateTime.ofInstant (instant, ZONE);
-            final String when = stamp.format (DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+            // Check the message is complete whether or not we log it
+            final String name = j.getString ("name");
+            final String screen = j.getString ("screen");
+            final long sent = j.getLong ("sent");
+            final String text = j.getString ("text");
+            
+            if (LOG.isLoggable (Level.INFO))
+            {
+                final Instant instant = Instant.ofEpochMilli (sent).truncatedTo (ChronoUnit.SECONDS);
+                final LocalDateTime stamp = LocalDateTime.ofInstant (instant, ZONE);
+                final String when = stamp.format (DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+            
+                LOG.log (Level.INFO, "{0} (@{1}) sent {2}: {3}",
+                        new Object[] {name, screen, when, text});
+            }
+            
+            // Newer senders can batch all the colours from one tweet
+            final JSONArray a = j.optJSONArray ("colours");
+            final long apply_at = j.optLong ("apply", 0);
             
-            LOG.log (Level.INFO, "{0} (@{1}) sent {2}: {3}",
-                    new Object[] {j.getString ("name"), j.getString ("screen"), when, j.getString ("text")});
-            target.update(j.getInt ("colour"));
+            if (a != null && a.length () > 0)
+            {
+                final int[] colours = new int[a.length ()];
+                
+                for (int i = 0; i < colours.length; ++i)
+                    colours[i] = a.getInt (i);
+                
+                target.update (new CheerEvent (colours, text, apply_at));
+            }
+            else
+                target.update (new CheerEvent (new int[] {j.getInt ("colour")}, text, apply_at));
         }
         
         catch (JSONException | IOException e)
@@ -25,6 +25,11 @@ import java.net.MulticastSocket;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
 /**
  * This class handles the messages used to broadcast cheerlights data around a
  * network.
@@ -44,7 +49,25 @@ public class Message
      */
     public Message (int colour, String text) throws UnsupportedEncodingException
     {
-        build (colour, text);
+        build (colour, text, 0);
+    }
+    
+    /**
+     * Build a message from a colour that should be shown at a given time.
+     * This uses a different op-code. Older listeners don't ignore it, they
+     * stop listening altogether, so every receiver must be upgraded before
+     * these are sent.
+     * 
+     * @param colour The colour, encoded as 0x00rrggbb.
+     * @param text The associated text.
+     * @param apply_at When to show it, in milliseconds since the epoch on
+     * the SyncClock, or zero for straight away.
+     * 
+     * @throws UnsupportedEncodingException In case of String difficulties.
+     */
+    public Message (int colour, String text, long apply_at) throws UnsupportedEncodingException
+    {
+        build (colour, text, apply_at);
     }
     
     /**
@@ -75,7 +98,7 @@ public class Message
         if (colour < 0)
             throw new IOException ("No known colour in message");
         
-        build (colour, s);
+        build (colour, s, 0);
     }
     
     /**
@@ -83,10 +106,11 @@ public class Message
      * 
      * @param colour The colour to fill in
      * @param string The String we want to send.
+     * @param when When to show it or zero for straight away.
      * 
      * @throws UnsupportedEncodingException In case of String difficulties.
      */
-    private void build (int colour, String string) throws UnsupportedEncodingException
+    private void build (int colour, String string, long when) throws UnsupportedEncodingException
     {
         final byte[] coded = string.getBytes ("UTF-8");
         final int length = coded.length;
@@ -103,59 +127,32 @@ public class Message
         else
             lenlen = 5;
         
-        // Now build the blob
-        blob = new byte[4 + lenlen + length];
+        // Now build the blob, with room for the time if there is one
+        final int header = (when == 0) ? 4 : 12;
+        
+        blob = new byte[header + lenlen + length];
         
-        blob[0] = CHEERS;
+        blob[0] = (byte) ((when == 0) ? CHEERS : CHEERS_AT);
         blob[1] = (byte) (colour >> 16);
         blob[2] = (byte) (colour >> 8);
         blob[3] = (byte) colour;
         
-        final int upto;
+        if (when != 0)
+            for (int i = 0; i < 8; ++i)
+                blob[4 + i] = (byte) (when >>> (56 - 8 * i));
         
-        switch (lenlen)
-        {
-            case 1:			 // Length [0,0x7f]
-                blob[4] = (byte) length; // This works because the top bit isn't set
-                upto = 5;
-                break;
-                
-            case 2:			 // Length [0x80,(0x7f<<7)|0x7f=0x3fff] 
-                blob[4] = (byte) ((length >> 7) | 0x80);
-                blob[5] = (byte) (length & 0x7f);
-                upto = 6;
-                break;
-                
-            case 3:			 // Length [0x4000,0x1fffff]
-                blob[4] = (byte) ((length >> 14) | 0x80);
-                blob[5] = (byte) ((length >>  7) | 0x80);
-                blob[6] = (byte) (length & 0x7f);
-                upto = 7;
-                break;
-                
-            case 4:			 // Length [0x200000,0xfffffff]
-                blob[4] = (byte) ((length >> 21) | 0x80);
-		blob[5] = (byte) ((length >> 14) | 0x80);
-		blob[6] = (byte) ((length >>  7) | 0x80);
-                blob[7] = (byte) (length & 0x7f);
-                upto = 8;
-                break;
+        final int upto = header + lenlen;
         
-            case 5:			 // Length [0x10000000,0x7ffffffff] 
-                blob[4] = (byte) ((length >> 28) | 0x80);
-                blob[5] = (byte) ((length >> 21) | 0x80);
-		blob[6] = (byte) ((length >> 14) | 0x80);
-		blob[7] = (byte) ((length >>  7) | 0x80);
-		blob[9] = (byte) (length & 0x7f);
-                upto = 9;
-                break;
-                
-            default:
-                throw new java.lang.AssertionError ("Impossible String length");                   
-        }
+        // The length goes most significant seven bits first with the top
+        // bit set on all but the last byte.
+        for (int i = 0; i < lenlen - 1; ++i)
+            blob[header + i] = (byte) ((length >>> (7 * (lenlen - 1 - i))) | 0x80);
+        
+        blob[upto - 1] = (byte) (length & 0x7f);
         
         text = string;
         rgb = colour;
+        apply_at = when;
         
         // Finally add the string to the end
         System.arraycopy (coded, 0, blob, upto, length);
@@ -175,15 +172,26 @@ public class Message
             throw new IOException ("Cheerligths message too small");
         
         // Check op-code
-        if (data[0] != CHEERS)
+        if (data[0] != CHEERS && data[0] != CHEERS_AT)
             throw new IOException ("Cheerlights message not cheerlights!");
         
         // Parse out RGB
         rgb = ((data[1] & 0xff) << 16) | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
         
+        int upto = 4;
+        
+        // And the time to show it, if there is one
+        if (data[0] == CHEERS_AT)
+        {
+            if (data.length < 13)
+                throw new IOException ("Cheerlights message too small");
+            
+            for (; upto < 12; ++upto)
+                apply_at = (apply_at << 8) | (data[upto] & 0xff);
+        }
+        
         // Peel off the length
         int length = 0;
-        int upto = 4;
         boolean end = false;
         
         while (!end)
@@ -206,6 +214,44 @@ public class Message
         blob = data;
     }
     
+    /**
+     * Check that some data looks like a cheerlights message without
+     * building one. This checks the op-code and that the length fits the
+     * data but not that the text is valid UTF-8. It doesn't allocate
+     * anything so it's cheap enough to turn away rubbish with.
+     * 
+     * @param data The data.
+     * @param offset Where the message starts.
+     * @param length The length of the message.
+     * 
+     * @return If it looks right.
+     */
+    public static boolean validate (byte data[], int offset, int length)
+    {
+        final int header = (length > 0 && data[offset] == CHEERS_AT) ? 12 : 4;
+        
+        if (length < header + 1 || (data[offset] != CHEERS && data[offset] != CHEERS_AT))
+            return false;
+        
+        final int end = offset + length;
+        long text = 0;
+        int upto = offset + header;
+        
+        // At most five bytes of length
+        for (int i = 0; i < 5; ++i, ++upto)
+        {
+            if (upto >= end)
+                return false;
+            
+            text = (text << 7) + (data[upto] & 0x7f);
+            
+            if ((data[upto] & 0x80) == 0)
+                return end - (upto + 1) == text;
+        }
+        
+        return false;
+    }
+    
     /**
      * Get the RGB value. Stored as 0xrrggbb.
      * @return The RBG value.
@@ -215,6 +261,16 @@ public class Message
         return rgb;
     }
     
+    /**
+     * Get when to show the colour.
+     * @return The time in milliseconds since the epoch on the SyncClock or
+     * zero for straight away.
+     */
+    public long getApplyAt ()
+    {
+        return apply_at;
+    }
+    
     /**
      * Get the text value.
      * @return The text.
@@ -250,15 +306,18 @@ public class Message
         return result;
     }
     
-    public static void main (String args[]) throws IOException
+    public static void main (String args[]) throws IOException, ParseException
     {
-        final MulticastSocket socket = new MulticastSocket ();
-	final InetAddress address = InetAddress.getByName ("224.1.1.1");
-        final short port = 5123;
+        final Options options = new Options ();
+        
+        options.addOption (null, Listener.CONFIG_KEY, true, "Configuration file");
+        Multicast.add_options (options);
         
-        socket.setTimeToLive (3);
+        final CommandLine command = new DefaultParser ().parse (options, args);
+        final Multicast multicast = new Multicast (command, Listener.getConfig (command));
+        final MulticastSocket socket = multicast.openSender ();
         
-        for (String arg : args)
+        for (String arg : command.getArgs ())
         {
             Message m = new Message (arg);
             System.out.println (arg + " ->");
@@ -269,9 +328,9 @@ public class Message
             try
             {                
                 final byte[] buffer = m.getBlob ();
-                final DatagramPacket packet = new DatagramPacket (buffer, buffer.length, address, port);
                 
-                socket.send (packet);
+                for (InetAddress group : multicast.getGroups ())
+                    socket.send (new DatagramPacket (buffer, buffer.length, group, multicast.getPort ()));
             }
             
             catch (IOException e)
@@ -287,11 +346,15 @@ public class Message
     
     /** The code for this message. */
     private final static int CHEERS = 1;
+    /** The code for this message with a time to show it. */
+    private final static int CHEERS_AT = 2;
     
     /** Where we store the text. */
     private String text;
     /** Where we store the RGB value */
     private int rgb;
+    /** When to show it, zero for straight away. */
+    private long apply_at = 0;
     /** Where we store the blob. */
     private byte blob[];
 }
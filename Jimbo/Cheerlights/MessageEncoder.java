@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Encodes and sends cheerlights messages without building any arrays on the
+ * way. The header, length and UTF-8 text are written straight into a
+ * direct buffer, taken from a pool along with its own encoder so concurrent
+ * senders don't share one, and sent to every group through a datagram
+ * channel. The wire format is exactly that of Message.
+ * 
+ * @author Jim Darby
+ */
+public class MessageEncoder implements Closeable
+{
+    /**
+     * Create an encoder sending with the given multicast settings.
+     * 
+     * @param multicast The settings.
+     * 
+     * @throws IOException If the channels can't be opened.
+     */
+    public MessageEncoder (Multicast multicast) throws IOException
+    {
+        final List<InetAddress> groups = multicast.getGroups ();
+        
+        targets = new InetSocketAddress[groups.size ()];
+        channels = new DatagramChannel[groups.size ()];
+        
+        for (int i = 0; i < targets.length; ++i)
+        {
+            final InetAddress group = groups.get (i);
+            final ProtocolFamily family = (group instanceof Inet4Address) ?
+                    StandardProtocolFamily.INET : StandardProtocolFamily.INET6;
+            
+            targets[i] = new InetSocketAddress (group, multicast.getPort ());
+            
+            // Groups of the same family share a channel
+            for (int j = 0; j < i && channels[i] == null; ++j)
+                if (groups.get (j).getClass () == group.getClass ())
+                    channels[i] = channels[j];
+            
+            if (channels[i] == null)
+            {
+                channels[i] = DatagramChannel.open (family);
+                channels[i].setOption (StandardSocketOptions.IP_MULTICAST_TTL, multicast.getTTL ());
+                
+                if (multicast.getInterface () != null)
+                    channels[i].setOption (StandardSocketOptions.IP_MULTICAST_IF, multicast.getInterface ());
+            }
+        }
+    }
+    
+    /**
+     * Send a colour and its text to all the groups. Each group gets its own
+     * copy.
+     * 
+     * @param colour The colour, encoded as 0x00rrggbb.
+     * @param text The text.
+     * 
+     * @throws IOException If it can't be sent.
+     */
+    public void send (int colour, CharSequence text) throws IOException
+    {
+        send (colour, text, 0);
+    }
+    
+    /**
+     * Send a colour and its text to all the groups, to be shown at a given
+     * time. Older listeners stop listening when they get one of these so
+     * every receiver must be upgraded first.
+     * 
+     * @param colour The colour, encoded as 0x00rrggbb.
+     * @param text The text.
+     * @param apply_at When to show it, in milliseconds since the epoch on
+     * the SyncClock, or zero for straight away.
+     * 
+     * @throws IOException If it can't be sent.
+     */
+    public void send (int colour, CharSequence text, long apply_at) throws IOException
+    {
+        final int length = utf8Length (text);
+        final int size = ((apply_at == 0) ? 4 : 12) + lengthLength (length) + length;
+        final Scratch scratch = take ();
+        final ByteBuffer buffer = (size <= BUFFER_SIZE) ? scratch.buffer : ByteBuffer.allocateDirect (size);
+        
+        try
+        {
+            encode (scratch.encoder, colour, text, apply_at, length, buffer);
+            
+            for (int i = 0; i < targets.length; ++i)
+            {
+                buffer.position (0);
+                channels[i].send (buffer, targets[i]);
+            }
+        }
+        
+        finally
+        {
+            pool.offer (scratch);
+        }
+    }
+    
+    /**
+     * Encode a message into a buffer. On return the buffer is flipped,
+     * ready to be sent.
+     * 
+     * @param encoder The encoder to use.
+     * @param colour The colour.
+     * @param text The text.
+     * @param apply_at When to show it or zero for straight away.
+     * @param length The length of the text in UTF-8.
+     * @param buffer The buffer, large enough for the message.
+     */
+    private static void encode (CharsetEncoder encoder, int colour, CharSequence text, long apply_at, int length, ByteBuffer buffer)
+    {
+        buffer.clear ();
+        buffer.put ((apply_at == 0) ? CHEERS : CHEERS_AT)
+                .put ((byte) (colour >> 16))
+                .put ((byte) (colour >> 8))
+                .put ((byte) colour);
+        
+        if (apply_at != 0)
+            buffer.putLong (apply_at);
+        
+        putLength (buffer, length);
+        
+        encoder.reset ();
+        
+        final CharBuffer chars = CharBuffer.wrap (text);
+        CoderResult result = encoder.encode (chars, buffer, true);
+        
+        if (!result.isError ())
+            result = encoder.flush (buffer);
+        
+        if (result.isError () || result.isOverflow ())
+            throw new AssertionError ("Message text didn't fit its computed length");
+        
+        buffer.flip ();
+    }
+    
+    /**
+     * Get a buffer and encoder from the pool or make new ones.
+     * 
+     * @return The buffer and encoder.
+     */
+    private Scratch take ()
+    {
+        final Scratch s = pool.poll ();
+        
+        return (s != null) ? s : new Scratch ();
+    }
+    
+    /**
+     * Make a UTF-8 encoder that replaces anything it can't encode.
+     * 
+     * @return The encoder.
+     */
+    private static CharsetEncoder newEncoder ()
+    {
+        return StandardCharsets.UTF_8.newEncoder ()
+                .onMalformedInput (CodingErrorAction.REPLACE)
+                .onUnmappableCharacter (CodingErrorAction.REPLACE);
+    }
+    
+    /**
+     * A buffer and the encoder that fills it. Neither can be shared between
+     * threads so they're pooled together.
+     */
+    private static class Scratch
+    {
+        /** The buffer to build messages in. */
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect (BUFFER_SIZE);
+        /** Turns text into UTF-8. */
+        private final CharsetEncoder encoder = newEncoder ();
+    }
+    
+    /**
+     * Close the channels.
+     * 
+     * @throws IOException In case of error.
+     */
+    @Override
+    public void close () throws IOException
+    {
+        for (DatagramChannel c : channels)
+            if (c.isOpen ())
+                c.close ();
+    }
+    
+    /**
+     * Work out the length of some text in UTF-8. Unpaired surrogates count
+     * as one byte as the encoder replaces them with a question mark.
+     * 
+     * @param text The text.
+     * @return The length in bytes.
+     */
+    static int utf8Length (CharSequence text)
+    {
+        int length = 0;
+        
+        for (int i = 0; i < text.length (); ++i)
+        {
+            final char c = text.charAt (i);
+            
+            if (c < 0x80)
+                length += 1;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate (c) && i + 1 < text.length () && Character.isLowSurrogate (text.charAt (i + 1)))
+            {
+                length += 4;
+                i += 1;
+            }
+            else if (Character.isSurrogate (c))
+                length += 1;
+            else
+                length += 3;
+        }
+        
+        return length;
+    }
+    
+    /**
+     * Work out how many bytes a length takes to write.
+     * 
+     * @param length The length.
+     * @return The number of bytes, one to five.
+     */
+    static int lengthLength (int length)
+    {
+        int n = 1;
+        
+        while ((length >>>= 7) != 0)
+            n += 1;
+        
+        return n;
+    }
+    
+    /**
+     * Write a length. The most significant seven bits come first and every
+     * byte but the last has its top bit set.
+     * 
+     * @param buffer Where to write it.
+     * @param length The length.
+     */
+    static void putLength (ByteBuffer buffer, int length)
+    {
+        for (int shift = 7 * (lengthLength (length) - 1); shift > 0; shift -= 7)
+            buffer.put ((byte) ((length >>> shift) | 0x80));
+        
+        buffer.put ((byte) (length & 0x7f));
+    }
+    
+    /**
+     * Read a length written by putLength.
+     * 
+     * @param buffer Where to read it from.
+     * @return The length.
+     */
+    static int getLength (ByteBuffer buffer)
+    {
+        int length = 0;
+        byte b;
+        
+        do
+        {
+            b = buffer.get ();
+            length = (length << 7) | (b & 0x7f);
+        }
+        while ((b & 0x80) != 0);
+        
+        return length;
+    }
+    
+    /**
+     * Check the encoder against Message and the length encoding at every
+     * boundary.
+     * 
+     * @param args Ignored.
+     * 
+     * @throws IOException If a message fails to decode.
+     */
+    public static void main (String args[]) throws IOException
+    {
+        final int[] lengths = {0, 1, 0x7f, 0x80, 0x3fff, 0x4000, 0x1fffff, 0x200000,
+            0xfffffff, 0x10000000, Integer.MAX_VALUE};
+        final int[] expect = {1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5};
+        final ByteBuffer b = ByteBuffer.allocate (5);
+        boolean ok = true;
+        
+        for (int i = 0; i < lengths.length; ++i)
+        {
+            b.clear ();
+            putLength (b, lengths[i]);
+            b.flip ();
+            
+            final int written = b.remaining ();
+            final int read = getLength (b);
+            
+            if (written != expect[i] || read != lengths[i])
+            {
+                System.out.println ("Length " + lengths[i] + " took " + written + " bytes and read back as " + read);
+                ok = false;
+            }
+        }
+        
+        // Now check whole messages, including multi-byte characters, decode
+        final MessageEncoder e = new MessageEncoder (new Multicast ());
+        final CharsetEncoder encoder = newEncoder ();
+        final String[] texts = {"", "red", "caf\u00e9 \u2603 \ud83d\ude00 blue", "half \ud83d surrogate",
+            new String (new char[0x3fff]).replace ('\0', 'x'), new String (new char[0x4000]).replace ('\0', 'x')};
+        
+        for (String t : texts)
+            for (long when : new long[] {0, 1_500_000_000_123L})
+            {
+                final int length = utf8Length (t);
+                final ByteBuffer m = ByteBuffer.allocate (((when == 0) ? 4 : 12) + lengthLength (length) + length);
+            
+                encode (encoder, 0x123456, t, when, length, m);
+            
+                final byte[] blob = new byte[m.remaining ()];
+            
+                m.get (blob);
+            
+                final Message decoded = new Message (blob);
+                final Message built = new Message (0x123456, t, when);
+            
+                if (decoded.getRGB () != 0x123456 || decoded.getApplyAt () != when ||
+                        !Arrays.equals (blob, built.getBlob ()) || !Message.validate (blob, 0, blob.length))
+                {
+                    System.out.println ("Message \"" + t.substring (0, Math.min (20, t.length ())) + "\" didn't match");
+                    ok = false;
+                }
+            }
+        
+        e.close ();
+        System.out.println (ok ? "All good" : "FAILED");
+    }
+    
+    /** The op-code for a cheerlights message. */
+    private static final byte CHEERS = 1;
+    /** The op-code for a cheerlights message with a time to show it. */
+    private static final byte CHEERS_AT = 2;
+    /** The size of pooled buffers, large enough for any tweet. */
+    private static final int BUFFER_SIZE = 2048;
+    
+    /** Where each group is. */
+    private final InetSocketAddress[] targets;
+    /** The channel used for each group. */
+    private final DatagramChannel[] channels;
+    /** Buffers and encoders ready for use. */
+    private final ConcurrentLinkedQueue<Scratch> pool = new ConcurrentLinkedQueue<> ();
+}
@@ -24,11 +24,12 @@ import java.util.logging.Level;
 import java.net.MulticastSocket;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.util.Arrays;
 
 /**
  * A class to listen for multicast packets containing colour update 
- * information.
+ * information. Packets that can't be understood are counted and skipped
+ * and if the socket itself fails it's reopened by a Supervisor.
  * 
  * @author Jim Darby
  */
@@ -36,16 +37,45 @@ public class MessageListener implements Runnable
 {
     private static final Logger LOG = Logger.getLogger ("MessageListener");
 
+    /**
+     * Create a multicast message listener using the default settings. It
+     * doesn't start running until the go method is called.
+     * 
+     * @param target The target to feed colour updates into
+     */
+    public MessageListener (CheerListener target)
+    {
+        this (target, new Multicast ());
+    }
+    
     /**
      * Create a multicast message listener. It doesn't start running until
      * the go method is called.
      * 
      * @param target The target to feed colour updates into
+     * @param multicast The multicast settings to use
      */
-    public MessageListener (CheerListener target)
+    public MessageListener (CheerListener target, Multicast multicast)
+    {
+        this (target, multicast, new Admission ());
+    }
+    
+    /**
+     * Create a multicast message listener with admission control. It
+     * doesn't start running until the go method is called.
+     * 
+     * @param target The target to feed colour updates into
+     * @param multicast The multicast settings to use
+     * @param admission Who to let in
+     */
+    public MessageListener (CheerListener target, Multicast multicast, Admission admission)
     {
-        LOG.info ("MessageListener created");
+        LOG.log (Level.INFO, "MessageListener created for {0} port {1}",
+                new Object[] {multicast.getGroups (), multicast.getPort ()});
 	this.target = target;
+        this.multicast = multicast;
+        this.admission = admission;
+        supervisor = new Supervisor ("Multicast Listener", this::listen);
     }
     
     /**
@@ -54,9 +84,7 @@ public class MessageListener implements Runnable
      */
     public void go ()
     {
-        Thread t = new Thread (this, "Multicast Listener");
-        
-        t.start ();
+        supervisor.go ();
         LOG.info ("MessageListener started");
     }
     
@@ -68,46 +96,115 @@ public class MessageListener implements Runnable
     @Override
     public void run ()
     {
-        try
+        supervisor.run ();
+    }
+    
+    /**
+     * Get what the listener is doing.
+     * 
+     * @return The state.
+     */
+    public Supervisor.State getState ()
+    {
+        return supervisor.getState ();
+    }
+    
+    /**
+     * Get the supervisor that keeps the listener running.
+     * 
+     * @return The supervisor.
+     */
+    public Supervisor getSupervisor ()
+    {
+        return supervisor;
+    }
+    
+    /**
+     * Get the number of packets that couldn't be understood.
+     * 
+     * @return The count.
+     */
+    public long getParseErrors ()
+    {
+        return parse_errors;
+    }
+    
+    /**
+     * Listen until the socket fails.
+     * 
+     * @throws IOException When the socket fails.
+     */
+    private void listen () throws IOException
+    {
+        try (MulticastSocket socket = multicast.openReceiver ())
         {
-            final MulticastSocket socket = new MulticastSocket (5123);
-            final InetAddress group = InetAddress.getByName ("224.1.1.1");
-
-            socket.joinGroup (group);
-
-            final byte[] buffer = new byte[1024];
+            final byte[] buffer = new byte[multicast.getBufferSize ()];
             final DatagramPacket packet = new DatagramPacket (buffer, buffer.length);
 
+            supervisor.running ();
             LOG.log (Level.INFO, "And we're off....");
 
             while (true)
             {
+                // Receiving shrinks the packet to what arrived so reset it
+                packet.setLength (buffer.length);
                 socket.receive (packet);
 
                 final InetAddress rx_addr = packet.getAddress ();
                 final int rx_port = packet.getPort ();            
-                final byte[] data = new byte[packet.getLength()];
+                
+                // Turn away floods and rubbish before spending anything on them
+                if (!admission.admit (rx_addr, System.nanoTime ()))
+                    continue;
+                
+                if (!Message.validate (buffer, 0, packet.getLength ()))
+                {
+                    parse_errors += 1;
+                    continue;
+                }
+                
+                final byte[] data = Arrays.copyOf (buffer, packet.getLength ());
+                final Message m;
+                
+                try
+                {
+                    m = new Message (data);
+                }
+                
+                catch (IOException e)
+                {
+                    // One bad packet shouldn't stop us hearing the good ones
+                    parse_errors += 1;
+                    LOG.log (Level.WARNING, "Bad packet from {0}: {1}",
+                            new Object[] {rx_addr, e.getLocalizedMessage ()});
+                    continue;
+                }
 
-                System.arraycopy(packet.getData(), 0, data, 0, packet.getLength ());
+                // Looking up the name can take a while so only do it if needed
+                if (LOG.isLoggable (Level.INFO))
+                    LOG.log (Level.INFO, "{0}:{1}: {2}", new Object[] {rx_addr.getCanonicalHostName (), rx_port, m.getText ()});
 
-                final Message m = new Message (data);
-
-                LOG.log (Level.INFO, "{0}:{1}: {2}", new Object[] {rx_addr.getCanonicalHostName (), rx_port, m.getText ()});
-                target.update (m.getRGB ());
+                try
+                {
+                    target.update (new CheerEvent (new int[] {m.getRGB ()}, m.getText (), m.getApplyAt ()));
+                }
+                
+                catch (IOException e)
+                {
+                    LOG.log (Level.WARNING, "Failed to update: {0}", e.getLocalizedMessage ());
+                }
             }
         }
-        
-        catch (UnknownHostException e)
-        {
-            LOG.log (Level.WARNING, "MessageListener failed: UnknownHostException {0}", e.getLocalizedMessage ());
-        }
-        
-        catch (IOException  e)
-        {
-            LOG.log (Level.WARNING, "MessageListener failed: IOException {0}", e.getLocalizedMessage ());
-        }
     }
 
     /** The target we want to update. */
     private final CheerListener target;
+    /** The multicast settings. */
+    private final Multicast multicast;
+    /** Who we let in. */
+    private final Admission admission;
+    /** What keeps us running. */
+    private final Supervisor supervisor;
+    /** The number of packets that couldn't be understood. */
+    private volatile long parse_errors = 0;
 }
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * A lease held through a retained message on an MQTT broker, for processes
+ * on different machines. The message names the holder, who republishes it
+ * every period. If nothing is heard for four periods, or the holder's
+ * connection drops and the broker publishes its empty will, anyone can
+ * claim it by publishing their own name.
+ * 
+ * The broker puts all the messages on a topic in one order, so when two
+ * processes claim at once everyone agrees the last claim won. A claim only
+ * counts once it's come back from the broker and nobody has overridden it
+ * for a period. A holder that stops hearing its own renewals for two
+ * periods, say because it's been cut off, gives up, and renewals time out
+ * after a period, so it has stopped before anyone else can claim.
+ * 
+ * @author Jim Darby
+ */
+public class MqttLease implements Lease
+{
+    /**
+     * Create a lease. It doesn't connect to the broker until first
+     * renewed.
+     * 
+     * @param broker The URL of the broker.
+     * @param id Our name, which must be unique among the processes.
+     * @param topic The topic the lease is held on.
+     * @param period How often to renew in milliseconds.
+     * 
+     * @throws IOException If the client can't be created.
+     */
+    public MqttLease (String broker, String id, String topic, int period) throws IOException
+    {
+        try
+        {
+            client = new MqttClient (broker, id, new MemoryPersistence ());
+            
+            // Don't wait for ever on a broker that's stopped answering
+            client.setTimeToWait (period);
+        }
+        
+        catch (MqttException e)
+        {
+            throw new IOException ("Failed to create lease client: " + e.getLocalizedMessage (), e);
+        }
+        
+        this.id = id;
+        this.topic = topic;
+        this.period = period;
+        this.period_ns = period * 1_000_000L;
+        expiry = 4 * period_ns;
+    }
+    
+    @Override
+    public synchronized boolean renew () throws IOException
+    {
+        if (!client.isConnected ())
+            connect ();
+        
+        final long now = System.nanoTime ();
+        
+        if (id.equals (holder) && now - heard <= expiry)
+        {
+            if (now - sent >= period_ns)
+                publish (id, now);
+            
+            // Stop counting on it two periods before anyone else can claim
+            // it: one for the renewal to time out and one until the next
+            final long after = System.nanoTime ();
+            
+            return after - since >= period_ns && after - heard <= expiry - 2 * period_ns;
+        }
+        
+        if ((holder == null || holder.isEmpty () || now - heard > expiry) && now - sent >= period_ns)
+            publish (id, now);
+        
+        return false;
+    }
+    
+    @Override
+    public synchronized void release ()
+    {
+        if (!id.equals (holder))
+            return;
+        
+        try
+        {
+            publish ("", System.nanoTime ());
+        }
+        
+        catch (IOException e)
+        {
+            // It'll expire instead
+        }
+        
+        holder = null;
+    }
+    
+    @Override
+    public int getPeriod ()
+    {
+        return period;
+    }
+    
+    /**
+     * Connect to the broker, leaving an empty lease as our will so the
+     * lease is freed straight away if we vanish.
+     * 
+     * @throws IOException If it fails.
+     */
+    private void connect () throws IOException
+    {
+        final MqttConnectOptions options = new MqttConnectOptions ();
+        
+        options.setCleanSession (true);
+        options.setKeepAliveInterval (Math.max (1, 2 * period / 1000));
+        options.setConnectionTimeout (Math.max (1, 4 * period / 1000));
+        options.setWill (topic, new byte[0], 1, true);
+        
+        try
+        {
+            client.connect (options);
+            client.subscribe (topic, 1, (t, m) -> heard (new String (m.getPayload (), StandardCharsets.UTF_8)));
+        }
+        
+        catch (MqttException e)
+        {
+            throw new IOException ("Failed to connect lease: " + e.getLocalizedMessage (), e);
+        }
+        
+        // Forget what we knew before, we may have lost the lease while cut
+        // off, and give the retained lease a chance to arrive before claiming
+        holder = null;
+        heard = sent = System.nanoTime ();
+    }
+    
+    /**
+     * Publish a holder.
+     * 
+     * @param name Who holds it, empty for nobody.
+     * @param now The time now in nanoseconds.
+     * 
+     * @throws IOException If it fails.
+     */
+    private void publish (String name, long now) throws IOException
+    {
+        try
+        {
+            client.publish (topic, name.getBytes (StandardCharsets.UTF_8), 1, true);
+            sent = now;
+        }
+        
+        catch (MqttException e)
+        {
+            throw new IOException ("Failed to publish lease: " + e.getLocalizedMessage (), e);
+        }
+    }
+    
+    /**
+     * Handle hearing who holds the lease.
+     * 
+     * @param name The holder, empty for nobody.
+     */
+    private synchronized void heard (String name)
+    {
+        final long now = System.nanoTime ();
+        
+        if (name.equals (id) && !id.equals (holder))
+            since = now;
+        
+        holder = name;
+        heard = now;
+    }
+    
+    /**
+     * Check two leases against a LocalBroker: that only one holds the lease
+     * at a time, that the other takes over when the holder dies and when
+     * it's cut off, and how long that takes.
+     * 
+     * @param args The period in milliseconds, default 150.
+     * 
+     * @throws IOException If the broker or leases can't be set up.
+     * @throws InterruptedException If we're interrupted.
+     */
+    public static void main (String args[]) throws IOException, InterruptedException
+    {
+        final int period = (args.length > 0) ? Integer.parseInt (args[0]) : 150;
+        final LocalBroker broker = new LocalBroker ();
+        final Renewer a = new Renewer (new MqttLease (broker.getURL (), "lease-a", "lease", period));
+        final Renewer b = new Renewer (new MqttLease (broker.getURL (), "lease-b", "lease", period));
+        boolean ok = true;
+        
+        // The first one going gets it and the second leaves it alone
+        a.start ();
+        ok &= a.waitFor (40 * period) >= 0;
+        b.start ();
+        Thread.sleep (10 * period);
+        ok &= a.held && !b.held;
+        
+        // The holder dies
+        a.stop ();
+        broker.drop ("lease-a");
+        
+        final long died = b.waitFor (40 * period);
+        
+        System.out.println ("Took over from a dead holder in " + died + " ms");
+        ok &= died >= 0;
+        
+        // It comes back and waits its turn
+        a.start ();
+        Thread.sleep (10 * period);
+        ok &= b.held && !a.held;
+        
+        // The holder is cut off, it has to give up before the other takes over
+        broker.silence ("lease-b");
+        
+        final long cut = a.waitFor (40 * period);
+        
+        System.out.println ("Took over from a cut off holder in " + cut + " ms");
+        ok &= cut >= 0 && !b.held;
+        
+        System.out.println ("Times both held the lease: " + Renewer.OVERLAPS.get ());
+        ok &= Renewer.OVERLAPS.get () == 0;
+        
+        System.out.println (ok ? "All good" : "FAILED");
+        System.exit (ok ? 0 : 1);
+    }
+    
+    /**
+     * Renews a lease every period on a thread of its own, as
+     * HighAvailability does, keeping count of how many hold it.
+     */
+    private static class Renewer
+    {
+        /**
+         * Create a renewer.
+         * 
+         * @param lease The lease to renew.
+         */
+        Renewer (MqttLease lease)
+        {
+            this.lease = lease;
+        }
+        
+        /**
+         * Start renewing.
+         */
+        void start ()
+        {
+            final Thread t = new Thread (this::run, "Renew " + lease.id);
+            
+            thread = t;
+            t.setDaemon (true);
+            t.start ();
+        }
+        
+        /**
+         * Stop renewing, as if the process had died.
+         */
+        void stop ()
+        {
+            synchronized (Renewer.class)
+            {
+                thread = null;
+                
+                if (held)
+                {
+                    held = false;
+                    HOLDERS.decrementAndGet ();
+                }
+            }
+        }
+        
+        /**
+         * Wait for us to hold the lease.
+         * 
+         * @param limit The longest to wait in milliseconds.
+         * 
+         * @return How long it took in milliseconds, or -1 if it didn't
+         * happen.
+         * 
+         * @throws InterruptedException If we're interrupted.
+         */
+        long waitFor (long limit) throws InterruptedException
+        {
+            final long start = System.nanoTime ();
+            
+            while (!held)
+            {
+                if (System.nanoTime () - start > limit * 1_000_000L)
+                    return -1;
+                
+                Thread.sleep (1);
+            }
+            
+            return (System.nanoTime () - start) / 1_000_000L;
+        }
+        
+        /**
+         * Renew until stopped.
+         */
+        private void run ()
+        {
+            while (thread == Thread.currentThread ())
+            {
+                boolean now;
+                
+                try
+                {
+                    now = lease.renew ();
+                }
+                
+                catch (IOException e)
+                {
+                    now = false;
+                }
+                
+                synchronized (Renewer.class)
+                {
+                    if (thread != Thread.currentThread ())
+                        return;
+                    
+                    if (now && !held && HOLDERS.incrementAndGet () > 1)
+                        OVERLAPS.incrementAndGet ();
+                    else if (!now && held)
+                        HOLDERS.decrementAndGet ();
+                    
+                    held = now;
+                }
+                
+                try
+                {
+                    Thread.sleep (lease.getPeriod ());
+                }
+                
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+        
+        /** How many renewers hold the lease. */
+        static final AtomicInteger HOLDERS = new AtomicInteger ();
+        /** How many times one has taken the lease while another held it. */
+        static final AtomicInteger OVERLAPS = new AtomicInteger ();
+        
+        /** The lease. */
+        private final MqttLease lease;
+        /** The thread renewing, null when stopped. */
+        private volatile Thread thread = null;
+        /** If we held the lease at the last renewal. */
+        private volatile boolean held = false;
+    }
+    
+    /** Our client. */
+    private final MqttClient client;
+    /** Our name. */
+    private final String id;
+    /** The lease topic. */
+    private final String topic;
+    /** How often to renew in milliseconds. */
+    private final int period;
+    /** How often to renew in nanoseconds. */
+    private final long period_ns;
+    /** How long the lease lasts without renewal in nanoseconds. */
+    private final long expiry;
+    /** Who we last heard holds the lease, null if we've heard nothing. */
+    private String holder = null;
+    /** When we last heard about the lease. */
+    private long heard;
+    /** When we last published. */
+    private long sent;
+    /** When we became the holder. */
+    private long since;
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * The multicast settings shared by everything that sends or receives
+ * CheerLights messages: the groups, port, time to live, interface and
+ * receive buffer size. Both IPv4 and IPv6 groups can be used.
+ *
+ * Several groups can be given. Senders send every message to all of them
+ * and receivers join all of them, so extra groups copy the traffic rather
+ * than share it out. To keep a stream away from displays that don't show
+ * it, give its sender only the groups those displays don't join.
+ *
+ * @author Jim Darby
+ */
+public class Multicast
+{
+    /**
+     * Create the default settings.
+     */
+    public Multicast ()
+    {
+        try
+        {
+            groups = Collections.singletonList (InetAddress.getByName (DEFAULT_GROUP));
+        }
+
+        catch (UnknownHostException e)
+        {
+            throw new java.lang.AssertionError ("Default group isn't an address");
+        }
+
+        port = DEFAULT_PORT;
+        ttl = DEFAULT_TTL;
+        nif = null;
+        buffer_size = DEFAULT_BUFFER_SIZE;
+    }
+
+    /**
+     * Create the settings from the command line, falling back to the
+     * configuration and then the defaults.
+     *
+     * @param command The command line.
+     * @param config The configuration.
+     *
+     * @throws ParseException If any of the settings are invalid.
+     */
+    public Multicast (CommandLine command, Properties config) throws ParseException
+    {
+        final String group_list = Listener.getValue (command, config, GROUP_KEY, DEFAULT_GROUP);
+        final List<InetAddress> g = new ArrayList<> ();
+
+        for (String name : group_list.split (","))
+        {
+            try
+            {
+                final InetAddress a = InetAddress.getByName (name.trim ());
+
+                if (!a.isMulticastAddress ())
+                    throw new ParseException ("Not a multicast group: " + name);
+
+                g.add (a);
+            }
+
+            catch (UnknownHostException e)
+            {
+                throw new ParseException ("Unknown multicast group: " + name);
+            }
+        }
+
+        groups = Collections.unmodifiableList (g);
+        port = Listener.getInt (command, config, PORT_KEY, DEFAULT_PORT, 1, 65535);
+        ttl = Listener.getInt (command, config, TTL_KEY, DEFAULT_TTL, 0, 255);
+        buffer_size = Listener.getInt (command, config, BUFFER_KEY, DEFAULT_BUFFER_SIZE, 5, 65535);
+
+        final String name = Listener.getValue (command, config, INTERFACE_KEY, null);
+
+        if (name == null)
+            nif = null;
+        else
+        {
+            try
+            {
+                NetworkInterface n = NetworkInterface.getByName (name);
+
+                // Allow an address on the interface too
+                if (n == null)
+                    n = NetworkInterface.getByInetAddress (InetAddress.getByName (name));
+
+                if (n == null)
+                    throw new ParseException ("Unknown interface: " + name);
+
+                nif = n;
+            }
+
+            catch (SocketException | UnknownHostException e)
+            {
+                throw new ParseException ("Unknown interface: " + name);
+            }
+        }
+    }
+
+    /**
+     * Create a copy of some settings with different groups.
+     *
+     * @param base The settings to copy.
+     * @param groups The groups to use instead.
+     */
+    private Multicast (Multicast base, List<InetAddress> groups)
+    {
+        this.groups = Collections.unmodifiableList (new ArrayList<> (groups));
+        port = base.port;
+        ttl = base.ttl;
+        nif = base.nif;
+        buffer_size = base.buffer_size;
+    }
+
+    /**
+     * Get the same settings but for a single group.
+     *
+     * @param group The group.
+     *
+     * @return The new settings.
+     */
+    public Multicast forGroup (InetAddress group)
+    {
+        return new Multicast (this, Collections.singletonList (group));
+    }
+
+    /**
+     * Add the multicast options to a set of options.
+     *
+     * @param opts The options to add to.
+     */
+    public static void add_options (Options opts)
+    {
+        opts.addOption (null, GROUP_KEY, true, "Comma separated multicast groups, senders send to all of them (default " + DEFAULT_GROUP + ")")
+                .addOption (null, PORT_KEY, true, "Multicast port (default " + DEFAULT_PORT + ")")
+                .addOption (null, TTL_KEY, true, "Multicast time to live (default " + DEFAULT_TTL + ")")
+                .addOption (null, INTERFACE_KEY, true, "Network interface to use for multicast")
+                .addOption (null, BUFFER_KEY, true, "Multicast receive buffer size (default " + DEFAULT_BUFFER_SIZE + ")");
+    }
+
+    /**
+     * Open a socket that receives from all the groups. With a single group
+     * the socket is bound to the group address where possible which, on
+     * Linux at least, stops it also hearing other groups that something else
+     * on the machine has joined.
+     *
+     * @return The socket.
+     *
+     * @throws IOException In case of error.
+     */
+    public MulticastSocket openReceiver () throws IOException
+    {
+        MulticastSocket socket;
+
+        try
+        {
+            socket = (groups.size () == 1) ?
+                    new MulticastSocket (new InetSocketAddress (groups.get (0), port)) :
+                    new MulticastSocket (port);
+        }
+
+        catch (SocketException e)
+        {
+            // Some systems won't bind to a group address
+            socket = new MulticastSocket (port);
+        }
+
+        for (InetAddress group : groups)
+            socket.joinGroup (new InetSocketAddress (group, port), nif);
+
+        return socket;
+    }
+
+    /**
+     * Open a socket for sending to the groups.
+     *
+     * @return The socket.
+     *
+     * @throws IOException In case of error.
+     */
+    public MulticastSocket openSender () throws IOException
+    {
+        final MulticastSocket socket = new MulticastSocket ();
+
+        socket.setTimeToLive (ttl);
+
+        if (nif != null)
+            socket.setNetworkInterface (nif);
+
+        return socket;
+    }
+
+    /**
+     * Get the groups.
+     * @return The groups.
+     */
+    public List<InetAddress> getGroups ()
+    {
+        return groups;
+    }
+
+    /**
+     * Get the port.
+     * @return The port.
+     */
+    public int getPort ()
+    {
+        return port;
+    }
+
+    /**
+     * Get the time to live.
+     * @return The time to live.
+     */
+    public int getTTL ()
+    {
+        return ttl;
+    }
+
+    /**
+     * Get the interface.
+     * @return The interface or null for the system's choice.
+     */
+    public NetworkInterface getInterface ()
+    {
+        return nif;
+    }
+
+    /**
+     * Get the size of the receive buffer.
+     * @return The size in bytes.
+     */
+    public int getBufferSize ()
+    {
+        return buffer_size;
+    }
+
+    /** Command line long name for the groups. */
+    public static final String GROUP_KEY = "multicast-group";
+    /** Command line long name for the port. */
+    public static final String PORT_KEY = "multicast-port";
+    /** Command line long name for the time to live. */
+    public static final String TTL_KEY = "multicast-ttl";
+    /** Command line long name for the interface. */
+    public static final String INTERFACE_KEY = "multicast-interface";
+    /** Command line long name for the receive buffer size. */
+    public static final String BUFFER_KEY = "multicast-buffer";
+
+    /** The default group. */
+    public static final String DEFAULT_GROUP = "224.1.1.1";
+    /** The default port. */
+    public static final int DEFAULT_PORT = 5123;
+    /** The default time to live. */
+    public static final int DEFAULT_TTL = 3;
+    /** The default receive buffer size. */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /** The groups we use. */
+    private final List<InetAddress> groups;
+    /** The port we use. */
+    private final int port;
+    /** The time to live of packets we send. */
+    private final int ttl;
+    /** The interface to use or null for the system's choice. */
+    private final NetworkInterface nif;
+    /** The size of the receive buffer. */
+    private final int buffer_size;
+}
@@ -22,10 +22,15 @@ import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.io.IOException;
 
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+
 import Jimbo.Boards.com.pimoroni.Piglow;
 
 /**
- * This class handles Cheerlights on the Pimoroni PiGlow.
+ * This class handles Cheerlights on the Pimoroni PiGlow. Any RGB colour is
+ * split up between the white, blue, green, yellow, orange and red LEDs
+ * using a precomputed table.
  * 
  * @author Jim Darby
  */
@@ -37,92 +42,255 @@ public class PiglowLights implements CheerListener
     {
         LOG.log (Level.INFO, "Piglow cheer lights started");
         pg = new Piglow ();
+        telemetry = new FrameTelemetry ("Piglow", this::show);
+        animator = new Animator ("Piglow", data.length, telemetry, 10000, Easing.SMOOTH);
+        animator.go ();
+    }
+    
+    /**
+     * Add our telemetry and animation options.
+     * 
+     * @param opts The options to add to.
+     */
+    @Override
+    public void add_options (Options opts)
+    {
+        telemetry.add_options (opts);
+        Animator.add_options (opts);
     }
     
+    /**
+     * Read our telemetry and animation options.
+     * 
+     * @param command The command line.
+     */
     @Override
-    public synchronized void update (int colour) throws IOException
+    public void handle_args (CommandLine command)
     {
-        LOG.log (Level.INFO, "Update new colour {0}", Integer.toHexString(colour));
+        telemetry.handle_args (command);
+        animator.handle_args (command);
+    }
+    
+    @Override
+    public void update (int colour) throws IOException
+    {
+        update (new CheerEvent (colour, null));
+    }
+    
+    /**
+     * Update the lights with several new colours in a single fade. Each leg
+     * shows one colour so at most the newest three are used.
+     * 
+     * @param event The colours to update with
+     * @throws IOException In case of problems
+     */
+    @Override
+    public synchronized void update (CheerEvent event) throws IOException
+    {
+        LOG.log (Level.INFO, "Update new colours {0}", event);
         
-        int next[][] = new int[data.length][data[0].length];
+        final int legs = data.length / COLOURS;
+        final int n = Math.min (event.getCount (), legs);
         
         // Shift up...
-        for (int i = 0; i < data.length - 1; ++i)
-            System.arraycopy (data[i], 0, next[i + 1], 0, data[0].length);
-        
-        // Use the ghost of the old value
-        for (int i = 0; i < next[0].length; ++i)
-            next[0][i] = data[2][i] / 4;
+        System.arraycopy (data, 0, next, n * COLOURS, data.length - n * COLOURS);
         
-        /*System.out.print ("Legs before:");
+        // Each new leg gets the ghost of the leg that fell off the end and
+        // its new colour
+        for (int leg = 0; leg < n; ++leg)
+        {
+            final int entry = index (event.getColour (event.getCount () - 1 - leg)) * COLOURS;
+            final int ghost = data.length - (n - leg) * COLOURS;
+            
+            for (int i = 0; i < COLOURS; ++i)
+                next[leg * COLOURS + i] = data[ghost + i] / 4 + TABLE[entry + i];
+        }
         
-        for (int i = 0; i < next[0].length; ++i)
-            System.out.print (" " + next[0][i]);
+        animator.fade (next, SyncClock.toNanoTime (event.getApplyAt ()));
         
-        System.out.println ();*/
+        // The animator takes a copy so we can recycle the old frame
+        final int[] t = data;
         
-        final int max = 32;
+        data = next;
+        next = t;
+    }
+    
+    /**
+     * Show a frame on the Piglow. The frame holds the brightness of each LED
+     * in turn, leg by leg.
+     * 
+     * @param frame The frame to show.
+     * @throws IOException In case of problems
+     */
+    private void show (int[] frame) throws IOException
+    {
+        for (int i = 0; i < legs.length; ++i)
+            System.arraycopy (frame, i * COLOURS, legs[i], 0, COLOURS);
         
-        switch (colour)
-        {
-            case 0xFF0000: next[0][5] += max; break; // Red
-            case 0x008000: next[0][2] += max; break; // Green
-            case 0x0000FF: next[0][1] += max; break; // Blue
-            case 0x00FFFF: next[0][2] += max / 2; next[0][1] += max / 2; break; // Cyan
-            case 0xFFFFFF: next[0][0] += max; break; // White
-            case 0xFDF5E6: next[0][0] += max / 2; next[0][5] += max / 2; break; // Warmwhite
-            case 0x800080: next[0][5] += max / 4; next[0][1] += max / 4; break; // Purple
-            case 0xFF00FF: next[0][5] += max / 2; next[0][1] += max / 2; break; // Magenta
-            case 0xFFFF00: next[0][3] += max; break; // Yellow
-            case 0xFFA500: next[0][4] += max; break; // Orange
-            case 0xFFC0CB: next[0][5] += max / 2; next[0][0] += max / 2; break; // Pink
-        }
+        pg.setLegs (legs);
+        pg.update ();
+    }
+    
+    /**
+     * Find a colour's entry in the table.
+     * 
+     * @param colour The colour as 0xrrggbb.
+     * @return The index of the entry.
+     */
+    private static int index (int colour)
+    {
+        return ((colour >> 12) & 0xf00) | ((colour >> 8) & 0xf0) | ((colour >> 4) & 0xf);
+    }
+    
+    /**
+     * Split up a colour between the LEDs.
+     * 
+     * @param r The red level.
+     * @param g The green level.
+     * @param b The blue level.
+     * @param leds Where to put the brightness of each colour of LED.
+     */
+    private static void decompose (int r, int g, int b, int[] leds)
+    {
+        // Whatever all three have in common is white
+        final int w = Math.min (r, Math.min (g, b));
         
-        /*System.out.print ("Legs:");
+        leds[WHITE] = w * MAX / 255;
         
-        for (int i = 0; i < next[0].length; ++i)
-            System.out.print (" " + next[0][i]);
+        r -= w;
+        g -= w;
+        b -= w;
         
-        System.out.println ();*/
+        // What's left has at most two channels
+        final int level = Math.max (r, Math.max (g, b)) * MAX / 255;
         
-        final int[][] mix = new int[next.length][next[0].length];
+        if (level == 0)
+            return;
         
-        for (int step = 1; step <= 100; ++step)
+        if (b == 0)
         {
-            final int left = 100 - step;
-            
-            for (int i = 0; i < data.length; ++i)
-                for (int j = 0; j < data[0].length; ++j)
-                    mix[i][j] = (left * data[i][j] + step * next[i][j]) / 100;
-
-            
-            pg.setLegs (mix);
-            pg.update ();
-            
-            try
+            // Between red and green, via orange and yellow
+            if (g <= r)
             {
-                Thread.sleep (100);
+                final double hue = (double) g / r;
+                
+                if (hue < ORANGE_HUE)
+                {
+                    final double f = hue / ORANGE_HUE;
+                    
+                    leds[RED] = (int) Math.round (level * (1 - f));
+                    leds[ORANGE] = (int) Math.round (level * f);
+                }
+                else
+                {
+                    final double f = (hue - ORANGE_HUE) / (1 - ORANGE_HUE);
+                    
+                    leds[ORANGE] = (int) Math.round (level * (1 - f));
+                    leds[YELLOW] = (int) Math.round (level * f);
+                }
             }
-            
-            catch (InterruptedException e)
+            else
             {
-                LOG.log (Level.WARNING, "Interrupted sleep?");
+                final double f = (double) r / g;
+                
+                leds[YELLOW] = (int) Math.round (level * f);
+                leds[GREEN] = (int) Math.round (level * (1 - f));
             }
         }
-        
-        data = next;
+        else if (r == 0)
+        {
+            // Between green and blue
+            leds[GREEN] = level * g / (g + b);
+            leds[BLUE] = level * b / (g + b);
+        }
+        else
+        {
+            // Between red and blue
+            leds[RED] = level * r / (r + b);
+            leds[BLUE] = level * b / (r + b);
+        }
     }
     
-    private final Piglow pg;
-    private int data[][] = new int[3][6];
+    /**
+     * Set a table entry.
+     * 
+     * @param colour The colour as 0xrrggbb.
+     * @param leds The brightness of each colour of LED.
+     */
+    private static void set (int colour, int... leds)
+    {
+        final int entry = index (colour) * COLOURS;
+        
+        for (int i = 0; i < COLOURS; ++i)
+            TABLE[entry + i] = (byte) leds[i];
+    }
     
     public static void main (String args[]) throws IOException, InterruptedException
     {
         // Set up simpler logging to stdout
         Jimbo.Logging.Logging.useStdout ();
+        AsyncHandler.install ();
         
         final CheerListener target = new PiglowLights ();
         
         Listener.setup (args, target);
     }
+    
+    /** The number of colours of LED on each leg. */
+    private static final int COLOURS = 6;
+    /** Where each colour is on a leg. */
+    private static final int WHITE = 0, BLUE = 1, GREEN = 2, YELLOW = 3, ORANGE = 4, RED = 5;
+    /** The brightest we set a colour. */
+    private static final int MAX = 32;
+    /** How much green there is in orange compared to red. */
+    private static final double ORANGE_HUE = 0xa5 / 255.0;
+    
+    /**
+     * The LED brightnesses for each colour. Colours are looked up by the top
+     * four bits of each channel and each entry holds a brightness for each
+     * colour of LED.
+     */
+    private static final byte[] TABLE = new byte[16 * 16 * 16 * COLOURS];
+    
+    static
+    {
+        final int[] leds = new int[COLOURS];
+        
+        for (int i = 0; i < 16 * 16 * 16; ++i)
+        {
+            // Use the middle of each range
+            final int r = ((i >> 8) & 0xf) * 0x11;
+            final int g = ((i >> 4) & 0xf) * 0x11;
+            final int b = (i & 0xf) * 0x11;
+            
+            java.util.Arrays.fill (leds, 0);
+            decompose (r, g, b, leds);
+            
+            for (int j = 0; j < COLOURS; ++j)
+                TABLE[i * COLOURS + j] = (byte) leds[j];
+        }
+        
+        // The standard CheerLights colours look best with these
+        set (0xFF0000, 0,       0,       0,       0,   0,       MAX);     // Red
+        set (0x008000, 0,       0,       MAX,     0,   0,       0);       // Green
+        set (0x0000FF, 0,       MAX,     0,       0,   0,       0);       // Blue
+        set (0x00FFFF, 0,       MAX / 2, MAX / 2, 0,   0,       0);       // Cyan
+        set (0xFFFFFF, MAX,     0,       0,       0,   0,       0);       // White
+        set (0xFDF5E6, MAX / 2, 0,       0,       0,   0,       MAX / 2); // Warmwhite
+        set (0x800080, 0,       MAX / 4, 0,       0,   0,       MAX / 4); // Purple
+        set (0xFF00FF, 0,       MAX / 2, 0,       0,   0,       MAX / 2); // Magenta
+        set (0xFFFF00, 0,       0,       0,       MAX, 0,       0);       // Yellow
+        set (0xFFA500, 0,       0,       0,       0,   MAX,     0);       // Orange
+        set (0xFFC0CB, MAX / 2, 0,       0,       0,   0,       MAX / 2); // Pink
+    }
+    
+    private final Piglow pg;
+    private final Animator animator;
+    private final FrameTelemetry telemetry;
+    /** The LED levels, leg by leg. */
+    private int[] data = new int[3 * COLOURS];
+    /** Where we build the next frame. */
+    private int[] next = new int[3 * COLOURS];
+    /** The legs, as the Piglow wants them. */
+    private final int legs[][] = new int[3][COLOURS];
 }
@@ -22,6 +22,10 @@ import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.io.IOException;
 
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
 import Jimbo.Boards.com.pimoroni.RainbowHAT;
 import java.net.UnknownHostException;
 
@@ -42,59 +46,126 @@ public class RainbowHATLights implements CheerListener
         leds = new RainbowHAT ().getLEDs ();
         leds.brightness (3);
         data = new int[leds.WIDTH];
+        
+        telemetry = new FrameTelemetry ("RainbowHAT", this::show);
+        pipeline = new ColourPipeline (telemetry, GAMMA);
+        animator = new Animator ("RainbowHAT", data.length, pipeline, DURATION, Easing.SMOOTH);
+        pipeline.setOnChange (animator::refresh);
+        animator.go ();
     }
     
+    /**
+     * Add our colour, telemetry, animation and zone options.
+     * 
+     * @param opts The options to add to.
+     */
     @Override
-    public synchronized void update (int colour) throws IOException
+    public void add_options (Options opts)
     {
-        LOG.log (Level.INFO, "Update new colour {0}", Integer.toHexString(colour));
-        
-        int[] next = new int [data.length];
-        
-        for (int i = 1; i < data.length; ++i)
-            next[i] = data[i-1];
-        
-        next[0] = colour;
+        pipeline.add_options (opts);
+        telemetry.add_options (opts);
+        Animator.add_options (opts);
+        Compositor.add_options (opts);
+    }
+    
+    /**
+     * Read our colour, telemetry, animation and zone options.
+     * 
+     * @param command The command line.
+     */
+    @Override
+    public synchronized void handle_args (CommandLine command)
+    {
+        pipeline.handle_args (command);
+        telemetry.handle_args (command);
+        animator.handle_args (command);
         
-        for (int step = 1; step <= 100; ++step)
+        if (command.hasOption (Compositor.ZONE_KEY))
         {
-            final int left = 100 - step;
-            
-            for (int i = 0; i < data.length; ++i)
-            {
-                final int r = (step * ((next[i] >> 16) & 0xff) + left * ((data[i] >> 16) & 0xff)) / 100;
-                final int g = (step * ((next[i] >>  8) & 0xff) + left * ((data[i] >>  8) & 0xff)) / 100;
-                final int b = (step * ((next[i]      ) & 0xff) + left * ((data[i]      ) & 0xff)) / 100;
-                
-                leds.setPixel (i, 0, r, g, b);
-            }
-            
-            leds.show();
-            
             try
             {
-                Thread.sleep (100);
+                compositor = new Compositor (animator, data.length);
+                compositor.handle_args (command, DURATION);
             }
             
-            catch (InterruptedException e)
+            catch (ParseException e)
             {
-                LOG.log (Level.WARNING, "Interrupted sleep?");
+                LOG.log (Level.WARNING, "Invalid zones: {0}", e.getLocalizedMessage ());
             }
         }
+    }
+    
+    @Override
+    public void update (int colour) throws IOException
+    {
+        update (new CheerEvent (colour, null));
+    }
+    
+    /**
+     * Update the lights with several new colours in a single fade.
+     * 
+     * @param event The colours to update with
+     * @throws IOException In case of problems
+     */
+    @Override
+    public synchronized void update (CheerEvent event) throws IOException
+    {
+        LOG.log (Level.INFO, "Update new colours {0}", event);
+        
+        if (compositor != null)
+        {
+            compositor.update (event);
+            return;
+        }
+        
+        final int n = Math.min (event.getCount (), data.length);
+        int[] next = new int [data.length];
+        
+        // Shift along to make room and put the newest first
+        System.arraycopy (data, 0, next, n, data.length - n);
+        
+        for (int i = 0; i < n; ++i)
+            next[i] = event.getColour (event.getCount () - 1 - i);
+        
+        animator.fade (next, SyncClock.toNanoTime (event.getApplyAt ()));
         
         data = next;
     }
 
+    /**
+     * Show a frame on the Rainbow HAT.
+     * 
+     * @param frame The frame to show.
+     * @throws IOException In case of problems
+     */
+    private void show (int[] frame) throws IOException
+    {
+        for (int i = 0; i < frame.length; ++i)
+            leds.setPixel (i, 0, (frame[i] >> 16) & 0xff, (frame[i] >> 8) & 0xff, frame[i] & 0xff);
+        
+        leds.show ();
+    }
+    
     public static void main (String args[]) throws IOException, UnknownHostException, InterruptedException
     {
         // Set up simpler logging to stdout
         Jimbo.Logging.Logging.useStdout ();
+        AsyncHandler.install ();
         
         final CheerListener target = new RainbowHATLights ();
         
         Listener.setup (args, target);
     }
         
+    /** How long a fade takes in milliseconds. */
+    private static final long DURATION = 10000;
+    /** The default gamma for the LEDs. */
+    private static final double GAMMA = 2.2;
+    
     private final RainbowHAT.LEDs leds;
+    private final Animator animator;
+    private final ColourPipeline pipeline;
+    private final FrameTelemetry telemetry;
+    private Compositor compositor = null;
     private int[] data;
 }
@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONException;
+
+import Jimbo.MQTT.MQTTClient;
+import Jimbo.MQTT.MQTTMessageRecipient;
+
+/**
+ * Relay CheerLights messages between network segments. Multicast messages
+ * heard on any of the bridged interfaces are re-sent, unaltered, on all the
+ * others. Messages on an MQTT topic can be sent out on all of them too and,
+ * if asked for, multicast messages published to it. Bridging segments needs
+ * at least two interfaces; with fewer there is nowhere else to send a packet
+ * and it only goes to and from MQTT. Each distinct message is only forwarded
+ * once within a time window which stops relays looping packets between each
+ * other.
+ *
+ * @author Jim Darby
+ */
+public class Relay implements MQTTMessageRecipient
+{
+    private static final Logger LOG = Logger.getLogger ("Relay");
+
+    /**
+     * Create a relay.
+     *
+     * @param interfaces The interfaces to bridge, none for the default one.
+     * @param multicast The multicast settings.
+     *
+     * @throws IOException In case of error.
+     */
+    public Relay (List<NetworkInterface> interfaces, Multicast multicast) throws IOException
+    {
+        port = multicast.getPort ();
+
+        // Note our own addresses so we can ignore our own packets
+        for (NetworkInterface nif : Collections.list (NetworkInterface.getNetworkInterfaces ()))
+            local.addAll (Collections.list (nif.getInetAddresses ()));
+
+        // Each group has a socket that receives from every interface we
+        // bridge. It's bound to the group address so, on Linux at least, it
+        // only hears that group and we know where to send it on to.
+        for (InetAddress group : multicast.getGroups ())
+        {
+            final InetSocketAddress address = new InetSocketAddress (group, port);
+            final MulticastSocket socket = new MulticastSocket (address);
+
+            if (interfaces.isEmpty ())
+                socket.joinGroup (address, multicast.getInterface ());
+            else
+                for (NetworkInterface nif : interfaces)
+                    socket.joinGroup (address, nif);
+
+            inputs.add (socket);
+        }
+
+        // And each interface gets its own sending socket. We turn off the
+        // loopback so we don't hear what we've just sent.
+        if (interfaces.isEmpty ())
+            outputs.add (new Output (multicast.getInterface (), multicast.getTTL ()));
+        else
+            for (NetworkInterface nif : interfaces)
+                outputs.add (new Output (nif, multicast.getTTL ()));
+
+        groups = multicast.getGroups ();
+        buffer_size = multicast.getBufferSize ();
+    }
+
+    /**
+     * Also relay from an MQTT topic.
+     *
+     * @param broker The URI of the MQTT broker
+     * @param client Our client name for the broker
+     * @param topic The topic name to relay
+     *
+     * @throws MqttException In case of error
+     * @throws IOException If we can't find our own name
+     */
+    public void addMQTT (String broker, String client, String topic) throws MqttException, IOException
+    {
+        addMQTT (broker, client, topic, false);
+    }
+
+    /**
+     * Also relay from, and optionally to, an MQTT topic. Only relay to it
+     * if nothing else publishes the multicast messages there, or every
+     * message will be there twice.
+     *
+     * @param broker The URI of the MQTT broker
+     * @param client Our client name for the broker
+     * @param topic The topic name to relay
+     * @param to_mqtt If multicast messages should be published to the topic
+     *
+     * @throws MqttException In case of error
+     * @throws IOException If we can't find our own name
+     */
+    public void addMQTT (String broker, String client, String topic, boolean to_mqtt) throws MqttException, IOException
+    {
+        this.to_mqtt = to_mqtt;
+        hold = new Timer ("MQTT relay hold", true);
+        mqtt_topic = topic;
+        screen = InetAddress.getLocalHost ().getHostName ();
+        mqtt = new MQTTClient (broker, client, topic, this);
+        mqtt.run ();
+    }
+
+    /**
+     * Start relaying. This is a non-blocking call that starts a background
+     * thread to do the work.
+     */
+    public void go ()
+    {
+        for (int i = 0; i < inputs.size (); ++i)
+        {
+            final MulticastSocket input = inputs.get (i);
+            final InetAddress group = groups.get (i);
+            final Thread t = new Thread (() -> run (input, group), "Multicast Relay " + group.getHostAddress ());
+
+            t.start ();
+        }
+
+        LOG.info ("Relay started");
+    }
+
+    /**
+     * Receive and forward multicast packets. This never returns unless there
+     * is an error on the socket.
+     *
+     * @param input The socket to receive from.
+     * @param group The group it receives.
+     */
+    private void run (MulticastSocket input, InetAddress group)
+    {
+        final byte[] buffer = new byte[buffer_size];
+        final DatagramPacket packet = new DatagramPacket (buffer, buffer.length);
+
+        try
+        {
+            while (true)
+            {
+                packet.setData (buffer);
+                input.receive (packet);
+
+                final InetAddress from = packet.getAddress ();
+                final int length = packet.getLength ();
+
+                // Cheap sanity check before we send it anywhere
+                if (!Message.validate (buffer, 0, length))
+                {
+                    LOG.log (Level.FINE, "Dropped non-cheerlights packet from {0}", from);
+                    continue;
+                }
+
+                if (local.contains (from) || !firstSighting (buffer, 0, length))
+                    continue;
+
+                // Forward the original bytes everywhere the sender isn't. With
+                // only one segment it must be where the packet came from.
+                if (outputs.size () > 1)
+                    for (Output o : outputs)
+                        if (!o.isAttached (from))
+                            o.send (buffer, 0, length, group);
+
+                if (mqtt != null && to_mqtt)
+                    publish (buffer, length);
+            }
+        }
+
+        catch (IOException e)
+        {
+            LOG.log (Level.WARNING, "Relay failed: IOException {0}", e.getLocalizedMessage ());
+        }
+    }
+
+    /**
+     * Receive an MQTT message and forward it on to the multicast segments.
+     * It goes to all the groups as MQTT has no idea of them. Whatever sent
+     * it may also have sent it by multicast, so it's held for a moment and
+     * dropped if the multicast copy turns up, which goes everywhere but
+     * the segment it came from.
+     *
+     * @param topic The topic it's on
+     * @param message The message itself
+     */
+    @Override
+    public void receive (String topic, String message)
+    {
+        try
+        {
+            final JSONObject j = new JSONObject (message);
+            final JSONArray a = j.optJSONArray ("colours");
+            final int count = (a == null) ? 1 : a.length ();
+
+            // Multicast messages only carry one colour each
+            for (int i = 0; i < count; ++i)
+            {
+                final int colour = (a == null) ? j.getInt ("colour") : a.getInt (i);
+                final byte[] blob = new Message (colour, j.getString ("text"), j.optLong ("apply", 0)).getBlob ();
+
+                hold.schedule (new TimerTask ()
+                {
+                    @Override
+                    public void run ()
+                    {
+                        // If it's come by multicast, or we published it, this
+                        // drops it
+                        if (!firstSighting (blob, 0, blob.length))
+                            return;
+
+                        for (InetAddress group : groups)
+                            for (Output o : outputs)
+                                o.send (blob, 0, blob.length, group);
+                    }
+                }, HOLD);
+            }
+        }
+
+        catch (JSONException | IOException e)
+        {
+            LOG.log (Level.WARNING, "Unable to relay: \"{0}\": {1}",
+                    new Object[]{message, e.getLocalizedMessage ()});
+        }
+    }
+
+    /**
+     * Publish a multicast message to MQTT.
+     *
+     * @param buffer The buffer holding the message.
+     * @param length The length of the message.
+     */
+    private void publish (byte[] buffer, int length)
+    {
+        try
+        {
+            final byte[] data = new byte[length];
+
+            System.arraycopy (buffer, 0, data, 0, length);
+
+            final Message m = new Message (data);
+            final JSONObject message = new JSONObject ();
+
+            message.put ("text", m.getText ())
+                    .put ("colour", m.getRGB ())
+                    .put ("name", "Relay")
+                    .put ("screen", screen)
+                    .put ("sent", System.currentTimeMillis ());
+
+            if (m.getApplyAt () != 0)
+                message.put ("apply", m.getApplyAt ());
+
+            mqtt.publish (mqtt_topic, message.toString ());
+        }
+
+        catch (IOException | MqttException e)
+        {
+            LOG.log (Level.WARNING, "Failed to relay to MQTT: {0}", e.getLocalizedMessage ());
+        }
+    }
+
+    /**
+     * Check if a message has been seen recently and remember it if not. This
+     * uses a fixed size table of hashes so the memory use is bounded. A
+     * collision just forgets the older message.
+     *
+     * @param data The buffer holding the message.
+     * @param offset The offset of the message in the buffer.
+     * @param length The length of the message.
+     *
+     * @return If this is the first time the message has been seen.
+     */
+    private synchronized boolean firstSighting (byte[] data, int offset, int length)
+    {
+        // FNV-1a over the whole message
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = offset; i < offset + length; ++i)
+            hash = (hash ^ (data[i] & 0xff)) * 0x100000001b3L;
+
+        final long now = System.nanoTime ();
+        final int slot = (int) (hash ^ (hash >>> 32)) & (SEEN_SIZE - 1);
+
+        if (seen_hash[slot] == hash && now - seen_time[slot] < WINDOW)
+            return false;
+
+        seen_hash[slot] = hash;
+        seen_time[slot] = now;
+
+        return true;
+    }
+
+    /**
+     * Somewhere we send multicast packets to.
+     */
+    private class Output
+    {
+        /**
+         * Create an output.
+         *
+         * @param nif The interface, null for the default one.
+         * @param ttl The time to live of the packets.
+         *
+         * @throws IOException In case of error.
+         */
+        public Output (NetworkInterface nif, int ttl) throws IOException
+        {
+            socket = new MulticastSocket ();
+            socket.setTimeToLive (ttl);
+            socket.setOption (StandardSocketOptions.IP_MULTICAST_LOOP, false);
+
+            if (nif != null)
+            {
+                socket.setNetworkInterface (nif);
+                addresses = nif.getInterfaceAddresses ();
+            }
+            else
+                addresses = new ArrayList<> ();
+
+            packet = new DatagramPacket (new byte[0], 0);
+            packet.setPort (port);
+        }
+
+        /**
+         * Is an address on the segment this output sends to? If so the
+         * sender will have seen the original packet.
+         *
+         * @param address The address to check.
+         *
+         * @return If the address is on this segment.
+         */
+        public boolean isAttached (InetAddress address)
+        {
+            final byte[] a = address.getAddress ();
+
+            for (InterfaceAddress ia : addresses)
+            {
+                final byte[] b = ia.getAddress ().getAddress ();
+
+                if (a.length != b.length)
+                    continue;
+
+                int bits = ia.getNetworkPrefixLength ();
+                boolean same = true;
+
+                for (int i = 0; same && bits > 0; ++i, bits -= 8)
+                {
+                    final int mask = (bits >= 8) ? 0xff : (0xff00 >> bits) & 0xff;
+
+                    same = ((a[i] ^ b[i]) & mask) == 0;
+                }
+
+                if (same)
+                    return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * Send a message. The data is sent straight from the buffer it's in.
+         *
+         * @param data The buffer holding the message.
+         * @param offset The offset of the message in the buffer.
+         * @param length The length of the message.
+         * @param group The group to send it to.
+         */
+        public synchronized void send (byte[] data, int offset, int length, InetAddress group)
+        {
+            try
+            {
+                packet.setData (data, offset, length);
+                packet.setAddress (group);
+                socket.send (packet);
+            }
+
+            catch (IOException e)
+            {
+                LOG.log (Level.WARNING, "Failed to relay: {0}", e.getLocalizedMessage ());
+            }
+        }
+
+        /** The socket we send on. */
+        private final MulticastSocket socket;
+        /** The packet we send, it just points at the data. */
+        private final DatagramPacket packet;
+        /** The addresses of the interface, used to spot the sender's segment. */
+        private final List<InterfaceAddress> addresses;
+    }
+
+    public static void main (String args[]) throws IOException, ParseException
+    {
+        // Set up simpler logging to stdout
+        Jimbo.Logging.Logging.useStdout ();
+        AsyncHandler.install ();
+
+        Options options = new Options ();
+
+        options.addOption ("b", Listener.MQTT_BROKER_KEY, true, "URL of the broker")
+                .addOption ("c", Listener.MQTT_CLIENT_KEY, true, "Client ID")
+                .addOption ("t", Listener.MQTT_TOPIC_KEY, true, "Topic to relay")
+                .addOption ("i", "interfaces", true, "Comma separated interfaces to bridge")
+                .addOption (null, TO_MQTT_KEY, false, "Also publish multicast messages to MQTT, only if nothing else does")
+                .addOption (null, Listener.CONFIG_KEY, true, "Configuration file");
+
+        Multicast.add_options (options);
+
+        CommandLineParser parser = new DefaultParser ();
+        CommandLine command = parser.parse (options, args);
+
+        final Properties config = Listener.getConfig (command);
+        final String names = Listener.getValue (command, config, "interfaces", null);
+        final String mqtt_broker = Listener.getValue (command, config, Listener.MQTT_BROKER_KEY, null);
+        final String mqtt_client = Listener.getValue (command, config, Listener.MQTT_CLIENT_KEY, null);
+        final List<NetworkInterface> interfaces = new ArrayList<> ();
+
+        if (names != null)
+            for (String name : names.split (","))
+            {
+                final NetworkInterface nif = NetworkInterface.getByName (name);
+
+                if (nif == null)
+                    throw new ParseException ("Unknown interface " + name);
+
+                interfaces.add (nif);
+            }
+
+        if (interfaces.size () < 2 && mqtt_broker == null)
+            throw new ParseException ("Need at least two interfaces or an MQTT broker to relay");
+
+        final Relay relay = new Relay (interfaces, new Multicast (command, config));
+
+        if (mqtt_broker != null)
+        {
+            if (mqtt_client == null)
+                throw new ParseException ("MQTT without client name");
+
+            try
+            {
+                relay.addMQTT (mqtt_broker, mqtt_client,
+                        Listener.getValue (command, config, Listener.MQTT_TOPIC_KEY, Listener.DEFAULT_MQTT_TOPIC),
+                        command.hasOption (TO_MQTT_KEY) || Boolean.parseBoolean (config.getProperty (TO_MQTT_KEY)));
+            }
+
+            catch (MqttException | IOException e)
+            {
+                LOG.log (Level.WARNING, "Failed to create MQTT client: {0}", e.getLocalizedMessage ());
+            }
+        }
+
+        relay.go ();
+    }
+
+    /** Command line long name to publish multicast messages to MQTT. */
+    public static final String TO_MQTT_KEY = "relay-to-mqtt";
+
+    /** Size of the recently seen table, must be a power of two. */
+    private static final int SEEN_SIZE = 256;
+    /** How long we remember messages for in nanoseconds. */
+    private static final long WINDOW = 10_000_000_000L;
+    /** How long MQTT messages wait for a multicast copy in milliseconds. */
+    private static final long HOLD = 250;
+
+    /** The multicast groups we relay. */
+    private final List<InetAddress> groups;
+    /** The port we relay. */
+    private final int port;
+    /** The size of the receive buffers. */
+    private final int buffer_size;
+    /** The sockets we receive on, one per group. */
+    private final List<MulticastSocket> inputs = new ArrayList<> ();
+    /** Where we send to. */
+    private final List<Output> outputs = new ArrayList<> ();
+    /** Our own addresses. */
+    private final Set<InetAddress> local = new HashSet<> ();
+    /** Hashes of recently seen messages. */
+    private final long[] seen_hash = new long[SEEN_SIZE];
+    /** When we saw them. */
+    private final long[] seen_time = new long[SEEN_SIZE];
+    /** The MQTT client, if any. */
+    private MQTTClient mqtt = null;
+    /** The MQTT topic. */
+    private String mqtt_topic;
+    /** If multicast messages are published to MQTT. */
+    private boolean to_mqtt = false;
+    /** Holds MQTT messages until we know they haven't come by multicast. */
+    private Timer hold = null;
+    /** Our name, used as the screen name of messages we publish. */
+    private String screen;
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+/**
+ * Blends frames one pixel at a time. Used when the Vector API isn't
+ * available.
+ * 
+ * @author Jim Darby
+ */
+public class ScalarBlender extends Blender
+{
+    @Override
+    public void blend (int[] from, int[] to, int step, int[] out)
+    {
+        blend (from, to, step, out, 0);
+    }
+}
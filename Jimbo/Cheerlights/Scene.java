@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+/**
+ * Something an Animator can play. It works out each frame from the time.
+ * 
+ * @author Jim Darby
+ */
+public interface Scene
+{
+    /**
+     * Work out the frame for a given time.
+     * 
+     * @param now The time, from System.nanoTime.
+     * @param frame Where to put the result.
+     * 
+     * @return If there is further to go after this frame.
+     */
+    public boolean render (long now, int[] frame);
+    
+    /**
+     * Find when the frame will next change. By default a scene is assumed
+     * to be changing all the time.
+     * 
+     * @param now The time, from System.nanoTime.
+     * 
+     * @return The time it next changes, from System.nanoTime, or
+     * Long.MAX_VALUE if it never will.
+     */
+    default public long nextChange (long now)
+    {
+        return now;
+    }
+}
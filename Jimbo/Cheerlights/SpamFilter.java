@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
+import twitter4j.Status;
+
+/**
+ * Weeds out retweets, copy and paste spam and over-eager users before a
+ * tweet is sent on. Each of these would otherwise cost every display a
+ * fade. Everything is held in fixed size tables so the memory used doesn't
+ * grow with the traffic.
+ * 
+ * A retweet is collapsed onto the tweet it retweets, which only gets sent
+ * once. The same text, once letters are folded to lower case and mentions,
+ * links and punctuation are removed, is only sent once a window; this is
+ * tracked with a pair of Bloom filters that take it in turns to be
+ * cleared. Finally each user has a token bucket limiting how often they're
+ * listened to.
+ * 
+ * @author Jim Darby
+ */
+public class SpamFilter
+{
+    /**
+     * Create a filter with the default settings.
+     */
+    public SpamFilter ()
+    {
+        this (DEFAULT_WINDOW, DEFAULT_USER_RATE, DEFAULT_USER_BURST);
+    }
+    
+    /**
+     * Create the filter from the command line, falling back to the
+     * configuration and then the defaults.
+     * 
+     * @param command The command line.
+     * @param config The configuration.
+     * 
+     * @throws ParseException If any of the settings are invalid.
+     */
+    public SpamFilter (CommandLine command, Properties config) throws ParseException
+    {
+        this (Listener.getInt (command, config, WINDOW_KEY, DEFAULT_WINDOW, 1, 86400),
+                Listener.getInt (command, config, USER_RATE_KEY, DEFAULT_USER_RATE, 1, 3600),
+                Listener.getInt (command, config, USER_BURST_KEY, DEFAULT_USER_BURST, 1, 1000));
+    }
+    
+    /**
+     * Create a filter.
+     * 
+     * @param window The least time duplicates are remembered in seconds.
+     * @param rate How many tweets a minute each user gets.
+     * @param burst How many tweets each user can send at once.
+     */
+    public SpamFilter (int window, int rate, int burst)
+    {
+        // Each filter covers a whole window so text is remembered for between
+        // one and two windows
+        span = window * 1_000_000_000L;
+        interval = 60_000_000_000L / rate;
+        this.burst = burst * interval;
+        rotated = System.nanoTime ();
+    }
+    
+    /**
+     * Add the filter options to a set of options.
+     * 
+     * @param opts The options to add to.
+     */
+    public static void add_options (Options opts)
+    {
+        opts.addOption (null, WINDOW_KEY, true, "Seconds to ignore repeated text for at least (default " + DEFAULT_WINDOW + ")")
+                .addOption (null, USER_RATE_KEY, true, "Tweets a minute each user is listened to (default " + DEFAULT_USER_RATE + ")")
+                .addOption (null, USER_BURST_KEY, true, "Tweets each user can send at once (default " + DEFAULT_USER_BURST + ")");
+    }
+    
+    /**
+     * See if a tweet should be sent on.
+     * 
+     * @param status The tweet.
+     * @param now The time now in nanoseconds.
+     * 
+     * @return If it should.
+     */
+    public synchronized boolean admit (Status status, long now)
+    {
+        // Collapse retweets onto the original
+        final Status original = (status.isRetweet () && status.getRetweetedStatus () != null) ?
+                status.getRetweetedStatus () : status;
+        
+        if (!firstTime (original.getId ()))
+        {
+            retweets += 1;
+            return false;
+        }
+        
+        if (!newText (original.getText (), now))
+        {
+            duplicates += 1;
+            return false;
+        }
+        
+        if (!withinRate (status.getUser ().getId (), now))
+        {
+            limited += 1;
+            return false;
+        }
+        
+        admitted += 1;
+        return true;
+    }
+    
+    /**
+     * See if a tweet ID is new, remembering it if so.
+     * 
+     * @param id The ID.
+     * @return If it's new.
+     */
+    private boolean firstTime (long id)
+    {
+        final int slot = slot (id, ID_TABLE_SIZE);
+        
+        if (ids[slot] == id)
+            return false;
+        
+        ids[slot] = id;
+        return true;
+    }
+    
+    /**
+     * See if some text hasn't been seen recently, remembering it if so.
+     * 
+     * @param text The text.
+     * @param now The time now.
+     * 
+     * @return If it's new.
+     */
+    private boolean newText (String text, long now)
+    {
+        // After a quiet spell both filters may be out of date
+        if (now - rotated >= 2 * span)
+        {
+            Arrays.fill (previous, 0);
+            Arrays.fill (current, 0);
+            rotated = now;
+        }
+        else if (now - rotated >= span)
+        {
+            final long[] t = previous;
+            
+            previous = current;
+            current = t;
+            Arrays.fill (current, 0);
+            rotated = now;
+        }
+        
+        final long hash = normalisedHash (text);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+        boolean seen = true;
+        
+        for (int i = 0; i < HASHES; ++i)
+        {
+            final int bit = (h1 + i * h2) & (BLOOM_BITS - 1);
+            final long mask = 1L << bit;
+            
+            if ((current[bit >>> 6] & mask) == 0 && (previous[bit >>> 6] & mask) == 0)
+                seen = false;
+            
+            current[bit >>> 6] |= mask;
+        }
+        
+        return !seen;
+    }
+    
+    /**
+     * See if a user is within their rate, charging them if so.
+     * 
+     * @param user The user's ID.
+     * @param now The time now.
+     * 
+     * @return If they are.
+     */
+    private boolean withinRate (long user, long now)
+    {
+        final int slot = slot (user, USER_TABLE_SIZE);
+        
+        // A user in an unused slot starts with a full bucket. One that
+        // displaces another inherits its bucket so a flood of colliding IDs
+        // can't each get a fresh burst.
+        if (!used[slot])
+        {
+            used[slot] = true;
+            users[slot] = user;
+            due[slot] = now;
+        }
+        else if (users[slot] != user)
+            users[slot] = user;
+        
+        final long next = Math.max (due[slot], now);
+        
+        if (next - now > burst - interval)
+            return false;
+        
+        due[slot] = next + interval;
+        return true;
+    }
+    
+    /**
+     * Hash text after normalising it: letters and digits folded to lower
+     * case, mentions, hashtag marks, links and "RT" dropped and runs of
+     * anything else treated as one space.
+     * 
+     * @param text The text.
+     * @return The hash.
+     */
+    static long normalisedHash (String text)
+    {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        boolean gap = false;
+        int i = 0;
+        
+        while (i < text.length ())
+        {
+            final char c = text.charAt (i);
+            
+            // Skip a whole mention or link
+            if (c == '@' || text.startsWith ("http://", i) || text.startsWith ("https://", i))
+            {
+                while (i < text.length () && !Character.isWhitespace (text.charAt (i)))
+                    i += 1;
+                
+                gap = true;
+                continue;
+            }
+            
+            if (!Character.isLetterOrDigit (c))
+            {
+                gap = true;
+                i += 1;
+                continue;
+            }
+            
+            // Find the word and drop it if it's the retweet marker
+            int end = i;
+            
+            while (end < text.length () && Character.isLetterOrDigit (text.charAt (end)))
+                end += 1;
+            
+            if (end - i == 2 && text.regionMatches (true, i, "rt", 0, 2))
+            {
+                i = end;
+                gap = true;
+                continue;
+            }
+            
+            if (gap && hash != 0xcbf29ce484222325L)
+                hash = (hash ^ ' ') * 0x100000001b3L;
+            
+            for (; i < end; ++i)
+                hash = (hash ^ Character.toLowerCase (text.charAt (i))) * 0x100000001b3L;
+            
+            gap = false;
+        }
+        
+        return hash;
+    }
+    
+    /**
+     * Pick a slot for a 64-bit key.
+     * 
+     * @param key The key.
+     * @param size The size of the table, a power of two.
+     * 
+     * @return The slot.
+     */
+    private static int slot (long key, int size)
+    {
+        final long h = key * 0x9e3779b97f4a7c15L;
+        
+        return (int) (h >>> 40) & (size - 1);
+    }
+    
+    /**
+     * Summarise what's been filtered.
+     * 
+     * @return The summary.
+     */
+    @Override
+    public synchronized String toString ()
+    {
+        return admitted + " admitted, " + retweets + " retweets, " + duplicates + " duplicates, " + limited + " over rate";
+    }
+    
+    /** Command line long name for the duplicate window. */
+    public static final String WINDOW_KEY = "duplicate-window";
+    /** Command line long name for the user rate. */
+    public static final String USER_RATE_KEY = "user-rate";
+    /** Command line long name for the user burst. */
+    public static final String USER_BURST_KEY = "user-burst";
+    
+    /** The default duplicate window in seconds. */
+    public static final int DEFAULT_WINDOW = 60;
+    /** The default tweets a minute for each user. */
+    public static final int DEFAULT_USER_RATE = 4;
+    /** The default tweets each user can send at once. */
+    public static final int DEFAULT_USER_BURST = 3;
+    
+    /** The number of tweet IDs remembered, a power of two. */
+    private static final int ID_TABLE_SIZE = 4096;
+    /** The number of users tracked, a power of two. */
+    private static final int USER_TABLE_SIZE = 1024;
+    /** The number of bits in each Bloom filter, a power of two. */
+    private static final int BLOOM_BITS = 1 << 16;
+    /** The number of bits set for each text. */
+    private static final int HASHES = 4;
+    
+    /** The time each Bloom filter covers, the duplicate window, in nanoseconds. */
+    private final long span;
+    /** The time each tweet uses of a user's bucket in nanoseconds. */
+    private final long interval;
+    /** The time a full bucket holds in nanoseconds. */
+    private final long burst;
+    /** Recent original tweet IDs. */
+    private final long[] ids = new long[ID_TABLE_SIZE];
+    /** Which user slots have been used. */
+    private final boolean[] used = new boolean[USER_TABLE_SIZE];
+    /** The user in each slot. */
+    private final long[] users = new long[USER_TABLE_SIZE];
+    /** When each user's bucket will next be full. */
+    private final long[] due = new long[USER_TABLE_SIZE];
+    /** The Bloom filter being added to. */
+    private long[] current = new long[BLOOM_BITS / 64];
+    /** The Bloom filter for the window before. */
+    private long[] previous = new long[BLOOM_BITS / 64];
+    /** When the filters last swapped. */
+    private long rotated;
+    /** The number of tweets let through. */
+    private long admitted = 0;
+    /** The number of retweets dropped. */
+    private long retweets = 0;
+    /** The number of duplicates dropped. */
+    private long duplicates = 0;
+    /** The number dropped for going over a user's rate. */
+    private long limited = 0;
+}
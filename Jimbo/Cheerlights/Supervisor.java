@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps an input running. If the input fails it's restarted after a delay
+ * that doubles with each consecutive failure, up to a limit, with some
+ * randomness so that a room full of displays that lost the same network
+ * don't all come back at the same moment. Once an input has stayed up for
+ * a while its failures are forgotten.
+ * 
+ * @author Jim Darby
+ */
+public class Supervisor implements Runnable
+{
+    private static final Logger LOG = Logger.getLogger ("Supervisor");
+    
+    /** What a supervised input is doing. */
+    public enum State
+    {
+        /** Being started, or connecting. */
+        STARTING,
+        /** Up and running, and connected if it connects to something. */
+        RUNNING,
+        /** Failed and waiting to be restarted. */
+        BACKING_OFF,
+        /** Stopped for good. */
+        STOPPED
+    }
+    
+    /**
+     * Something that can be supervised.
+     */
+    public interface Input
+    {
+        /**
+         * Run the input. This should block for as long as the input works
+         * and throw an exception when it fails. An input that returns
+         * normally has handed its work on to threads of its own and isn't
+         * restarted. An input that blocks should call the supervisor's
+         * running method once it's actually working, say once it's
+         * connected.
+         * 
+         * @throws Exception When the input fails.
+         */
+        public void run () throws Exception;
+    }
+    
+    /**
+     * Create a supervisor with the default delays.
+     * 
+     * @param name The name of the input.
+     * @param input The input.
+     */
+    public Supervisor (String name, Input input)
+    {
+        this (name, input, DEFAULT_MIN_DELAY, DEFAULT_MAX_DELAY);
+    }
+    
+    /**
+     * Create a supervisor.
+     * 
+     * @param name The name of the input.
+     * @param input The input.
+     * @param min_delay The delay after the first failure in milliseconds.
+     * @param max_delay The longest delay in milliseconds.
+     */
+    public Supervisor (String name, Input input, long min_delay, long max_delay)
+    {
+        this.name = name;
+        this.input = input;
+        this.min_delay = min_delay;
+        this.max_delay = max_delay;
+    }
+    
+    /**
+     * Start supervising on a thread of its own.
+     */
+    public void go ()
+    {
+        final Thread t = new Thread (this, name);
+        
+        t.start ();
+    }
+    
+    /**
+     * Run the input, restarting it whenever it fails.
+     */
+    @Override
+    public void run ()
+    {
+        int failures = 0;
+        
+        try
+        {
+            while (true)
+            {
+                final long started = System.nanoTime ();
+                
+                try
+                {
+                    state = State.STARTING;
+                    input.run ();
+                    
+                    // It's looking after itself from now on
+                    state = State.RUNNING;
+                    return;
+                }
+                
+                catch (InterruptedException e)
+                {
+                    throw e;
+                }
+                
+                catch (Exception e)
+                {
+                    last_error = e;
+                    
+                    if (System.nanoTime () - started >= STABLE)
+                        failures = 0;
+                    
+                    final long delay = delay (failures++);
+                    
+                    LOG.log (Level.WARNING, "{0} failed, restarting in {1}ms: {2}",
+                            new Object[] {name, delay, e.toString ()});
+                    
+                    state = State.BACKING_OFF;
+                    Thread.sleep (delay);
+                    restarts += 1;
+                }
+            }
+        }
+        
+        catch (InterruptedException e)
+        {
+            LOG.log (Level.INFO, "{0} supervisor stopped", name);
+            state = State.STOPPED;
+        }
+    }
+    
+    /**
+     * Tell the supervisor the input is working, for example that it's
+     * connected. This is called by the input.
+     */
+    public void running ()
+    {
+        state = State.RUNNING;
+    }
+    
+    /**
+     * Get the state of the input.
+     * @return The state.
+     */
+    public State getState ()
+    {
+        return state;
+    }
+    
+    /**
+     * Get the number of times the input has been restarted.
+     * @return The count.
+     */
+    public long getRestarts ()
+    {
+        return restarts;
+    }
+    
+    /**
+     * Get the last reason the input failed.
+     * @return The exception or null if it's never failed.
+     */
+    public Exception getLastError ()
+    {
+        return last_error;
+    }
+    
+    /**
+     * Work out how long to wait before a restart. The delay is picked at
+     * random from the upper half of the backoff so restarts spread out.
+     * 
+     * @param failures The number of failures in a row so far.
+     * @return The delay in milliseconds.
+     */
+    private long delay (int failures)
+    {
+        final long backoff = (failures >= 30) ? max_delay : Math.min (max_delay, min_delay << failures);
+        
+        return backoff / 2 + ThreadLocalRandom.current ().nextLong (backoff / 2 + 1);
+    }
+    
+    /** The default delay after the first failure in milliseconds. */
+    public static final long DEFAULT_MIN_DELAY = 500;
+    /** The default longest delay in milliseconds. */
+    public static final long DEFAULT_MAX_DELAY = 60_000;
+    /** How long an input has to stay up for its failures to be forgotten. */
+    private static final long STABLE = 60_000_000_000L;
+    
+    /** The name of the input. */
+    private final String name;
+    /** The input. */
+    private final Input input;
+    /** The delay after the first failure. */
+    private final long min_delay;
+    /** The longest delay. */
+    private final long max_delay;
+    /** What the input is doing. */
+    private volatile State state = State.STARTING;
+    /** The number of restarts. */
+    private volatile long restarts = 0;
+    /** The last failure. */
+    private volatile Exception last_error = null;
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * The clock used to agree when colours should be shown. Senders stamp
+ * messages with a time a little in the future and every display starts
+ * its fade at that moment, so a room full of displays changes together.
+ * It's the wall clock, which NTP keeps in step across machines, plus an
+ * optional offset for a machine whose clock is known to be out. Times are
+ * turned into the monotonic clock as soon as they arrive so nothing is
+ * upset by the wall clock being adjusted mid-fade.
+ * 
+ * @author Jim Darby
+ */
+public class SyncClock
+{
+    private static final Logger LOG = Logger.getLogger ("SyncClock");
+    
+    /**
+     * Get the time now.
+     * 
+     * @return The time in milliseconds since the epoch.
+     */
+    public static long now ()
+    {
+        return System.currentTimeMillis () + offset;
+    }
+    
+    /**
+     * Turn a time to apply colours into the monotonic clock. Times in the
+     * past, or implausibly far in the future which suggests one of the
+     * clocks is wrong, mean straight away.
+     * 
+     * @param apply_at The time in milliseconds since the epoch, or zero.
+     * 
+     * @return The time from System.nanoTime.
+     */
+    public static long toNanoTime (long apply_at)
+    {
+        final long nanos = System.nanoTime ();
+        
+        if (apply_at == 0)
+            return nanos;
+        
+        final long ahead = apply_at - now ();
+        
+        if (ahead <= 0)
+            return nanos;
+        
+        if (ahead > MAX_AHEAD)
+        {
+            LOG.log (Level.WARNING, "Apply time {0}ms ahead, is a clock wrong?", ahead);
+            return nanos;
+        }
+        
+        return nanos + ahead * 1_000_000;
+    }
+    
+    /**
+     * Set how far this machine's clock is behind the others.
+     * 
+     * @param ms The offset in milliseconds.
+     */
+    public static void setOffset (long ms)
+    {
+        offset = ms;
+    }
+    
+    /**
+     * Add the clock options to a set of options.
+     * 
+     * @param opts The options to add to.
+     */
+    public static void add_options (Options opts)
+    {
+        opts.addOption (null, OFFSET_KEY, true, "Milliseconds to add to this machine's clock");
+    }
+    
+    /**
+     * Set the offset from the command line or configuration, if given.
+     * 
+     * @param command The command line.
+     * @param config The configuration.
+     * 
+     * @throws ParseException If the offset isn't valid.
+     */
+    public static void handle_args (CommandLine command, Properties config) throws ParseException
+    {
+        setOffset (Listener.getInt (command, config, OFFSET_KEY, 0, -86_400_000, 86_400_000));
+    }
+    
+    /** Command line long name for the clock offset. */
+    public static final String OFFSET_KEY = "clock-offset";
+    
+    /** The furthest ahead an apply time can be, in milliseconds. */
+    private static final long MAX_AHEAD = 10_000;
+    
+    /** The offset to the wall clock in milliseconds. */
+    private static volatile long offset = 0;
+}
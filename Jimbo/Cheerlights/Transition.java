@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+/**
+ * A transition from one frame to another over a fixed time. Frames are
+ * worked out from the time rather than by counting steps so the duration
+ * is the same however many frames actually get shown.
+ * 
+ * @author Jim Darby
+ */
+public class Transition implements Scene
+{
+    /**
+     * Create a transition.
+     * 
+     * @param from Where we start. This is copied.
+     * @param to Where we end up. This is copied.
+     * @param start When we start, from System.nanoTime.
+     * @param duration How long it takes in nanoseconds.
+     * @param easing The easing curve to use.
+     */
+    public Transition (int[] from, int[] to, long start, long duration, Easing easing)
+    {
+        if (from.length != to.length)
+            throw new IllegalArgumentException ("Transition between different sized frames");
+        
+        this.from = from.clone ();
+        this.to = to.clone ();
+        this.start = start;
+        this.duration = duration;
+        this.easing = easing;
+    }
+    
+    /**
+     * Work out the frame for a given time.
+     * 
+     * @param now The time, from System.nanoTime.
+     * @param frame Where to put the result.
+     * 
+     * @return If the transition has further to go after this frame.
+     */
+    @Override
+    public boolean render (long now, int[] frame)
+    {
+        final long elapsed = now - start;
+        
+        if (elapsed >= duration)
+        {
+            System.arraycopy (to, 0, frame, 0, to.length);
+            return false;
+        }
+        
+        if (elapsed <= 0)
+        {
+            System.arraycopy (from, 0, frame, 0, from.length);
+            return true;
+        }
+        
+        // Weight of the new frame out of 256
+        final int step = (int) (easing.apply ((double) elapsed / duration) * 256);
+        
+        BLENDER.blend (from, to, step, frame);
+        
+        return true;
+    }
+    
+    /**
+     * Find when the frame will next change. Nothing happens until the
+     * start and nothing after the end.
+     * 
+     * @param now The time, from System.nanoTime.
+     * 
+     * @return The time it next changes.
+     */
+    @Override
+    public long nextChange (long now)
+    {
+        if (now - start >= duration)
+            return Long.MAX_VALUE;
+        
+        return (start - now > 0) ? start : now;
+    }
+    
+    /**
+     * Get where the transition ends up.
+     * 
+     * @return The final frame. This must not be changed.
+     */
+    public int[] getTarget ()
+    {
+        return to;
+    }
+    
+    /** How we blend frames. */
+    private static final Blender BLENDER = Blender.get ();
+    
+    /** Where we start from. */
+    private final int[] from;
+    /** Where we end up. */
+    private final int[] to;
+    /** When we start. */
+    private final long start;
+    /** How long it takes. */
+    private final long duration;
+    /** How we get there. */
+    private final Easing easing;
+}
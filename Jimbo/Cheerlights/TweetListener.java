@@ -23,18 +23,17 @@ import java.util.logging.Level;
 
 import java.io.IOException;
 
-import java.net.MulticastSocket;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.net.SocketException;
 
+import java.util.Arrays;
+import java.util.Properties;
+
 import twitter4j.DirectMessage;
 import twitter4j.Twitter;
 import twitter4j.TwitterException;
 import twitter4j.TwitterFactory;
 import twitter4j.Status;
-import twitter4j.StatusListener;
 import twitter4j.StatusDeletionNotice;
 import twitter4j.TwitterStream;
 import twitter4j.TwitterStreamFactory;
@@ -50,6 +49,7 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.ParseException;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -74,6 +74,7 @@ public class TweetListener {
     {
         // Set up simpler logging to stdout
         Jimbo.Logging.Logging.useStdout();
+        AsyncHandler.install ();
         
         LOG.log (Level.INFO, "Starting twitter listener");
         
@@ -81,26 +82,39 @@ public class TweetListener {
         
         options.addOption ("b", Listener.MQTT_BROKER_KEY, true, "URL of the broker")
                 .addOption ("c", Listener.MQTT_CLIENT_KEY, true, "The MQTT client name to use")
-                .addOption ("t", Listener.MQTT_TOPIC_KEY, true, "The MQTT topic to use");
+                .addOption ("t", Listener.MQTT_TOPIC_KEY, true, "The MQTT topic to use")
+                .addOption (null, MQTT_BATCH_KEY, false, "Send all the colours in a tweet as one MQTT message")
+                .addOption (null, APPLY_DELAY_KEY, true, "Milliseconds ahead to tell displays to show colours, so they change together. Upgrade every receiver first, older ones stop listening")
+                .addOption (null, ColourStats.STATS_TOPIC_KEY, true, "MQTT topic to publish colour statistics on")
+                .addOption (null, ColourStats.STATS_INTERVAL_KEY, true, "Seconds between colour statistics (default " + ColourStats.DEFAULT_STATS_INTERVAL + ")")
+                .addOption (null, Listener.CONFIG_KEY, true, "Configuration file");
+        
+        Multicast.add_options (options);
+        SpamFilter.add_options (options);
+        HighAvailability.add_options (options);
+        SyncClock.add_options (options);
 
         CommandLineParser parser = new DefaultParser ();
         CommandLine command = parser.parse (options, args);
         
+        final Properties config = Listener.getConfig (command);
+        
+        SyncClock.handle_args (command, config);
+        
+        final String mqtt_broker = Listener.getValue (command, config, Listener.MQTT_BROKER_KEY, null);
+        final String mqtt_client = Listener.getValue (command, config, Listener.MQTT_CLIENT_KEY, null);
+        final String mqtt_topic = Listener.getValue (command, config, Listener.MQTT_TOPIC_KEY, Listener.DEFAULT_MQTT_TOPIC);
+        
         MQTTClient mqtt = null;
-        String mqtt_topic = Listener.DEFAULT_MQTT_TOPIC;
         
-        if (command.hasOption (Listener.MQTT_BROKER_KEY))
+        if (mqtt_broker != null)
         {
-            if (!command.hasOption (Listener.MQTT_CLIENT_KEY))
+            if (mqtt_client == null)
                 throw new ParseException ("MQTT without client name");
             
-            if (command.hasOption (Listener.MQTT_TOPIC_KEY))
-                mqtt_topic = command.getOptionValue (Listener.MQTT_TOPIC_KEY);
-            
             try
             {
-                mqtt = new MQTTClient (command.getOptionValue (Listener.MQTT_BROKER_KEY),
-                        command.getOptionValue (Listener.MQTT_CLIENT_KEY));
+                mqtt = new MQTTClient (mqtt_broker, mqtt_client);
                 mqtt.run ();
             }
             
@@ -111,15 +125,58 @@ public class TweetListener {
         }
         else
         {
-            if (command.hasOption (Listener.MQTT_TOPIC_KEY))
+            if (Listener.getValue (command, config, Listener.MQTT_TOPIC_KEY, null) != null)
                 LOG.warning("MQTT topic supplied but no broker");
             
-            if (command.hasOption (Listener.MQTT_CLIENT_KEY))
+            if (mqtt_client != null)
                 LOG.warning ("MQTT client name but no broker");
         }
         
+        final String stats_topic = Listener.getValue (command, config, ColourStats.STATS_TOPIC_KEY, null);
+        ColourStats stats = null;
+        
+        if (stats_topic != null)
+        {
+            if (mqtt == null)
+                LOG.warning ("Statistics topic supplied but no MQTT");
+            else
+                stats = new ColourStats ();
+        }
+        
         Twitter twitter = new TwitterFactory().getInstance();
-        StatusListener listener = new listener ("224.1.1.1", (short) 5123, mqtt, mqtt_topic);
+        listener listener = new listener (new Multicast (command, config), new SpamFilter (command, config), stats,
+                Listener.getInt (command, config, APPLY_DELAY_KEY, 0, 0, 10_000), mqtt, mqtt_topic,
+                command.hasOption (MQTT_BATCH_KEY) || Boolean.parseBoolean (config.getProperty (MQTT_BATCH_KEY)));
+        
+        // With other listeners running only the leader sends
+        final HighAvailability ha = HighAvailability.create (command, config, mqtt_broker, mqtt_client, listener::send);
+        
+        if (ha != null)
+        {
+            // Hear what the leader sends so a new leader doesn't send it again
+            if (mqtt_broker != null)
+            {
+                try
+                {
+                    new MQTTClient (mqtt_broker, mqtt_client + "-seen", mqtt_topic, (t, m) -> ha.seen (m)).run ();
+                }
+                
+                catch (MqttException e)
+                {
+                    LOG.log (Level.WARNING, "Failed to follow the leader: {0}", e.toString ());
+                }
+            }
+            
+            listener.ha = ha;
+            ha.go ();
+        }
+        
+        // Only the leader sees the colours so only it has anything to say
+        if (stats != null)
+            stats.publish (mqtt, stats_topic,
+                    Listener.getInt (command, config, ColourStats.STATS_INTERVAL_KEY, ColourStats.DEFAULT_STATS_INTERVAL, 1, 86400),
+                    () -> ha == null || ha.isLeader ());
+        
         FilterQuery fq = new FilterQuery();        
 
         String keywords[] = {"#cheerlights"};
@@ -138,15 +195,15 @@ public class TweetListener {
      */
     private static class listener implements UserStreamListener
     {
-        public listener (String host, short port, MQTTClient mqtt, String topic) throws SocketException, UnknownHostException, IOException
+        public listener (Multicast multicast, SpamFilter filter, ColourStats stats, int apply_delay, MQTTClient mqtt, String topic, boolean batch) throws SocketException, UnknownHostException, IOException
         {
-            socket = new MulticastSocket ();
-	    address = InetAddress.getByName (host);
-            this.port = port;
+            this.filter = filter;
+            this.stats = stats;
+            this.apply_delay = apply_delay;
+            this.batch = batch;
+            encoder = new MessageEncoder (multicast);
             this.mqtt = mqtt;
             this.topic = topic;
-            
-            socket.setTimeToLive (3);
         }
         
         /**
@@ -156,14 +213,39 @@ public class TweetListener {
         @Override
         public void onStatus(Status status)
         {
-            LOG.log (Level.INFO, "{0}@{1}: {2}",
-                    new Object[] {userText (status.getUser ()), status.getCreatedAt ().toString(), status.getText ()});
+            if (LOG.isLoggable (Level.INFO))
+                LOG.log (Level.INFO, "{0}@{1}: {2}",
+                        new Object[] {userText (status.getUser ()), status.getCreatedAt ().toString(), status.getText ()});
 
+            // Retweets, repeats and over-eager users go no further
+            if (!filter.admit (status, System.nanoTime ()))
+            {
+                LOG.log (Level.FINE, "Filtered: {0}", filter);
+                return;
+            }
+            
+            if (ha != null)
+                ha.offer (status);
+            else
+                send (status);
+        }
+        
+        /**
+         * Send the colours from a tweet on.
+         * 
+         * @param status The tweet.
+         */
+        synchronized void send (Status status)
+        {
             try
             {
                 final String text = status.getText ();
                 String words[] = text.split ("[^A-Za-z]+");
                 int sent = 0;
+                int[] colours = new int[4];
+                
+                // Every display should show the colours at the same moment
+                final long apply_at = (apply_delay > 0) ? SyncClock.now () + apply_delay : 0;
                 
                 for (int i = 0; i < words.length; ++i)
                 {
@@ -171,63 +253,84 @@ public class TweetListener {
                     
                     if (colour >= 0)
                     {
-                        Message m = new Message (colour, text);
-                
-                        final byte[] buffer = m.getBlob ();
-                        final DatagramPacket packet = new DatagramPacket (buffer, buffer.length, address, port);
-                
-                        socket.send (packet);
-                        
+                        encoder.send (colour, text, apply_at);
                         sent += 1;
                         
-                        // Now check we can decode what we just sent.
+                        if (mqtt != null && !batch)
+                            publish (status, new int[] {colour}, apply_at);
                         
-                        try
-                        {
-                            Message n = new Message (m.getBlob ());
-                        }
-
-                        catch (IOException e)
-                        {
-                            LOG.log (Level.WARNING, "Failed to parse binary {0}: {1}",
-                                    new Object[] {e.getLocalizedMessage(), status.getText ()});
-                        }
+                        if (sent > colours.length)
+                            colours = Arrays.copyOf (colours, 2 * colours.length);
                         
-                        if (mqtt != null)
-                        {
-                            JSONObject message = new JSONObject ();
-                            final User user = status.getUser ();
-                            
-                            message.put ("text", text)
-                                    .put ("colour", colour)
-                                    .put ("name", user.getName ())
-                                    .put ("screen", user.getScreenName ())
-                                    .put ("sent", status.getCreatedAt ().getTime ());
-                            
-                            try
-                            {
-                                mqtt.publish (topic, message.toString ());
-                            }
-                            
-                            catch (MqttException e)
-                            {
-                                LOG.log (Level.WARNING, "Exception while sending MQTT: {0}", e.toString ());
-                            }
-                        }
+                        colours[sent - 1] = colour;
                     }
                 }
                 
+                // Send all the colours in one go if we've been asked to
+                if (mqtt != null && batch && sent > 0)
+                    publish (status, Arrays.copyOf (colours, sent), apply_at);
+                
+                if (stats != null && sent > 0)
+                    stats.update (new CheerEvent (Arrays.copyOf (colours, sent), text));
+                
                 if (sent == 0)
                     LOG.log (Level.INFO, "No colour in {0}", text);
             }
             
             catch (IOException e)
             {
-                LOG.log (Level.WARNING, "Failed to parse {0}: {1}",
+                LOG.log (Level.WARNING, "Failed to send {0}: {1}",
                         new Object[] {e.getLocalizedMessage (), status.getText ()});
             }
         }
         
+        /**
+         * Publish the colours from a status to MQTT. The first colour is
+         * always sent as "colour" for older listeners and a batch of more
+         * than one also goes in "colours". A time to show them goes in
+         * "apply" and the tweet's ID, so other listeners can tell it's been sent,
+         * goes in "id".
+         * 
+         * @param status The status they came from.
+         * @param colours The colours.
+         * @param apply_at When to show them or zero for straight away.
+         */
+        private void publish (Status status, int[] colours, long apply_at)
+        {
+            JSONObject message = new JSONObject ();
+            final User user = status.getUser ();
+            
+            message.put ("text", status.getText ())
+                    .put ("colour", colours[0])
+                    .put ("name", user.getName ())
+                    .put ("screen", user.getScreenName ())
+                    .put ("sent", status.getCreatedAt ().getTime ())
+                    .put ("id", status.getId ());
+            
+            if (colours.length > 1)
+            {
+                final JSONArray a = new JSONArray ();
+                
+                for (int c : colours)
+                    a.put (c);
+                
+                message.put ("colours", a);
+            }
+            
+            if (apply_at != 0)
+                message.put ("apply", apply_at);
+            
+            try
+            {
+                mqtt.publish (topic, message.toString ());
+            }
+            
+            catch (MqttException e)
+            {
+                LOG.log (Level.WARNING, "Exception while sending MQTT: {0}", e.toString ());
+            }
+        }
+        
         @Override
         public void onDeletionNotice(StatusDeletionNotice statusDeletionNotice)
         {
@@ -408,13 +511,22 @@ public class TweetListener {
             LOG.log (Level.WARNING, "Stallwarning: {0}", sw);
         }
         
-        final MulticastSocket socket;
-        final InetAddress address;
-        final short port;
+        final MessageEncoder encoder;
+        final SpamFilter filter;
+        final int apply_delay;
+        final ColourStats stats;
         final MQTTClient mqtt;
         final String topic;
+        final boolean batch;
+        /** What decides if we send, null if we're on our own. */
+        volatile HighAvailability ha = null;
     }
     
+    /** Command line long name for batching MQTT messages. */
+    public static final String MQTT_BATCH_KEY = "mqtt-batch";
+    /** Command line long name for the delay before displays show colours. */
+    public static final String APPLY_DELAY_KEY = "apply-delay";
+    
     private static String userText (User u)
     {
         return u.getName() + " (@" + u.getScreenName () + ")";
@@ -0,0 +1,738 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Serves the current CheerLights colours to web browsers. The state can be
+ * fetched as JSON from /state and updates are pushed as they happen over
+ * Server-Sent Events from /events and over a WebSocket at /ws, with a
+ * simple page at / that shows the colours full screen.
+ * 
+ * Everything runs on a single thread with a selector so a large number of
+ * clients costs very little. Each update is encoded once, for each kind of
+ * client, and the same bytes are written to every client. A client that
+ * can't keep up skips to the latest state rather than being queued for.
+ * 
+ * @author Jim Darby
+ */
+public class WebGateway implements CheerListener, Runnable
+{
+    private static final Logger LOG = Logger.getLogger ("WebGateway");
+    
+    /**
+     * Create a gateway. It doesn't start serving until the options are
+     * handled or start is called.
+     */
+    public WebGateway ()
+    {
+        state = encodeState ();
+    }
+    
+    /**
+     * Add the gateway's command line options.
+     * 
+     * @param opts The options to add to.
+     */
+    @Override
+    public void add_options (Options opts)
+    {
+        opts.addOption (null, HTTP_PORT_KEY, true, "Port to serve web clients on (default " + DEFAULT_PORT + ")");
+    }
+    
+    /**
+     * Handle the command line options and start serving.
+     * 
+     * @param command The command line.
+     */
+    @Override
+    public void handle_args (CommandLine command)
+    {
+        try
+        {
+            start (Listener.getInt (command, Listener.getConfig (command), HTTP_PORT_KEY, DEFAULT_PORT, 1, 65535));
+        }
+        
+        catch (IOException | ParseException e)
+        {
+            LOG.log (Level.WARNING, "Failed to start web gateway: {0}", e.getLocalizedMessage ());
+        }
+    }
+    
+    /**
+     * Start serving on a port.
+     * 
+     * @param port The port.
+     * 
+     * @throws IOException If the port can't be opened.
+     */
+    public synchronized void start (int port) throws IOException
+    {
+        if (selector != null)
+            return;
+        
+        selector = Selector.open ();
+        server = ServerSocketChannel.open ();
+        server.configureBlocking (false);
+        server.bind (new InetSocketAddress (port), BACKLOG);
+        server.register (selector, SelectionKey.OP_ACCEPT);
+        
+        final Thread t = new Thread (this, "Web Gateway");
+        
+        t.setDaemon (true);
+        t.start ();
+        
+        LOG.log (Level.INFO, "Web gateway on port {0}", Integer.toString (port));
+    }
+    
+    @Override
+    public void update (int colour)
+    {
+        update (new CheerEvent (colour, null));
+    }
+    
+    /**
+     * Take on new colours and push them to all the clients.
+     * 
+     * @param event The colours.
+     */
+    @Override
+    public void update (CheerEvent event)
+    {
+        final State s;
+        
+        synchronized (this)
+        {
+            final int n = Math.min (event.getCount (), history.length);
+            
+            System.arraycopy (history, 0, history, n, history.length - n);
+            
+            for (int i = 0; i < n; ++i)
+                history[i] = event.getColour (event.getCount () - 1 - i);
+            
+            filled = Math.min (filled + n, history.length);
+            text = event.getText ();
+            time = System.currentTimeMillis ();
+            s = state = encodeState ();
+        }
+        
+        if (selector != null)
+        {
+            broadcasts.offer (s);
+            selector.wakeup ();
+        }
+    }
+    
+    /**
+     * Serve clients. This never returns.
+     */
+    @Override
+    public void run ()
+    {
+        long next_ping = System.nanoTime () + PING_INTERVAL;
+        
+        while (true)
+        {
+            try
+            {
+                selector.select (PING_INTERVAL / 1_000_000);
+                
+                for (Iterator<SelectionKey> i = selector.selectedKeys ().iterator (); i.hasNext ();)
+                {
+                    final SelectionKey key = i.next ();
+                    
+                    i.remove ();
+                    
+                    if (!key.isValid ())
+                        continue;
+                    
+                    if (key.isAcceptable ())
+                        accept ();
+                    else
+                        ((Client) key.attachment ()).ready (key);
+                }
+                
+                State s;
+                
+                while ((s = broadcasts.poll ()) != null)
+                    for (SelectionKey key : selector.keys ())
+                        if (key.attachment () != null)
+                            ((Client) key.attachment ()).push (s);
+                
+                // Keep idle connections through proxies alive
+                if (System.nanoTime () - next_ping >= 0)
+                {
+                    next_ping = System.nanoTime () + PING_INTERVAL;
+                    
+                    for (SelectionKey key : selector.keys ())
+                        if (key.attachment () != null)
+                            ((Client) key.attachment ()).ping ();
+                }
+            }
+            
+            catch (IOException e)
+            {
+                LOG.log (Level.WARNING, "Web gateway select failed: {0}", e.getLocalizedMessage ());
+            }
+        }
+    }
+    
+    /**
+     * Accept any waiting connections.
+     * 
+     * @throws IOException If the server fails.
+     */
+    private void accept () throws IOException
+    {
+        SocketChannel c;
+        
+        while ((c = server.accept ()) != null)
+        {
+            c.configureBlocking (false);
+            c.setOption (java.net.StandardSocketOptions.TCP_NODELAY, true);
+            
+            final SelectionKey key = c.register (selector, SelectionKey.OP_READ);
+            
+            key.attach (new Client (key));
+        }
+    }
+    
+    /**
+     * Encode the current state for each kind of client.
+     * 
+     * @return The encoded state.
+     */
+    private State encodeState ()
+    {
+        final JSONObject j = new JSONObject ();
+        final JSONArray colours = new JSONArray ();
+        
+        for (int i = 0; i < filled; ++i)
+            colours.put (String.format ("#%06x", history[i]));
+        
+        j.put ("colours", colours)
+                .put ("time", time);
+        
+        if (text != null)
+            j.put ("text", text);
+        
+        return new State (j.toString ().getBytes (StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Turn a WebSocket key into the matching accept value.
+     * 
+     * @param key The key from the client.
+     * @return The accept value.
+     */
+    private static String acceptKey (String key)
+    {
+        try
+        {
+            final MessageDigest sha1 = MessageDigest.getInstance ("SHA-1");
+            
+            return Base64.getEncoder ().encodeToString (
+                    sha1.digest ((key.trim () + WS_GUID).getBytes (StandardCharsets.US_ASCII)));
+        }
+        
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new AssertionError ("No SHA-1");
+        }
+    }
+    
+    /**
+     * Build a read-only buffer from a string.
+     * 
+     * @param s The string.
+     * @return The buffer.
+     */
+    private static ByteBuffer ascii (String s)
+    {
+        return ByteBuffer.wrap (s.getBytes (StandardCharsets.UTF_8)).asReadOnlyBuffer ();
+    }
+    
+    /**
+     * The state encoded for each kind of client. These are shared by all
+     * the clients so each gets a duplicate to keep its own position.
+     */
+    private static class State
+    {
+        /**
+         * Encode the state.
+         * 
+         * @param json The state as JSON.
+         */
+        State (byte[] json)
+        {
+            final ByteBuffer body = ByteBuffer.allocate (json.length + 16);
+            
+            this.json = ByteBuffer.wrap (json).asReadOnlyBuffer ();
+            
+            // An event stream event
+            body.put ("data: ".getBytes (StandardCharsets.US_ASCII)).put (json).put ((byte) '\n').put ((byte) '\n').flip ();
+            sse = body.asReadOnlyBuffer ();
+            
+            // An unmasked text frame
+            final ByteBuffer f = ByteBuffer.allocate (json.length + 10);
+            
+            f.put ((byte) 0x81);
+            
+            if (json.length < 126)
+                f.put ((byte) json.length);
+            else if (json.length < 65536)
+                f.put ((byte) 126).putShort ((short) json.length);
+            else
+                f.put ((byte) 127).putLong (json.length);
+            
+            f.put (json).flip ();
+            ws = f.asReadOnlyBuffer ();
+        }
+        
+        /** The plain JSON. */
+        final ByteBuffer json;
+        /** As a Server-Sent Event. */
+        final ByteBuffer sse;
+        /** As a WebSocket frame. */
+        final ByteBuffer ws;
+    }
+    
+    /** What kind of client a connection is. */
+    private enum Kind
+    {
+        /** Still sending its request. */
+        REQUEST,
+        /** A one off response, closed once written. */
+        ONCE,
+        /** A Server-Sent Events stream. */
+        SSE,
+        /** A WebSocket. */
+        WEBSOCKET
+    }
+    
+    /**
+     * A connected client.
+     */
+    private class Client
+    {
+        /**
+         * Create a client.
+         * 
+         * @param key Its selection key.
+         */
+        Client (SelectionKey key)
+        {
+            this.key = key;
+            channel = (SocketChannel) key.channel ();
+        }
+        
+        /**
+         * Handle the channel being ready.
+         * 
+         * @param key Its key.
+         */
+        void ready (SelectionKey key)
+        {
+            try
+            {
+                if (key.isReadable ())
+                    read ();
+                
+                if (key.isValid () && key.isWritable ())
+                    write ();
+            }
+            
+            catch (IOException | RuntimeException e)
+            {
+                close ();
+            }
+        }
+        
+        /**
+         * Push new state to the client. If it's already got a lot waiting
+         * the older states are dropped as only the latest matters.
+         * 
+         * @param s The state.
+         */
+        void push (State s)
+        {
+            if (kind == Kind.SSE)
+                queue (s.sse.duplicate ());
+            else if (kind == Kind.WEBSOCKET)
+                queue (s.ws.duplicate ());
+        }
+        
+        /**
+         * Send something to keep the connection alive.
+         */
+        void ping ()
+        {
+            if (kind == Kind.SSE)
+                queue (SSE_PING.duplicate ());
+            else if (kind == Kind.WEBSOCKET)
+                queue (WS_PING.duplicate ());
+        }
+        
+        /**
+         * Queue a buffer to be written.
+         * 
+         * @param b The buffer.
+         */
+        private void queue (ByteBuffer b)
+        {
+            if (out.size () >= MAX_QUEUE)
+            {
+                // Keep anything that's part written so the stream stays valid
+                final ByteBuffer head = out.peekFirst ();
+                
+                out.clear ();
+                
+                if (head.position () > 0)
+                    out.add (head);
+                
+                skipped += 1;
+            }
+            
+            out.add (b);
+            
+            if (key.isValid ())
+                key.interestOps (key.interestOps () | SelectionKey.OP_WRITE);
+        }
+        
+        /**
+         * Read what the client has sent.
+         * 
+         * @throws IOException If the connection fails.
+         */
+        private void read () throws IOException
+        {
+            if (channel.read (in) < 0)
+            {
+                close ();
+                return;
+            }
+            
+            if (kind == Kind.REQUEST)
+                request ();
+            else if (kind == Kind.WEBSOCKET)
+                frames ();
+            else
+                in.clear ();
+        }
+        
+        /**
+         * Look for a complete request and answer it.
+         */
+        private void request ()
+        {
+            final String head = new String (in.array (), 0, in.position (), StandardCharsets.ISO_8859_1);
+            final int end = head.indexOf ("\r\n\r\n");
+            
+            if (end < 0)
+            {
+                if (!in.hasRemaining ())
+                    respond ("431 Request Header Fields Too Large", "text/plain", ascii ("Too large\n"));
+                
+                return;
+            }
+            
+            final String[] lines = head.substring (0, end).split ("\r\n");
+            final String[] request = lines[0].split (" ");
+            String ws_key = null;
+            boolean upgrade = false;
+            
+            for (int i = 1; i < lines.length; ++i)
+            {
+                final int colon = lines[i].indexOf (':');
+                
+                if (colon < 0)
+                    continue;
+                
+                final String name = lines[i].substring (0, colon).trim ().toLowerCase (Locale.ROOT);
+                final String value = lines[i].substring (colon + 1).trim ();
+                
+                if (name.equals ("sec-websocket-key"))
+                    ws_key = value;
+                else if (name.equals ("upgrade") && value.equalsIgnoreCase ("websocket"))
+                    upgrade = true;
+            }
+            
+            in.clear ();
+            
+            if (request.length < 2 || !request[0].equals ("GET"))
+            {
+                respond ("405 Method Not Allowed", "text/plain", ascii ("GET only\n"));
+                return;
+            }
+            
+            final String path = request[1];
+            
+            if (path.equals ("/ws") && upgrade && ws_key != null)
+            {
+                kind = Kind.WEBSOCKET;
+                queue (ascii ("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: " + acceptKey (ws_key) + "\r\n\r\n"));
+                push (state);
+            }
+            else if (path.equals ("/events"))
+            {
+                kind = Kind.SSE;
+                queue (ascii ("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nCache-Control: no-cache\r\n"
+                        + "Access-Control-Allow-Origin: *\r\nConnection: keep-alive\r\n\r\n"));
+                push (state);
+            }
+            else if (path.equals ("/state"))
+                respond ("200 OK", "application/json", state.json.duplicate ());
+            else if (path.equals ("/"))
+                respond ("200 OK", "text/html; charset=utf-8", PAGE.duplicate ());
+            else
+                respond ("404 Not Found", "text/plain", ascii ("Not found\n"));
+        }
+        
+        /**
+         * Send a one off response and close once it's written.
+         * 
+         * @param status The status line.
+         * @param type The content type.
+         * @param body The body.
+         */
+        private void respond (String status, String type, ByteBuffer body)
+        {
+            kind = Kind.ONCE;
+            queue (ascii ("HTTP/1.1 " + status + "\r\nContent-Type: " + type + "\r\nContent-Length: " + body.remaining ()
+                    + "\r\nAccess-Control-Allow-Origin: *\r\nConnection: close\r\n\r\n"));
+            queue (body);
+            key.interestOps (SelectionKey.OP_WRITE);
+        }
+        
+        /**
+         * Handle frames from a WebSocket client. We don't want anything
+         * from the client so only close and ping are acted on.
+         */
+        private void frames ()
+        {
+            in.flip ();
+            
+            while (in.remaining () >= 2)
+            {
+                final int start = in.position ();
+                final int opcode = in.get () & 0x0f;
+                final int second = in.get () & 0xff;
+                final boolean masked = (second & 0x80) != 0;
+                long length = second & 0x7f;
+                
+                if (length == 126)
+                    length = (in.remaining () >= 2) ? (in.getShort () & 0xffff) : -1;
+                else if (length == 127)
+                    length = (in.remaining () >= 8) ? in.getLong () : -1;
+                
+                if (length < 0 || in.remaining () < (masked ? 4 : 0) + length)
+                {
+                    // Wait for the rest, unless it's never going to fit
+                    if (length > in.capacity () - 14)
+                    {
+                        close ();
+                        return;
+                    }
+                    
+                    in.position (start);
+                    break;
+                }
+                
+                final byte[] mask = new byte[4];
+                
+                if (masked)
+                    in.get (mask);
+                
+                final byte[] payload = new byte[(int) length];
+                
+                in.get (payload);
+                
+                for (int i = 0; i < payload.length; ++i)
+                    payload[i] ^= mask[i & 3];
+                
+                if (opcode == 0x8)
+                {
+                    kind = Kind.ONCE;
+                    queue (ByteBuffer.wrap (new byte[] {(byte) 0x88, 0}));
+                    key.interestOps (SelectionKey.OP_WRITE);
+                    in.clear ();
+                    return;
+                }
+                
+                if (opcode == 0x9 && payload.length < 126)
+                {
+                    final ByteBuffer pong = ByteBuffer.allocate (2 + payload.length);
+                    
+                    pong.put ((byte) 0x8a).put ((byte) payload.length).put (payload).flip ();
+                    queue (pong);
+                }
+            }
+            
+            in.compact ();
+        }
+        
+        /**
+         * Write as much as we can.
+         * 
+         * @throws IOException If the connection fails.
+         */
+        private void write () throws IOException
+        {
+            while (!out.isEmpty ())
+            {
+                final ByteBuffer b = out.peekFirst ();
+                
+                channel.write (b);
+                
+                if (b.hasRemaining ())
+                    return;
+                
+                out.removeFirst ();
+            }
+            
+            if (kind == Kind.ONCE)
+                close ();
+            else
+                key.interestOps (SelectionKey.OP_READ);
+        }
+        
+        /**
+         * Drop the connection.
+         */
+        private void close ()
+        {
+            key.cancel ();
+            
+            try
+            {
+                channel.close ();
+            }
+            
+            catch (IOException e)
+            {
+                // Nothing more we can do
+            }
+        }
+        
+        /** Our key. */
+        private final SelectionKey key;
+        /** Our connection. */
+        private final SocketChannel channel;
+        /** What's come in. */
+        private final ByteBuffer in = ByteBuffer.allocate (MAX_REQUEST);
+        /** What's waiting to go out. */
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<> ();
+        /** What kind of client we are. */
+        private Kind kind = Kind.REQUEST;
+        /** How many times we've fallen behind. */
+        private int skipped = 0;
+    }
+    
+    /**
+     * Serve the colours with nothing to display them on.
+     * 
+     * @param args The command line arguments.
+     */
+    public static void main (String args[])
+    {
+        // Set up simpler logging to stdout
+        Jimbo.Logging.Logging.useStdout ();
+        AsyncHandler.install ();
+        
+        Listener.setup (args, new WebGateway ());
+    }
+    
+    /** Command line long name for the port. */
+    public static final String HTTP_PORT_KEY = "http-port";
+    /** The default port. */
+    public static final int DEFAULT_PORT = 8080;
+    
+    /** The number of colours in the state. */
+    private static final int HISTORY = 8;
+    /** The largest request we'll take. */
+    private static final int MAX_REQUEST = 8192;
+    /** The most buffers waiting for a client before it skips ahead. */
+    private static final int MAX_QUEUE = 8;
+    /** The queue of connections waiting to be accepted. */
+    private static final int BACKLOG = 1024;
+    /** How often to keep connections alive in nanoseconds. */
+    private static final long PING_INTERVAL = 30_000_000_000L;
+    /** The WebSocket magic number. */
+    private static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    /** A comment to keep an event stream alive. */
+    private static final ByteBuffer SSE_PING = ascii (":\n\n");
+    /** A ping to keep a WebSocket alive. */
+    private static final ByteBuffer WS_PING = ByteBuffer.wrap (new byte[] {(byte) 0x89, 0}).asReadOnlyBuffer ();
+    /** A page that shows the colours. */
+    private static final ByteBuffer PAGE = ascii ("<!DOCTYPE html>\n<html><head><title>CheerLights</title>"
+            + "<meta name=\"viewport\" content=\"width=device-width\"></head>\n"
+            + "<body style=\"margin:0;display:flex;height:100vh\">\n<script>\n"
+            + "new EventSource ('/events').onmessage = function (e) {\n"
+            + "  var s = JSON.parse (e.data), h = '';\n"
+            + "  for (var i = 0; i < s.colours.length; ++i)\n"
+            + "    h += '<div style=\"flex:1;background:' + s.colours[i] + '\"></div>';\n"
+            + "  document.body.innerHTML = h;\n"
+            + "};\n</script>\n</body></html>\n");
+    
+    /** The colours, newest first. */
+    private final int[] history = new int[HISTORY];
+    /** The number of colours we've had, up to the size of the history. */
+    private int filled = 0;
+    /** The text of the latest update. */
+    private String text = null;
+    /** When the latest update arrived. */
+    private long time = 0;
+    /** The current state, encoded. */
+    private volatile State state;
+    /** States waiting to be pushed to the clients. */
+    private final ConcurrentLinkedQueue<State> broadcasts = new ConcurrentLinkedQueue<> ();
+    /** Our selector, null until started. */
+    private volatile Selector selector = null;
+    /** The server socket. */
+    private ServerSocketChannel server = null;
+}
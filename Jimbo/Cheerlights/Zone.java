@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 Jim Darby.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package Jimbo.Cheerlights;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A logical part of a display with a colour history of its own. A zone is a
+ * CheerListener so it can be fed directly by any input. It's drawn by the
+ * Compositor that owns it.
+ * 
+ * @author Jim Darby
+ */
+public class Zone implements CheerListener
+{
+    private static final Logger LOG = Logger.getLogger ("Zone");
+    
+    /** How a zone shows its colours. */
+    public enum Effect
+    {
+        /** Newest colour first, older ones further along. */
+        HISTORY,
+        /** The whole zone shows the newest colour. */
+        SOLID
+    }
+    
+    /**
+     * Create a zone.
+     * 
+     * @param owner The compositor that draws us.
+     * @param name The name of the zone.
+     * @param start The first pixel of the zone.
+     * @param length The number of pixels in the zone.
+     * @param depth The number of colours to remember.
+     * @param effect How to show the colours.
+     * @param duration How long a fade takes in milliseconds.
+     * @param easing The easing curve for fades.
+     */
+    Zone (Compositor owner, String name, int start, int length, int depth, Effect effect, long duration, Easing easing)
+    {
+        if (length <= 0 || depth <= 0)
+            throw new IllegalArgumentException ("Invalid zone " + name);
+        
+        this.owner = owner;
+        this.name = name;
+        this.start = start;
+        this.length = length;
+        this.effect = effect;
+        this.duration = duration * 1_000_000;
+        this.easing = easing;
+        
+        history = new int[depth];
+        target = new int[length];
+        buffer = new int[length];
+    }
+    
+    /**
+     * Update the zone with a new colour.
+     * 
+     * @param colour The colour.
+     */
+    @Override
+    public void update (int colour)
+    {
+        update (new CheerEvent (colour, null));
+    }
+    
+    /**
+     * Update the zone with several new colours in a single fade.
+     * 
+     * @param event The colours.
+     */
+    @Override
+    public void update (CheerEvent event)
+    {
+        if (LOG.isLoggable (Level.INFO))
+            LOG.log (Level.INFO, "Zone {0} new colours {1}", new Object[] {name, event});
+        
+        synchronized (this)
+        {
+            final int n = Math.min (event.getCount (), history.length);
+            
+            System.arraycopy (history, 0, history, n, history.length - n);
+            
+            for (int i = 0; i < n; ++i)
+                history[i] = event.getColour (event.getCount () - 1 - i);
+            
+            switch (effect)
+            {
+                case HISTORY:
+                    for (int i = 0; i < length; ++i)
+                        target[i] = history[(int) ((long) i * history.length / length)];
+                    break;
+                    
+                case SOLID:
+                    java.util.Arrays.fill (target, history[0]);
+                    break;
+            }
+            
+            // Start from wherever we are now
+            final long now = System.nanoTime ();
+            final int[] from = new int[length];
+            
+            if (transition != null)
+                transition.render (now, from);
+            
+            transition = new Transition (from, target, now, duration, easing);
+        }
+        
+        owner.changed ();
+    }
+    
+    /**
+     * Draw the zone into a frame. Zones don't overlap so different zones can
+     * be drawn into the same frame at the same time.
+     * 
+     * @param now The time, from System.nanoTime.
+     * @param frame The whole frame.
+     * 
+     * @return If the zone has further to go after this frame.
+     */
+    boolean render (long now, int[] frame)
+    {
+        final Transition t;
+        
+        synchronized (this)
+        {
+            t = transition;
+        }
+        
+        if (t == null)
+            return false;
+        
+        final boolean more = t.render (now, buffer);
+        
+        System.arraycopy (buffer, 0, frame, start, length);
+        
+        return more;
+    }
+    
+    /**
+     * Get the name of the zone.
+     * 
+     * @return The name.
+     */
+    public String getName ()
+    {
+        return name;
+    }
+    
+    /**
+     * Get the first pixel of the zone.
+     * 
+     * @return The first pixel.
+     */
+    public int getStart ()
+    {
+        return start;
+    }
+    
+    /**
+     * Get the number of pixels in the zone.
+     * 
+     * @return The length.
+     */
+    public int getLength ()
+    {
+        return length;
+    }
+    
+    /** The compositor that draws us. */
+    private final Compositor owner;
+    /** Our name. */
+    private final String name;
+    /** Our first pixel. */
+    private final int start;
+    /** Our number of pixels. */
+    private final int length;
+    /** How we show the colours. */
+    private final Effect effect;
+    /** How long a fade takes in nanoseconds. */
+    private final long duration;
+    /** How we fade. */
+    private final Easing easing;
+    /** The colours, newest first. */
+    private final int[] history;
+    /** What we're fading to. */
+    private final int[] target;
+    /** Where we draw, only used by the rendering thread. */
+    private final int[] buffer;
+    /** The current transition, if any. */
+    private Transition transition = null;
+}
@@ -0,0 +1,92 @@
+#!/bin/sh
+#
+# Measure how long a receiver takes to start and show its first colour and
+# how much memory it uses, for a plain JVM, a JVM with the archive made by
+# receiver-cds.sh and a native image, whichever are available. Each is run
+# with just multicast, started, sent one colour and stopped.
+#
+# Usage: receiver-bench.sh CLASSPATH [MAIN_CLASS [NATIVE_BINARY]]
+#
+# Times are in milliseconds from launch, memory in kB. "Ready" is when it's
+# listening, "First" when it's taken on the first colour. RSS is measured
+# just after the first colour and HWM is the peak.
+
+if [ $# -lt 1 ]
+then
+    echo "Usage: $0 CLASSPATH [MAIN_CLASS [NATIVE_BINARY]]" >&2
+    exit 1
+fi
+
+CP="$1"
+MAIN="${2:-Jimbo.Cheerlights.BlinktLights}"
+NATIVE="${3:-./receiver}"
+LOG=receiver-bench.log
+
+now_ms ()
+{
+    echo $(($(date +%s%N) / 1000000))
+}
+
+# Wait for a line in the log, giving the time it appeared or "timeout"
+wait_for ()
+{
+    for i in $(seq 1 3000)
+    do
+        if grep -q "$1" "$LOG"
+        then
+            now_ms
+            return
+        fi
+        
+        sleep 0.01
+    done
+    
+    echo "timeout"
+}
+
+# Give the time since the start, or pass on a timeout
+since_start ()
+{
+    if [ "$1" = "timeout" ]
+    then
+        echo "timeout"
+    else
+        echo $(($1 - START))
+    fi
+}
+
+run ()
+{
+    NAME="$1"
+    shift
+    
+    START=$(now_ms)
+    "$@" --multicast > "$LOG" 2>&1 &
+    PID=$!
+    
+    READY=$(wait_for "And we're off")
+    java -cp "$CP" Jimbo.Cheerlights.Message red > /dev/null
+    FIRST=$(wait_for "Update new colours")
+    
+    RSS=$(awk '/VmRSS/ {print $2}' /proc/$PID/status)
+    HWM=$(awk '/VmHWM/ {print $2}' /proc/$PID/status)
+    
+    kill $PID
+    wait $PID 2> /dev/null
+    
+    printf "%-8s %8s %8s %8s %8s\n" "$NAME" "$(since_start $READY)" "$(since_start $FIRST)" "$RSS" "$HWM"
+}
+
+printf "%-8s %8s %8s %8s %8s\n" "" "Ready" "First" "RSS" "HWM"
+
+run "jvm" java -cp "$CP" "$MAIN"
+
+if [ -f receiver.jsa ]
+then
+    run "cds" java -Xshare:auto -XX:SharedArchiveFile=receiver.jsa -cp "$CP" "$MAIN"
+fi
+
+if [ -x "$NATIVE" ]
+then
+    run "native" "$NATIVE"
+fi
@@ -0,0 +1,50 @@
+#!/bin/sh
+#
+# Build a class data sharing archive for a receiver so the JVM maps the
+# classes it needs in one go instead of loading and verifying each of them
+# at startup. It runs the receiver, shows it one colour and records the
+# classes it loaded, then dumps them into an archive.
+#
+# Needs a JDK of version 10 or later (application classes can't be
+# archived by OpenJDK 8). Run it on the board the receiver runs on, the
+# archive is specific to the JVM that made it. The class path must be made
+# of jar files, directories can't be archived.
+#
+# Usage: receiver-cds.sh CLASSPATH [MAIN_CLASS]
+#
+# Then start the receiver with:
+#   java -Xshare:auto -XX:SharedArchiveFile=receiver.jsa -cp CLASSPATH MAIN_CLASS --multicast
+
+set -e
+
+if [ $# -lt 1 ]
+then
+    echo "Usage: $0 CLASSPATH [MAIN_CLASS]" >&2
+    exit 1
+fi
+
+CP="$1"
+MAIN="${2:-Jimbo.Cheerlights.BlinktLights}"
+LOG=receiver-cds.log
+
+rm -f receiver.classlist receiver.jsa
+
+java -XX:DumpLoadedClassList=receiver.classlist -cp "$CP" "$MAIN" --multicast > "$LOG" 2>&1 &
+PID=$!
+
+# Wait for it to start listening, then send it a colour so the classes
+# used to show one are in the list too
+for i in $(seq 1 600)
+do
+    grep -q "And we're off" "$LOG" && break
+    sleep 0.1
+done
+
+java -cp "$CP" Jimbo.Cheerlights.Message red > /dev/null
+sleep 5
+kill $PID
+wait $PID || true
+
+java -Xshare:dump -XX:SharedClassListFile=receiver.classlist -XX:SharedArchiveFile=receiver.jsa -cp "$CP"
+
+echo "Archive in receiver.jsa"